@@ -0,0 +1,170 @@
+package com.ocdsoft.bacta.soe.protocol;
+
+import com.ocdsoft.bacta.soe.util.SoeMessageUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures each stage of the SOE encode/decode pipeline over the captured packets in packetdump.txt and
+ * multipackets.txt. Every invocation handles the next packet of the set, so results are an average over real
+ * traffic. Stages that work in place are handed a copy in a reused scratch buffer; {@link #copy()} is the cost of
+ * that copy alone.
+ *
+ * Run with: mvn -Pjmh test-compile exec:exec
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SoeProtocolBenchmark {
+
+    private static final int CRC_BYTES = 2;
+    private static final int OFFSET = 2;
+
+    @Param({"packetdump", "multipackets"})
+    public String dataset;
+
+    private SoeProtocol protocol;
+    private int seed;
+
+    /** Decoded packets, as handed to encode */
+    private byte[][] plain;
+
+    /** Encoded packets as they arrive off the wire */
+    private byte[][] wire;
+
+    /** Decrypted packets that still carry a compressed payload */
+    private byte[][] compressed;
+
+    private ByteBuffer scratch;
+    private int index;
+
+    @Setup
+    public void setup() throws IOException {
+
+        protocol = new SoeProtocol();
+        scratch = ByteBuffer.allocate(1024);
+
+        MessageDumpLoader dump = new MessageDumpLoader();
+        seed = dump.sessionKey;
+
+        if (dataset.equals("packetdump")) {
+            plain = dump.decomp.toArray(new byte[dump.decomp.size()][]);
+            wire = dump.pre.toArray(new byte[dump.pre.size()][]);
+        } else {
+            List<List<Byte>> packets = SoeMessageUtil.readTextPacketDump(new File(getClass().getResource("/multipackets.txt").getFile()));
+            plain = new byte[packets.size()][];
+            wire = new byte[packets.size()][];
+
+            for (int i = 0; i < packets.size(); ++i) {
+                List<Byte> packet = packets.get(i);
+                plain[i] = new byte[packet.size()];
+                for (int j = 0; j < plain[i].length; ++j) {
+                    plain[i][j] = packet.get(j);
+                }
+                wire[i] = toArray(encodePacket(plain[i]));
+            }
+        }
+
+        List<byte[]> compressedList = new ArrayList<>();
+        for (byte[] packet : wire) {
+            ByteBuffer buffer = ByteBuffer.wrap(packet.clone());
+            protocol.decrypt(seed, buffer, OFFSET);
+            if (buffer.get(buffer.limit() - 3) == 1) {
+                compressedList.add(buffer.array());
+            }
+        }
+        compressed = compressedList.toArray(new byte[compressedList.size()][]);
+    }
+
+    @Benchmark
+    public ByteBuffer copy() {
+        return copy(next(wire));
+    }
+
+    @Benchmark
+    public ByteBuffer decode() {
+        return protocol.decode(seed, copy(next(wire)));
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        return encodePacket(copy(next(plain)));
+    }
+
+    @Benchmark
+    public int generateCRC() {
+        return protocol.generateCRC(seed, ByteBuffer.wrap(next(wire)), CRC_BYTES);
+    }
+
+    @Benchmark
+    public boolean verifyMessage() {
+        return protocol.verifyMessage(seed, ByteBuffer.wrap(next(wire)), CRC_BYTES);
+    }
+
+    @Benchmark
+    public ByteBuffer decrypt() {
+        ByteBuffer buffer = copy(next(wire));
+        protocol.decrypt(seed, buffer, OFFSET);
+        return buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer encrypt() {
+        ByteBuffer buffer = copy(next(plain));
+        protocol.encrypt(seed, buffer, OFFSET);
+        return buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer compress() {
+        return protocol.compress(ByteBuffer.wrap(next(plain)), OFFSET);
+    }
+
+    @Benchmark
+    public ByteBuffer decompress() {
+        if (compressed.length == 0) {
+            return null;
+        }
+        return protocol.decompress(ByteBuffer.wrap(next(compressed)), OFFSET);
+    }
+
+    private ByteBuffer encodePacket(ByteBuffer buffer) {
+        buffer = protocol.encode(seed, buffer, true);
+        protocol.appendCRC(seed, buffer, CRC_BYTES);
+        buffer.rewind();
+        return buffer;
+    }
+
+    private ByteBuffer encodePacket(byte[] packet) {
+        return encodePacket(ByteBuffer.wrap(packet.clone()));
+    }
+
+    private byte[] next(byte[][] packets) {
+        if (index >= packets.length) {
+            index = 0;
+        }
+        return packets[index++];
+    }
+
+    private ByteBuffer copy(byte[] packet) {
+        scratch.clear();
+        scratch.put(packet);
+        scratch.flip();
+        return scratch;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] array = new byte[buffer.remaining()];
+        buffer.get(array);
+        return array;
+    }
+}
@@ -0,0 +1,213 @@
+package com.ocdsoft.bacta.soe.chat;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.ocdsoft.bacta.soe.chat.message.ChatAgentRequests;
+import com.ocdsoft.bacta.soe.chat.message.ChatAgentResponses;
+import com.ocdsoft.bacta.soe.message.GameNetworkMessage;
+import com.ocdsoft.bacta.soe.util.SOECRC32;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Chat server end of the game server links. Requests of a {@link ChatAgentRequests} batch are handed to the handler
+ * registered for their message type and answered together in one {@link ChatAgentResponses}.
+ *
+ * A game server replays unanswered requests after it reconnects, so the latest responses of each link are kept by
+ * sequence. A request seen before is answered from there instead of being handled twice.
+ *
+ * Each game server picks a new link id when it starts, so the windows of links that stopped sending are dropped
+ * when a new link arrives: any idle longer than the link idle time, then the least recently seen while there are
+ * more than the link limit.
+ */
+@Singleton
+public class ChatAgentLinkService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChatAgentLinkService.class);
+
+    /**
+     * Responses kept per link for answering replays, a power of two
+     */
+    public static final int REPLAY_WINDOW = 4096;
+
+    public static final long DEFAULT_LINK_IDLE_MS = TimeUnit.MINUTES.toMillis(10);
+    public static final int DEFAULT_MAX_LINKS = 64;
+
+    private final TIntObjectMap<ChatAgentRequestHandler> handlers = new TIntObjectHashMap<>();
+    private final Map<Integer, Link> recentByLink = new ConcurrentHashMap<>();
+
+    private final long linkIdleMs;
+    private final int maxLinks;
+    private final LongSupplier clock;
+
+    private final LongAdder handled = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder linksDropped = new LongAdder();
+
+    @Inject
+    public ChatAgentLinkService() {
+        this(DEFAULT_LINK_IDLE_MS, DEFAULT_MAX_LINKS, System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock Milliseconds used to tell how long a link has been idle
+     */
+    public ChatAgentLinkService(final long linkIdleMs, final int maxLinks, final LongSupplier clock) {
+        this.linkIdleMs = linkIdleMs;
+        this.maxLinks = maxLinks;
+        this.clock = clock;
+    }
+
+    public synchronized void register(final int messageType, final ChatAgentRequestHandler handler) {
+        handlers.put(messageType, handler);
+    }
+
+    public void register(final Class<? extends GameNetworkMessage> messageClass, final ChatAgentRequestHandler handler) {
+        register(SOECRC32.hashCode(messageClass.getSimpleName()), handler);
+    }
+
+    /**
+     * Handles every request of a batch in order
+     * @return One response per request
+     */
+    public ChatAgentResponses handle(final ChatAgentRequests requests) {
+        final long now = clock.getAsLong();
+
+        Link link = recentByLink.get(requests.getLinkId());
+        if (link == null) {
+            link = addLink(requests.getLinkId(), now);
+        }
+        link.lastSeen = now;
+
+        final ChatAgentResponses.Response[] recent = link.recent;
+        final List<ChatAgentResponses.Response> responses = new ArrayList<>(requests.getRequests().size());
+
+        synchronized (recent) {
+            for (ChatAgentRequests.Request request : requests.getRequests()) {
+                final int slot = request.getSequence() & (REPLAY_WINDOW - 1);
+
+                ChatAgentResponses.Response response = recent[slot];
+                if (response != null && response.getSequence() == request.getSequence()) {
+                    replayed.increment();
+                } else {
+                    response = dispatch(request);
+                    recent[slot] = response;
+                    handled.increment();
+                }
+                responses.add(response);
+            }
+        }
+
+        return new ChatAgentResponses(responses);
+    }
+
+    /**
+     * Adds the window of a new link, after dropping the links that are no longer used
+     */
+    private synchronized Link addLink(final int linkId, final long now) {
+        final Link existing = recentByLink.get(linkId);
+        if (existing != null) {
+            return existing;
+        }
+
+        recentByLink.entrySet().removeIf(entry -> {
+            if (now - entry.getValue().lastSeen < linkIdleMs) {
+                return false;
+            }
+            logger.debug("Dropping idle chat agent link {}", entry.getKey());
+            linksDropped.increment();
+            return true;
+        });
+
+        while (!recentByLink.isEmpty() && recentByLink.size() >= maxLinks) {
+            Map.Entry<Integer, Link> oldest = null;
+            for (Map.Entry<Integer, Link> entry : recentByLink.entrySet()) {
+                if (oldest == null || entry.getValue().lastSeen < oldest.getValue().lastSeen) {
+                    oldest = entry;
+                }
+            }
+            logger.warn("Dropping chat agent link {} to make room for link {}", oldest.getKey(), linkId);
+            recentByLink.remove(oldest.getKey());
+            linksDropped.increment();
+        }
+
+        final Link link = new Link(now);
+        recentByLink.put(linkId, link);
+        return link;
+    }
+
+    private ChatAgentResponses.Response dispatch(final ChatAgentRequests.Request request) {
+        final ByteBuffer message = request.getMessage();
+        final ChatAgentRequestHandler handler;
+        synchronized (this) {
+            handler = message.remaining() >= 6 ? handlers.get(request.getMessageType()) : null;
+        }
+
+        if (handler == null) {
+            failed.increment();
+            logger.warn("No chat agent handler for request {}", request.getSequence());
+            return new ChatAgentResponses.Response(request.getSequence(), ChatResult.ROOM_UNKNOWN_FAILURE.getValue(), null);
+        }
+
+        try {
+            message.position(message.position() + 6);
+
+            final GameNetworkMessage reply = handler.handle(request.getAvatar(), message);
+            return new ChatAgentResponses.Response(request.getSequence(), ChatResult.SUCCESS.getValue(),
+                    reply != null ? reply.serialize() : null);
+
+        } catch (Exception e) {
+            failed.increment();
+            logger.error("Unable to handle chat agent request {}", request.getSequence(), e);
+            return new ChatAgentResponses.Response(request.getSequence(), ChatResult.ROOM_UNKNOWN_FAILURE.getValue(), null);
+        }
+    }
+
+    /**
+     * Forgets the responses of a link that is gone for good
+     */
+    public void removeLink(final int linkId) {
+        recentByLink.remove(linkId);
+    }
+
+    public long getHandled() {
+        return handled.sum();
+    }
+
+    public long getReplayed() {
+        return replayed.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getLinksDropped() {
+        return linksDropped.sum();
+    }
+
+    public int getLinkCount() {
+        return recentByLink.size();
+    }
+
+    private static final class Link {
+        private final ChatAgentResponses.Response[] recent = new ChatAgentResponses.Response[REPLAY_WINDOW];
+        private volatile long lastSeen;
+
+        private Link(final long lastSeen) {
+            this.lastSeen = lastSeen;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.ocdsoft.bacta.soe.chat;
+
+import com.ocdsoft.bacta.soe.message.GameNetworkMessage;
+import com.ocdsoft.bacta.soe.object.chat.ChatAvatarId;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Handles one type of request a game server sends over its {@link ChatAgentLinkService} link.
+ */
+@FunctionalInterface
+public interface ChatAgentRequestHandler {
+
+    /**
+     * @param avatar  The avatar the request is made for
+     * @param message The request, positioned after its priority and message type
+     * @return The reply to send back with the result, or null to send the result only
+     */
+    GameNetworkMessage handle(ChatAvatarId avatar, ByteBuffer message) throws Exception;
+}
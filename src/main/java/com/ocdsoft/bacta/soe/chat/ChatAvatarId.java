@@ -75,7 +75,7 @@ public final class ChatAvatarId {
         if (gameCode.length() > 0)
             stringBuilder.append(gameCode).append('.');
 
-        if (gameCode.length() > 0)
+        if (cluster.length() > 0)
             stringBuilder.append(cluster).append('.');
 
         stringBuilder.append(name);
@@ -99,12 +99,50 @@ public final class ChatAvatarId {
         int gameCodeLength = gameCode.length() > 0 ? gameCode.length() : localGameCode.length();
         int clusterLength = cluster.length() > 0 ? cluster.length() : localCluster.length();
 
-        final StringBuilder stringBuilder = new StringBuilder(gameCodeLength + clusterLength + name.length());
+        final StringBuilder stringBuilder = new StringBuilder(gameCodeLength + clusterLength + name.length() + 2);
 
         stringBuilder.append(gameCode.length() > 0 ? gameCode : localGameCode).append('.');
-        stringBuilder.append(gameCode.length() > 0 ? gameCode : localCluster).append('.');
+        stringBuilder.append(cluster.length() > 0 ? cluster : localCluster).append('.');
         stringBuilder.append(name);
 
         return stringBuilder.toString();
     }
+
+    /**
+     * Two ids are equal when their gameCode, cluster and name match without regard to case. Missing prefixes are not
+     * filled in, so "crush" and "swg.bacta.crush" are different ids.
+     */
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o)
+            return true;
+
+        if (!(o instanceof ChatAvatarId))
+            return false;
+
+        final ChatAvatarId other = (ChatAvatarId) o;
+        return name.equalsIgnoreCase(other.name)
+                && cluster.equalsIgnoreCase(other.cluster)
+                && gameCode.equalsIgnoreCase(other.gameCode);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        hash = lowerHash(hash, gameCode);
+        hash = lowerHash(31 * hash, cluster);
+        return lowerHash(31 * hash, name);
+    }
+
+    private static int lowerHash(int hash, final String value) {
+        for (int i = 0; i < value.length(); ++i) {
+            hash = 31 * hash + Character.toLowerCase(value.charAt(i));
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return getFullName();
+    }
 }
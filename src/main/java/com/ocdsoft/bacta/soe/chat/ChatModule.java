@@ -1,12 +1,22 @@
 package com.ocdsoft.bacta.soe.chat;
 
+import java.util.concurrent.CompletionStage;
+
 /**
  * Created by crush on 1/12/2015.
+ *
+ * Every call returns at once and completes its stage when the chat backend has answered, so a slow external chat
+ * network never holds up the thread that made the call. Stages complete with a {@link ChatResult}, TIMEOUT if the
+ * backend did not answer in time.
  */
 public interface ChatModule {
-    void register(ChatAvatarId avatarId);
-    void connect(ChatAvatarId avatarId, String password);
-    void disconnect(ChatAvatarId avatarId);
+    CompletionStage<ChatResult> register(ChatAvatarId avatarId);
+    CompletionStage<ChatResult> connect(ChatAvatarId avatarId, String password);
+    CompletionStage<ChatResult> disconnect(ChatAvatarId avatarId);
+
+    CompletionStage<ChatResult> enterRoom(ChatAvatarId avatarId, String roomAddress);
+    CompletionStage<ChatResult> leaveRoom(ChatAvatarId avatarId, String roomAddress);
+    CompletionStage<ChatResult> sendToRoom(ChatAvatarId avatarId, String roomAddress, String message);
 
 
 
@@ -1,15 +1,42 @@
 package com.ocdsoft.bacta.soe.chat;
 
+import lombok.Getter;
+
 /**
  * Created by crush on 1/12/2015.
+ *
+ * A persistent message as sent to the client. Headers leave out the message and out of band text.
  */
+@Getter
 public class ChatPersistentMessageToClientData {
-    private ChatAvatarId from;
-    private int id;
-    private boolean isHeader;
-    private String message; //utf
-    private String subject; //utf
-    private String outOfBand; //utf
-    private char status;
-    private int timeStamp;
+    public static final char STATUS_NEW = 'N';
+    public static final char STATUS_UNREAD = 'U';
+    public static final char STATUS_READ = 'R';
+
+    private final ChatAvatarId from;
+    private final int id;
+    private final boolean isHeader;
+    private final String message; //utf
+    private final String subject; //utf
+    private final String outOfBand; //utf
+    private final char status;
+    private final int timeStamp;
+
+    public ChatPersistentMessageToClientData(final ChatAvatarId from,
+                                             final int id,
+                                             final boolean isHeader,
+                                             final String message,
+                                             final String subject,
+                                             final String outOfBand,
+                                             final char status,
+                                             final int timeStamp) {
+        this.from = from;
+        this.id = id;
+        this.isHeader = isHeader;
+        this.message = message;
+        this.subject = subject;
+        this.outOfBand = outOfBand;
+        this.status = status;
+        this.timeStamp = timeStamp;
+    }
 }
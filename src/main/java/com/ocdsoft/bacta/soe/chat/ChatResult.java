@@ -2,6 +2,36 @@ package com.ocdsoft.bacta.soe.chat;
 
 /**
  * Created by crush on 1/12/2015.
+ *
+ * Result codes returned to the client in the ChatOn* responses.
  */
 public enum ChatResult {
+    SUCCESS(0),
+    TIMEOUT(1),
+    DUPLICATE_LOGIN(2),
+    SRC_AVATAR_DOESNT_EXIST(3),
+    DEST_AVATAR_DOESNT_EXIST(4),
+    ADDRESS_DOESNT_EXIST(5),
+    ADDRESS_NOT_ROOM(6),
+    ADDRESS_NOT_AID(7),
+    FRIEND_NOT_FOUND(8),
+    ROOM_UNKNOWN_FAILURE(9),
+    ROOM_SRC_NOT_IN_ROOM(10),
+    ROOM_DEST_NOT_IN_ROOM(11),
+    ROOM_BANNED_AVATAR(12),
+    ROOM_PRIVATE_ROOM(13),
+    ROOM_MODERATED_ROOM(14),
+    ROOM_NOT_IN_ROOM(15),
+    ROOM_NO_PRIVILEGES(16),
+    DATABASE(17);
+
+    private final int value;
+
+    ChatResult(final int value) {
+        this.value = value;
+    }
+
+    public int getValue() {
+        return value;
+    }
 }
@@ -9,6 +9,8 @@ import com.ocdsoft.bacta.soe.ServerType;
 import com.ocdsoft.bacta.soe.io.udp.NetworkConfiguration;
 import com.ocdsoft.bacta.soe.io.udp.SoeTransceiver;
 import com.ocdsoft.bacta.soe.router.SoeDevelopMessageRouter;
+import com.ocdsoft.bacta.soe.service.SessionKeyService;
+import com.ocdsoft.bacta.soe.service.SessionResumeService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,9 +36,7 @@ public final class ChatServer implements Runnable {
                       final Injector injector,
                       final MetricRegistry metricRegistry) throws
             ClassNotFoundException,
-            IllegalAccessException,
-            UnknownHostException,
-            InstantiationException {
+            UnknownHostException {
 
         this.serverState = serverState;
 
@@ -66,8 +66,8 @@ public final class ChatServer implements Runnable {
                     MailModule.class.getName()));
         }
 
-        this.chatModule = (ChatModule) chatModuleClass.newInstance();
-        this.mailModule = (MailModule) mailModuleClass.newInstance();
+        this.chatModule = (ChatModule) injector.getInstance(chatModuleClass);
+        this.mailModule = (MailModule) injector.getInstance(mailModuleClass);
 
         final Collection<String> swgControllerClasspaths = configuration.getStringCollection("Bacta/ChatServer", "swgControllerClasspaths");
 
@@ -80,7 +80,9 @@ public final class ChatServer implements Runnable {
                 bindPort,
                 ServerType.CHAT,
                 this.router,
-                configuration.getStringCollection("Bacta/ChatServer", "trustedClient"));
+                configuration.getStringCollection("Bacta/ChatServer", "trustedClient"),
+                injector.getInstance(SessionKeyService.class),
+                injector.getInstance(SessionResumeService.class));
     }
 
     @Override
@@ -3,40 +3,380 @@ package com.ocdsoft.bacta.soe.chat;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.ocdsoft.bacta.engine.conf.BactaConfiguration;
+import com.ocdsoft.bacta.engine.network.client.ConnectionState;
+import com.ocdsoft.bacta.soe.chat.message.ChatAgentRequests;
+import com.ocdsoft.bacta.soe.chat.message.ChatAgentResponses;
 import com.ocdsoft.bacta.soe.connection.SoeUdpConnection;
+import com.ocdsoft.bacta.soe.io.udp.NetworkConfiguration;
+import com.ocdsoft.bacta.soe.message.GameNetworkMessage;
+import com.ocdsoft.bacta.soe.message.TerminateReason;
+import com.ocdsoft.bacta.soe.object.chat.ChatAvatarId;
 import com.ocdsoft.bacta.soe.service.OutgoingConnectionService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by crush on 2/1/15.
+ *
+ * The game server end of the link to the chat server. Requests are queued with {@link #request} and sent in
+ * {@link ChatAgentRequests} batches on every flush, without waiting for earlier requests to be answered. Answers are
+ * matched to their request by sequence and complete its future.
+ *
+ * Requests stay in flight until answered, or until the request timeout passes and they complete with TIMEOUT.
+ * When the connection drops, the link reconnects and sends every request that was already sent again, ahead of new
+ * ones; the chat server answers repeats from its {@link ChatAgentLinkService} window instead of handling them twice.
+ * That window holds one response per sequence modulo its size, so a new sequence is only taken once the request a
+ * whole window older is answered or timed out; until then, and beyond the in-flight limit, requests are refused with
+ * ROOM_UNKNOWN_FAILURE. Refused requests do not use up a sequence.
+ *
+ * A batch is kept within one reliable packet so it is never fragmented.
  */
 @Singleton
 public final class ChatServerAgentService {
     private static final Logger logger = LoggerFactory.getLogger(ChatServerAgentService.class);
 
-    private final SoeUdpConnection chatServerConnection;
+    private final OutgoingConnectionService connectionService;
+    private final NetworkConfiguration networkConfiguration;
+    private final InetSocketAddress chatServerAddress;
+
+    private final int linkId;
+    private final int maxBatchBytes;
+    private final long reconnectDelayMs;
+    private final long requestTimeoutMs;
+    private final Semaphore inFlightPermits;
+
+    private int lastSequence;
+    private final Queue<PendingRequest> outbox = new ConcurrentLinkedQueue<>();
+    private final Map<Integer, PendingRequest> inFlight = new ConcurrentHashMap<>();
+
+    private volatile SoeUdpConnection chatServerConnection;
+    private volatile boolean replayNeeded;
+    private long nextConnectAttempt;
+
+    private final ScheduledExecutorService linkExecutor;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
 
     @Inject
     public ChatServerAgentService(final BactaConfiguration configuration,
+                                  final NetworkConfiguration networkConfiguration,
                                   final OutgoingConnectionService connectionService) {
 
+        this(connectionService,
+                networkConfiguration,
+                new InetSocketAddress(
+                        configuration.getString("Bacta/GameServer", "chatServerAddress"),
+                        configuration.getInt("Bacta/GameServer", "chatServerPort")),
+                configuration.getIntWithDefault("Bacta/GameServer", "chatLinkFlushIntervalMs", 10),
+                configuration.getIntWithDefault("Bacta/GameServer", "chatLinkMaxBatchBytes", 4096),
+                configuration.getIntWithDefault("Bacta/GameServer", "chatLinkReconnectMs", 5000),
+                configuration.getIntWithDefault("Bacta/GameServer", "chatLinkRequestTimeoutMs", 30000),
+                configuration.getIntWithDefault("Bacta/GameServer", "chatLinkMaxInFlight", ChatAgentLinkService.REPLAY_WINDOW));
+    }
+
+    /**
+     * @param flushIntervalMs How often queued requests are sent, or 0 to only send them on {@link #flush()}
+     * @param maxBatchBytes Request bytes per batch, lowered to what fits in one reliable packet
+     * @param maxInFlight Unanswered requests allowed at once, at most {@link ChatAgentLinkService#REPLAY_WINDOW}
+     */
+    public ChatServerAgentService(final OutgoingConnectionService connectionService,
+                                  final NetworkConfiguration networkConfiguration,
+                                  final InetSocketAddress chatServerAddress,
+                                  final long flushIntervalMs,
+                                  final int maxBatchBytes,
+                                  final long reconnectDelayMs,
+                                  final long requestTimeoutMs,
+                                  final int maxInFlight) {
+
         logger.debug("Initializing.");
 
-        final InetSocketAddress chatServerAddress = new InetSocketAddress(
-                configuration.getString("Bacta/GameServer", "chatServerAddress"),
-                configuration.getInt("Bacta/GameServer", "chatServerPort"));
+        this.connectionService = connectionService;
+        this.networkConfiguration = networkConfiguration;
+        this.chatServerAddress = chatServerAddress;
+        this.linkId = ThreadLocalRandom.current().nextInt();
+        this.maxBatchBytes = Math.min(maxBatchBytes, networkConfiguration.getMaxReliablePayload() - ChatAgentRequests.BATCH_OVERHEAD);
+        this.reconnectDelayMs = reconnectDelayMs;
+        this.requestTimeoutMs = requestTimeoutMs;
+        this.inFlightPermits = new Semaphore(Math.min(maxInFlight, ChatAgentLinkService.REPLAY_WINDOW));
 
-        this.chatServerConnection = connectionService.createOutgoingConnection(
-                chatServerAddress,
-                this::onConnected);
+        if (flushIntervalMs > 0) {
+            linkExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "Chat Server Link");
+                thread.setDaemon(true);
+                return thread;
+            });
+            linkExecutor.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        } else {
+            linkExecutor = null;
+        }
 
         logger.debug("Done initializing.");
     }
 
-    private final void onConnected(final SoeUdpConnection connection) {
+    /**
+     * Queues a request made for an avatar. It is sent with the next batch.
+     * @return Completes with the chat server's answer, with TIMEOUT if none came in time, or with
+     * ROOM_UNKNOWN_FAILURE if too many requests were already in flight
+     */
+    public CompletableFuture<ChatAgentResponses.Response> request(final ChatAvatarId avatar, final GameNetworkMessage message) {
+        final ByteBuffer serialized = message.serialize();
+        final PendingRequest pending;
+
+        synchronized (inFlight) {
+            final int sequence = lastSequence + 1;
+
+            // The chat server would answer this sequence from the older request's slot, so it waits its turn
+            if (inFlight.containsKey(sequence - ChatAgentLinkService.REPLAY_WINDOW) || !inFlightPermits.tryAcquire()) {
+                rejected.increment();
+                logger.warn("Refusing chat server request {}, {} requests are in flight.", sequence, inFlight.size());
+                return CompletableFuture.completedFuture(
+                        new ChatAgentResponses.Response(sequence, ChatResult.ROOM_UNKNOWN_FAILURE.getValue(), null));
+            }
+
+            lastSequence = sequence;
+            pending = new PendingRequest(
+                    new ChatAgentRequests.Request(sequence, avatar, serialized), System.currentTimeMillis());
+            inFlight.put(sequence, pending);
+        }
+
+        outbox.add(pending);
+        requests.increment();
+        return pending.future;
+    }
+
+    /**
+     * Completes the requests answered by a batch from the chat server
+     */
+    public void onResponses(final ChatAgentResponses responses) {
+        for (ChatAgentResponses.Response response : responses.getResponses()) {
+            final PendingRequest pending = inFlight.remove(response.getSequence());
+            if (pending != null) {
+                inFlightPermits.release();
+                pending.future.complete(response);
+            }
+        }
+    }
+
+    /**
+     * Connects if needed and sends what is queued: first the replay after a reconnect, then new requests.
+     * Called from the link thread, so only one flush runs at a time.
+     */
+    public synchronized void flush() {
+        expire();
+
+        final SoeUdpConnection connection = chatServerConnection;
+
+        if (connection == null || connection.getState() == ConnectionState.DISCONNECTED) {
+            connect();
+            return;
+        }
+
+        if (connection.getState() != ConnectionState.ONLINE) {
+            // Still waiting for the chat server to confirm; try again once the reconnect delay has passed
+            connect();
+            return;
+        }
+
+        if (replayNeeded) {
+            replayNeeded = false;
+
+            final List<PendingRequest> replay = new ArrayList<>();
+            for (PendingRequest pending : inFlight.values()) {
+                if (pending.sent) {
+                    replay.add(pending);
+                }
+            }
+            replay.sort(Comparator.comparingInt(pending -> pending.request.getSequence()));
+
+            replayed.add(replay.size());
+            send(connection, replay.iterator());
+        }
+
+        send(connection, new Iterator<PendingRequest>() {
+            private PendingRequest next = outbox.poll();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public PendingRequest next() {
+                final PendingRequest current = next;
+                next = outbox.poll();
+                return current;
+            }
+        });
+    }
+
+    /**
+     * Completes requests that have waited longer than the request timeout with TIMEOUT
+     */
+    private void expire() {
+        final long now = System.currentTimeMillis();
+        for (PendingRequest pending : inFlight.values()) {
+            if (now - pending.created >= requestTimeoutMs && remove(pending)) {
+                timedOut.increment();
+                pending.future.complete(new ChatAgentResponses.Response(
+                        pending.request.getSequence(), ChatResult.TIMEOUT.getValue(), null));
+            }
+        }
+    }
+
+    private boolean remove(final PendingRequest pending) {
+        if (!inFlight.remove(pending.request.getSequence(), pending)) {
+            return false;
+        }
+        inFlightPermits.release();
+        return true;
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            logger.error("Unable to flush chat server link", e);
+        }
+    }
+
+    /**
+     * Packs requests into batches of at most maxBatchBytes. A request larger than that is sent on its own and
+     * fragmented. Requests whose future was cancelled or has timed out are dropped.
+     */
+    private void send(final SoeUdpConnection connection, final Iterator<PendingRequest> pendingRequests) {
+        List<ChatAgentRequests.Request> batch = new ArrayList<>();
+        int batchBytes = 0;
+
+        while (pendingRequests.hasNext()) {
+            final PendingRequest pending = pendingRequests.next();
+            if (pending.future.isDone()) {
+                remove(pending);
+                continue;
+            }
+
+            final int size = pending.request.getEncodedSize();
+            if (!batch.isEmpty() && batchBytes + size > maxBatchBytes) {
+                sendBatch(connection, batch);
+                batch = new ArrayList<>();
+                batchBytes = 0;
+            }
+
+            batch.add(pending.request);
+            batchBytes += size;
+            pending.sent = true;
+        }
+
+        if (!batch.isEmpty()) {
+            sendBatch(connection, batch);
+        }
+    }
+
+    private void sendBatch(final SoeUdpConnection connection, final List<ChatAgentRequests.Request> batch) {
+        connection.sendMessage(new ChatAgentRequests(linkId, batch));
+        batches.increment();
+    }
+
+    private void connect() {
+        final long now = System.currentTimeMillis();
+        if (now < nextConnectAttempt) {
+            return;
+        }
+        nextConnectAttempt = now + reconnectDelayMs;
+
+        final SoeUdpConnection connection = connectionService.createOutgoingConnection(chatServerAddress, this::onConnected);
+        if (connection == null) {
+            return;
+        }
+
+        final SoeUdpConnection previous = chatServerConnection;
+        if (previous != null) {
+            reconnects.increment();
+            logger.info("Reconnecting to the chat server with {} requests in flight.", inFlight.size());
+
+            // An attempt the chat server never confirmed is given up, rather than left open next to the new one
+            if (previous.getState() != ConnectionState.DISCONNECTED) {
+                previous.terminate(TerminateReason.NEWATTEMPT);
+            }
+        }
+
+        chatServerConnection = connection;
+        connection.connect(networkConfiguration.getProtocolVersion(), connection.getId(), networkConfiguration.getMaxRawPacketSize());
+    }
+
+    private void onConnected(final SoeUdpConnection connection) {
+        if (connection != chatServerConnection) {
+            return;
+        }
         logger.info("Connected to the chat server.");
+        replayNeeded = true;
+    }
+
+    public void close() {
+        if (linkExecutor != null) {
+            linkExecutor.shutdown();
+        }
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    public long getReplayed() {
+        return replayed.sum();
+    }
+
+    public long getReconnects() {
+        return reconnects.sum();
+    }
+
+    public long getTimedOut() {
+        return timedOut.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    private static final class PendingRequest {
+        private final ChatAgentRequests.Request request;
+        private final long created;
+        private final CompletableFuture<ChatAgentResponses.Response> future = new CompletableFuture<>();
+        private volatile boolean sent;
+
+        private PendingRequest(final ChatAgentRequests.Request request, final long created) {
+            this.request = request;
+            this.created = created;
+        }
     }
 }
@@ -1,7 +1,58 @@
 package com.ocdsoft.bacta.soe.chat;
 
+import lombok.Getter;
+
+import java.util.List;
+
 /**
  * Created by crush on 1/12/2015.
  */
 public interface MailModule {
+
+    /**
+     * Stores a persistent message in the mailbox of {@code to}
+     * @return The id of the new message, or the reason it was refused
+     */
+    SendResult sendPersistentMessage(ChatAvatarId from, ChatAvatarId to, String subject, String message, String outOfBand);
+
+    /**
+     * @return Headers of every message in the avatar's mailbox, without their bodies
+     */
+    List<ChatPersistentMessageToClientData> getMessageHeaders(ChatAvatarId owner);
+
+    /**
+     * Fetches a whole message and marks it read
+     * @return The message, or null if the avatar has no message with this id
+     */
+    ChatPersistentMessageToClientData getMessage(ChatAvatarId owner, int messageId);
+
+    boolean deleteMessage(ChatAvatarId owner, int messageId);
+
+    /**
+     * @return Number of messages deleted
+     */
+    int deleteAllMessages(ChatAvatarId owner);
+
+    final class SendResult {
+        @Getter
+        private final ChatResult result;
+        /**
+         * Id of the new message, 0 if it was refused
+         */
+        @Getter
+        private final int messageId;
+
+        private SendResult(final ChatResult result, final int messageId) {
+            this.result = result;
+            this.messageId = messageId;
+        }
+
+        public static SendResult sent(final int messageId) {
+            return new SendResult(ChatResult.SUCCESS, messageId);
+        }
+
+        public static SendResult refused(final ChatResult result) {
+            return new SendResult(result, 0);
+        }
+    }
 }
@@ -0,0 +1,30 @@
+package com.ocdsoft.bacta.soe.chat.controller;
+
+import com.google.inject.Inject;
+import com.ocdsoft.bacta.soe.GameNetworkMessageController;
+import com.ocdsoft.bacta.soe.GameNetworkMessageHandled;
+import com.ocdsoft.bacta.soe.RolesAllowed;
+import com.ocdsoft.bacta.soe.chat.ChatAgentLinkService;
+import com.ocdsoft.bacta.soe.chat.message.ChatAgentRequests;
+import com.ocdsoft.bacta.soe.connection.ConnectionRole;
+import com.ocdsoft.bacta.soe.connection.SoeUdpConnection;
+
+/**
+ * Answers a game server's batch of requests with one batch of responses.
+ */
+@GameNetworkMessageHandled(ChatAgentRequests.class)
+@RolesAllowed({ConnectionRole.WHITELISTED})
+public class ChatAgentRequestsController implements GameNetworkMessageController<ChatAgentRequests> {
+
+    private final ChatAgentLinkService linkService;
+
+    @Inject
+    public ChatAgentRequestsController(final ChatAgentLinkService linkService) {
+        this.linkService = linkService;
+    }
+
+    @Override
+    public void handleIncoming(final SoeUdpConnection connection, final ChatAgentRequests message) throws Exception {
+        connection.sendMessage(linkService.handle(message));
+    }
+}
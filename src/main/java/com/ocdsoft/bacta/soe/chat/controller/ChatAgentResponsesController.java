@@ -0,0 +1,30 @@
+package com.ocdsoft.bacta.soe.chat.controller;
+
+import com.google.inject.Inject;
+import com.ocdsoft.bacta.soe.GameNetworkMessageController;
+import com.ocdsoft.bacta.soe.GameNetworkMessageHandled;
+import com.ocdsoft.bacta.soe.RolesAllowed;
+import com.ocdsoft.bacta.soe.chat.ChatServerAgentService;
+import com.ocdsoft.bacta.soe.chat.message.ChatAgentResponses;
+import com.ocdsoft.bacta.soe.connection.ConnectionRole;
+import com.ocdsoft.bacta.soe.connection.SoeUdpConnection;
+
+/**
+ * Hands the chat server's answers to the game server's link.
+ */
+@GameNetworkMessageHandled(ChatAgentResponses.class)
+@RolesAllowed({ConnectionRole.WHITELISTED})
+public class ChatAgentResponsesController implements GameNetworkMessageController<ChatAgentResponses> {
+
+    private final ChatServerAgentService agentService;
+
+    @Inject
+    public ChatAgentResponsesController(final ChatServerAgentService agentService) {
+        this.agentService = agentService;
+    }
+
+    @Override
+    public void handleIncoming(final SoeUdpConnection connection, final ChatAgentResponses message) throws Exception {
+        agentService.onResponses(message);
+    }
+}
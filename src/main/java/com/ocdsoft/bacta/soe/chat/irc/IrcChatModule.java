@@ -1,26 +1,925 @@
 package com.ocdsoft.bacta.soe.chat.irc;
 
+import com.google.inject.Inject;
+import com.ocdsoft.bacta.engine.conf.BactaConfiguration;
 import com.ocdsoft.bacta.soe.chat.ChatAvatarId;
 import com.ocdsoft.bacta.soe.chat.ChatModule;
+import com.ocdsoft.bacta.soe.chat.ChatResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 /**
  * Created by crush on 1/12/2015.
  *
  * IrcChatModule connects the ChatServer to an external IRC server.
+ *
+ * Avatars do not get a connection each. A few relay connections are opened to the IRC server and every avatar is
+ * assigned to one of them by hashing its name. A relay joins a room's channel once, however many of its avatars are
+ * in the room, and speaks for them as {@code <name> message}.
+ *
+ * All sockets are non-blocking and owned by one bridge thread. Calls only queue a command for that thread and return,
+ * and their stage completes when the IRC server has answered: a JOIN when the server echoes it, a message once it is
+ * written to the socket. Anything that takes longer than the timeout completes with {@link ChatResult#TIMEOUT}, and
+ * messages are refused with TIMEOUT while a relay has too much unsent output. Stages complete on the bridge thread, so
+ * their callbacks must not block.
+ *
+ * Relays that drop are reconnected and rejoin their channels.
  */
 public class IrcChatModule implements ChatModule {
+    private static final Logger logger = LoggerFactory.getLogger(IrcChatModule.class);
+
+    /**
+     * Longest IRC line, not counting the CRLF
+     */
+    private static final int MAX_LINE = 510;
+
+    /**
+     * Receives messages said in IRC channels by anyone other than the relays
+     */
+    public interface RoomMessageListener {
+        /**
+         * Called on the bridge thread
+         * @param roomAddress Address of the room, in lower case
+         */
+        void onRoomMessage(String roomAddress, String sender, String message);
+    }
+
+    private final InetSocketAddress serverAddress;
+    private final String nickPrefix;
+    private final long timeoutMs;
+    private final long reconnectDelayMs;
+    private final int maxPendingBytes;
+    private final long tickMs;
+
+    private final Selector selector;
+    private final Relay[] relays;
+    private final Queue<Runnable> commands = new ConcurrentLinkedQueue<>();
+    private final Thread bridgeThread;
+    private volatile boolean running = true;
+    private volatile RoomMessageListener listener;
+
+    /**
+     * Avatar name to its relay, only touched on the bridge thread
+     */
+    private final Map<String, Relay> avatars = new HashMap<>();
+
+    private final LongAdder linesSent = new LongAdder();
+    private final LongAdder linesReceived = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+
+    @Inject
+    public IrcChatModule(final BactaConfiguration configuration) throws IOException {
+        this(new InetSocketAddress(
+                        configuration.getStringWithDefault("Bacta/ChatServer", "ircHost", "127.0.0.1"),
+                        configuration.getIntWithDefault("Bacta/ChatServer", "ircPort", 6667)),
+                configuration.getIntWithDefault("Bacta/ChatServer", "ircConnections", 2),
+                configuration.getStringWithDefault("Bacta/ChatServer", "ircNickPrefix", "bacta"),
+                configuration.getIntWithDefault("Bacta/ChatServer", "ircTimeoutMs", 10000),
+                configuration.getIntWithDefault("Bacta/ChatServer", "ircReconnectMs", 5000),
+                configuration.getIntWithDefault("Bacta/ChatServer", "ircMaxPendingBytes", 256 * 1024));
+    }
+
+    /**
+     * @param connections Relay connections to open to the IRC server
+     * @param nickPrefix Relays are named this followed by their index
+     * @param maxPendingBytes Unsent output a relay may hold before messages are refused
+     */
+    public IrcChatModule(final InetSocketAddress serverAddress,
+                         final int connections,
+                         final String nickPrefix,
+                         final long timeoutMs,
+                         final long reconnectDelayMs,
+                         final int maxPendingBytes) throws IOException {
+
+        this.serverAddress = serverAddress;
+        this.nickPrefix = nickPrefix;
+        this.timeoutMs = timeoutMs;
+        this.reconnectDelayMs = reconnectDelayMs;
+        this.maxPendingBytes = maxPendingBytes;
+        this.tickMs = Math.max(10, Math.min(100, timeoutMs / 4));
+
+        selector = Selector.open();
+        relays = new Relay[Math.max(1, connections)];
+        for (int i = 0; i < relays.length; ++i) {
+            relays[i] = new Relay(i);
+        }
+
+        bridgeThread = new Thread(this::run, "IRC Bridge");
+        bridgeThread.setDaemon(true);
+        bridgeThread.start();
+
+        logger.info("Bridging chat to IRC at {} over {} connections.", serverAddress, relays.length);
+    }
+
+    public void setRoomMessageListener(final RoomMessageListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Nothing is registered with the IRC server, avatars only exist while connected
+     */
     @Override
-    public void register(ChatAvatarId avatarId) {
+    public CompletionStage<ChatResult> register(final ChatAvatarId avatarId) {
+        return CompletableFuture.completedFuture(ChatResult.SUCCESS);
+    }
+
+    /**
+     * Assigns the avatar to its relay. Completes once that relay is registered with the IRC server.
+     */
+    @Override
+    public CompletionStage<ChatResult> connect(final ChatAvatarId avatarId, final String password) {
+        final String avatar = keyOf(avatarId);
+        return submit(future -> {
+            if (avatars.containsKey(avatar)) {
+                future.complete(ChatResult.DUPLICATE_LOGIN);
+                return;
+            }
+
+            final Relay relay = relays[(avatar.hashCode() & Integer.MAX_VALUE) % relays.length];
+            avatars.put(avatar, relay);
+
+            if (relay.registered) {
+                future.complete(ChatResult.SUCCESS);
+            } else {
+                relay.pendingRegistration.add(new Pending(future, () -> dropAvatar(avatar, relay)));
+            }
+        });
+    }
 
+    @Override
+    public CompletionStage<ChatResult> disconnect(final ChatAvatarId avatarId) {
+        final String avatar = keyOf(avatarId);
+        return submit(future -> {
+            final Relay relay = avatars.get(avatar);
+            if (relay == null) {
+                future.complete(ChatResult.SRC_AVATAR_DOESNT_EXIST);
+                return;
+            }
+            dropAvatar(avatar, relay);
+            future.complete(ChatResult.SUCCESS);
+        });
     }
 
+    /**
+     * Completes when the IRC server confirms the relay is in the channel, at once if it already was
+     */
     @Override
-    public void connect(ChatAvatarId avatarId, String password) {
+    public CompletionStage<ChatResult> enterRoom(final ChatAvatarId avatarId, final String roomAddress) {
+        final String avatar = keyOf(avatarId);
+        final String channel = channelOf(roomAddress);
+        return submit(future -> {
+            final Relay relay = avatars.get(avatar);
+            if (relay == null) {
+                future.complete(ChatResult.SRC_AVATAR_DOESNT_EXIST);
+                return;
+            }
+            relay.join(avatar, channel, future);
+        });
+    }
 
+    @Override
+    public CompletionStage<ChatResult> leaveRoom(final ChatAvatarId avatarId, final String roomAddress) {
+        final String avatar = keyOf(avatarId);
+        final String channel = channelOf(roomAddress);
+        return submit(future -> {
+            final Relay relay = avatars.get(avatar);
+            if (relay == null) {
+                future.complete(ChatResult.SRC_AVATAR_DOESNT_EXIST);
+                return;
+            }
+            future.complete(relay.leave(avatar, channel) ? ChatResult.SUCCESS : ChatResult.ROOM_NOT_IN_ROOM);
+        });
     }
 
+    /**
+     * Completes once the message is written to the relay's socket
+     */
     @Override
-    public void disconnect(ChatAvatarId avatarId) {
+    public CompletionStage<ChatResult> sendToRoom(final ChatAvatarId avatarId, final String roomAddress, final String message) {
+        final String avatar = keyOf(avatarId);
+        final String channel = channelOf(roomAddress);
+        final String line = "PRIVMSG " + channel + " :<" + clean(avatarId.getName()) + "> " + clean(message);
+        return submit(future -> {
+            final Relay relay = avatars.get(avatar);
+            if (relay == null) {
+                future.complete(ChatResult.SRC_AVATAR_DOESNT_EXIST);
+                return;
+            }
+
+            final Set<String> members = relay.members.get(channel);
+            if (members == null || !members.contains(avatar)) {
+                future.complete(ChatResult.ROOM_SRC_NOT_IN_ROOM);
+            } else if (!relay.joined.contains(channel)) {
+                // The relay is reconnecting or still joining
+                timeouts.increment();
+                future.complete(ChatResult.TIMEOUT);
+            } else {
+                relay.write(line, future);
+            }
+        });
+    }
+
+    /**
+     * Stops the bridge thread and closes the relays. Calls still waiting complete with TIMEOUT.
+     */
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            bridgeThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getConnectionCount() {
+        return relays.length;
+    }
+
+    public long getLinesSent() {
+        return linesSent.sum();
+    }
+
+    public long getLinesReceived() {
+        return linesReceived.sum();
+    }
+
+    public long getShed() {
+        return shed.sum();
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    public long getReconnects() {
+        return reconnects.sum();
+    }
+
+    private CompletionStage<ChatResult> submit(final Consumer<CompletableFuture<ChatResult>> command) {
+        final CompletableFuture<ChatResult> future = new CompletableFuture<>();
+        if (!running) {
+            future.complete(ChatResult.TIMEOUT);
+            return future;
+        }
+
+        final Runnable queued = () -> command.accept(future);
+        commands.add(queued);
+        if (!running && commands.remove(queued)) {
+            // Closed after the check above, the bridge thread may already be gone
+            future.complete(ChatResult.TIMEOUT);
+            return future;
+        }
+
+        selector.wakeup();
+        return future;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select(tickMs);
+                runCommands();
+
+                final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    final SelectionKey key = iterator.next();
+                    iterator.remove();
+                    ((Relay) key.attachment()).handle(key);
+                }
+
+                final long now = now();
+                for (Relay relay : relays) {
+                    relay.tick(now);
+                }
+            } catch (Exception e) {
+                logger.error("IRC bridge failed", e);
+            }
+        }
+
+        runCommands();
+        for (Relay relay : relays) {
+            relay.close("bridge closed", false);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.warn("Unable to close IRC bridge selector", e);
+        }
+        logger.info("IRC bridge stopped.");
+    }
+
+    private void runCommands() {
+        Runnable command;
+        while ((command = commands.poll()) != null) {
+            try {
+                command.run();
+            } catch (Exception e) {
+                logger.error("IRC bridge command failed", e);
+            }
+        }
+    }
+
+    private void dropAvatar(final String avatar, final Relay relay) {
+        if (!avatars.remove(avatar, relay)) {
+            return;
+        }
+        for (String channel : new ArrayList<>(relay.members.keySet())) {
+            relay.leave(avatar, channel);
+        }
+    }
+
+    /**
+     * Each channel's messages are passed on by the first relay in it, so they are seen once however many relays joined
+     */
+    private boolean isDeliveringRelay(final Relay relay, final String channel) {
+        for (Relay candidate : relays) {
+            if (candidate.joined.contains(channel)) {
+                return candidate == relay;
+            }
+        }
+        return false;
+    }
+
+    private boolean isRelayNick(final String nick) {
+        for (Relay relay : relays) {
+            if (relay.nick.equalsIgnoreCase(nick)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String keyOf(final ChatAvatarId avatarId) {
+        return avatarId.getFullName().toLowerCase(Locale.ROOT);
+    }
+
+    private static String channelOf(final String roomAddress) {
+        final StringBuilder builder = new StringBuilder(roomAddress.length() + 1).append('#');
+        for (int i = 0; i < roomAddress.length(); ++i) {
+            final char c = Character.toLowerCase(roomAddress.charAt(i));
+            builder.append(c == ' ' || c == ',' || c == '\u0007' || c < ' ' ? '_' : c);
+        }
+        return builder.toString();
+    }
+
+    private static String clean(final String text) {
+        return text.replace('\r', ' ').replace('\n', ' ');
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Encodes a line with its CRLF, cut at a character boundary if it is too long for IRC
+     */
+    private static ByteBuffer encode(final String line) {
+        final byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, MAX_LINE);
+        while (length < bytes.length && length > 0 && (bytes[length] & 0xC0) == 0x80) {
+            --length;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(length + 2);
+        buffer.put(bytes, 0, length).put((byte) '\r').put((byte) '\n');
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * A call waiting on the IRC server. If it fails, its rollback undoes what the call had already changed.
+     */
+    private final class Pending {
+        private final CompletableFuture<ChatResult> future;
+        private final Runnable rollback;
+        private final long deadline = now() + timeoutMs;
+
+        private Pending(final CompletableFuture<ChatResult> future, final Runnable rollback) {
+            this.future = future;
+            this.rollback = rollback;
+        }
+
+        private void fail(final ChatResult result) {
+            if (future.complete(result) && rollback != null) {
+                rollback.run();
+            }
+        }
+    }
+
+    private static final class Write {
+        private final ByteBuffer buffer;
+        private final CompletableFuture<ChatResult> done;
+        private final long queuedAt = now();
+
+        private Write(final ByteBuffer buffer, final CompletableFuture<ChatResult> done) {
+            this.buffer = buffer;
+            this.done = done;
+        }
+    }
+
+    /**
+     * One connection to the IRC server, shared by the avatars assigned to it. Only used on the bridge thread.
+     */
+    private final class Relay {
+        private final int index;
+        private String nick;
+
+        private SocketChannel channel;
+        private SelectionKey key;
+        private boolean connected;
+        private boolean registered;
+        private long registrationDeadline;
+        private long reconnectAt;
+
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+        private final ArrayDeque<Write> writes = new ArrayDeque<>();
+        private int pendingBytes;
+
+        /**
+         * Channel to the avatars in it. The relay stays in a channel while it has members.
+         */
+        private final Map<String, Set<String>> members = new HashMap<>();
+        private final Set<String> joined = new HashSet<>();
+        private final Map<String, List<Pending>> pendingJoins = new HashMap<>();
+        private final List<Pending> pendingRegistration = new ArrayList<>();
+
+        private Relay(final int index) {
+            this.index = index;
+            this.nick = nickPrefix + index;
+        }
+
+        private void open(final long now) {
+            nick = nickPrefix + index;
+            registrationDeadline = now + timeoutMs;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+                if (channel.connect(serverAddress)) {
+                    onConnected();
+                }
+            } catch (IOException e) {
+                close("unable to connect: " + e.getMessage(), true);
+            }
+        }
+
+        private void onConnected() throws IOException {
+            connected = true;
+            key.interestOps(SelectionKey.OP_READ);
+            write("NICK " + nick, null);
+            write("USER " + nick + " 0 * :" + nickPrefix + " chat bridge", null);
+        }
+
+        private void handle(final SelectionKey key) {
+            try {
+                if (key.isValid() && key.isConnectable() && channel.finishConnect()) {
+                    onConnected();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush();
+                }
+            } catch (IOException e) {
+                close(e.getMessage(), true);
+            }
+        }
+
+        private void tick(final long now) {
+            if (channel == null) {
+                if (running && now >= reconnectAt) {
+                    open(now);
+                }
+                return;
+            }
+
+            if (!registered && now > registrationDeadline) {
+                close("registration timed out", true);
+                return;
+            }
+
+            final Write oldest = writes.peek();
+            if (oldest != null && now - oldest.queuedAt > timeoutMs) {
+                close("output stalled", true);
+                return;
+            }
+
+            expire(pendingRegistration, now);
+            final Iterator<List<Pending>> iterator = pendingJoins.values().iterator();
+            final List<Pending> expired = new ArrayList<>();
+            while (iterator.hasNext()) {
+                final List<Pending> waiting = iterator.next();
+                collectExpired(waiting, now, expired);
+                if (waiting.isEmpty()) {
+                    iterator.remove();
+                }
+            }
+            fail(expired, ChatResult.TIMEOUT);
+        }
+
+        private void expire(final List<Pending> waiting, final long now) {
+            final List<Pending> expired = new ArrayList<>();
+            collectExpired(waiting, now, expired);
+            fail(expired, ChatResult.TIMEOUT);
+        }
+
+        private void collectExpired(final List<Pending> waiting, final long now, final List<Pending> expired) {
+            final Iterator<Pending> iterator = waiting.iterator();
+            while (iterator.hasNext()) {
+                final Pending pending = iterator.next();
+                if (now > pending.deadline) {
+                    iterator.remove();
+                    expired.add(pending);
+                }
+            }
+        }
+
+        private void fail(final List<Pending> failed, final ChatResult result) {
+            if (result == ChatResult.TIMEOUT) {
+                timeouts.add(failed.size());
+            }
+            for (Pending pending : failed) {
+                pending.fail(result);
+            }
+        }
+
+        private void join(final String avatar, final String channelName, final CompletableFuture<ChatResult> future) {
+            final Set<String> avatarsInChannel = members.computeIfAbsent(channelName, name -> new HashSet<>());
+            if (!avatarsInChannel.add(avatar)) {
+                // Already in the room, complete along with the entry that is still waiting, if any
+                final List<Pending> waiting = pendingJoins.get(channelName);
+                if (waiting != null && !joined.contains(channelName)) {
+                    waiting.add(new Pending(future, null));
+                } else {
+                    future.complete(ChatResult.SUCCESS);
+                }
+                return;
+            }
+
+            if (joined.contains(channelName)) {
+                future.complete(ChatResult.SUCCESS);
+                return;
+            }
+
+            final List<Pending> waiting = pendingJoins.get(channelName);
+            final Pending pending = new Pending(future, () -> leave(avatar, channelName));
+            if (waiting != null) {
+                waiting.add(pending);
+                return;
+            }
+
+            final List<Pending> first = new ArrayList<>();
+            first.add(pending);
+            pendingJoins.put(channelName, first);
+
+            // Otherwise the channel is joined once the relay registers
+            if (registered) {
+                write("JOIN " + channelName, null);
+            }
+        }
+
+        private boolean leave(final String avatar, final String channelName) {
+            final Set<String> avatarsInChannel = members.get(channelName);
+            if (avatarsInChannel == null || !avatarsInChannel.remove(avatar)) {
+                return false;
+            }
+
+            if (avatarsInChannel.isEmpty()) {
+                members.remove(channelName);
+                if (joined.remove(channelName) && registered) {
+                    write("PART " + channelName, null);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Queues a line and writes as much as the socket takes. Lines carrying a future are avatar messages, which are
+         * refused while too much output is queued; protocol lines always go out.
+         */
+        private void write(final String line, final CompletableFuture<ChatResult> done) {
+            if (channel == null || !connected) {
+                if (done != null) {
+                    timeouts.increment();
+                    done.complete(ChatResult.TIMEOUT);
+                }
+                return;
+            }
+
+            final ByteBuffer buffer = encode(line);
+            if (done != null && pendingBytes + buffer.remaining() > maxPendingBytes) {
+                shed.increment();
+                done.complete(ChatResult.TIMEOUT);
+                return;
+            }
+
+            writes.add(new Write(buffer, done));
+            pendingBytes += buffer.remaining();
+
+            try {
+                flush();
+            } catch (IOException e) {
+                close(e.getMessage(), true);
+            }
+        }
+
+        private void flush() throws IOException {
+            while (!writes.isEmpty()) {
+                final Write write = writes.peek();
+                channel.write(write.buffer);
+                if (write.buffer.hasRemaining()) {
+                    break;
+                }
+
+                writes.poll();
+                pendingBytes -= write.buffer.limit();
+                linesSent.increment();
+                if (write.done != null) {
+                    write.done.complete(ChatResult.SUCCESS);
+                }
+            }
+
+            if (key.isValid()) {
+                key.interestOps(writes.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void read() throws IOException {
+            final int read = channel.read(readBuffer);
+            if (read < 0) {
+                close("closed by server", true);
+                return;
+            }
+
+            readBuffer.flip();
+            int start = readBuffer.position();
+            for (int i = start; i < readBuffer.limit(); ++i) {
+                if (readBuffer.get(i) == '\n') {
+                    int end = i;
+                    if (end > start && readBuffer.get(end - 1) == '\r') {
+                        --end;
+                    }
+
+                    final byte[] bytes = new byte[end - start];
+                    readBuffer.position(start);
+                    readBuffer.get(bytes);
+                    start = i + 1;
+
+                    onLine(new String(bytes, StandardCharsets.UTF_8));
+                    if (channel == null) {
+                        return;
+                    }
+                }
+            }
+
+            readBuffer.position(start);
+            readBuffer.compact();
+            if (!readBuffer.hasRemaining()) {
+                logger.warn("Discarding an overlong line from the IRC server on relay {}", nick);
+                readBuffer.clear();
+            }
+        }
+
+        private void onLine(final String line) {
+            linesReceived.increment();
+
+            String prefix = "";
+            int position = 0;
+            if (line.startsWith(":")) {
+                position = line.indexOf(' ');
+                if (position < 0) {
+                    return;
+                }
+                prefix = line.substring(1, position);
+                ++position;
+            }
+
+            final List<String> params = new ArrayList<>();
+            String command = null;
+            while (position < line.length()) {
+                if (line.charAt(position) == ' ') {
+                    ++position;
+                    continue;
+                }
+                if (command != null && line.charAt(position) == ':') {
+                    params.add(line.substring(position + 1));
+                    break;
+                }
+
+                int end = line.indexOf(' ', position);
+                if (end < 0) {
+                    end = line.length();
+                }
+                final String token = line.substring(position, end);
+                if (command == null) {
+                    command = token.toUpperCase(Locale.ROOT);
+                } else {
+                    params.add(token);
+                }
+                position = end;
+            }
+
+            if (command != null) {
+                onCommand(prefix, command, params);
+            }
+        }
+
+        private void onCommand(final String prefix, final String command, final List<String> params) {
+            final String sender = prefix.indexOf('!') >= 0 ? prefix.substring(0, prefix.indexOf('!')) : prefix;
+
+            switch (command) {
+                case "PING":
+                    write(params.isEmpty() ? "PONG" : "PONG :" + params.get(0), null);
+                    break;
+
+                case "001":
+                    onRegistered(params.isEmpty() ? nick : params.get(0));
+                    break;
+
+                case "433":
+                    // Nickname in use
+                    if (!registered) {
+                        nick = nick + "_";
+                        write("NICK " + nick, null);
+                    }
+                    break;
+
+                case "JOIN":
+                    if (sender.equalsIgnoreCase(nick) && !params.isEmpty()) {
+                        onJoined(params.get(0).toLowerCase(Locale.ROOT));
+                    }
+                    break;
+
+                case "403":
+                case "405":
+                case "471":
+                case "473":
+                case "474":
+                case "475":
+                    if (params.size() > 1) {
+                        onJoinRefused(params.get(1).toLowerCase(Locale.ROOT), command);
+                    }
+                    break;
+
+                case "PRIVMSG":
+                    if (params.size() > 1) {
+                        onMessage(sender, params.get(0).toLowerCase(Locale.ROOT), params.get(1));
+                    }
+                    break;
+
+                case "ERROR":
+                    close(params.isEmpty() ? "error from server" : params.get(0), true);
+                    break;
+
+                default:
+                    break;
+            }
+        }
+
+        private void onRegistered(final String registeredNick) {
+            nick = registeredNick;
+            registered = true;
+            logger.info("IRC relay {} registered as {}.", index, nick);
+
+            final List<Pending> waiting = new ArrayList<>(pendingRegistration);
+            pendingRegistration.clear();
+            for (Pending pending : waiting) {
+                pending.future.complete(ChatResult.SUCCESS);
+            }
+
+            for (String channelName : members.keySet()) {
+                write("JOIN " + channelName, null);
+            }
+        }
+
+        private void onJoined(final String channelName) {
+            if (!members.containsKey(channelName)) {
+                // Everyone left while the JOIN was on its way
+                write("PART " + channelName, null);
+                return;
+            }
+
+            joined.add(channelName);
+            final List<Pending> waiting = pendingJoins.remove(channelName);
+            if (waiting != null) {
+                for (Pending pending : waiting) {
+                    pending.future.complete(ChatResult.SUCCESS);
+                }
+            }
+        }
+
+        private void onJoinRefused(final String channelName, final String numeric) {
+            final List<Pending> waiting = pendingJoins.remove(channelName);
+            if (waiting == null) {
+                return;
+            }
+
+            final ChatResult result;
+            switch (numeric) {
+                case "474":
+                    result = ChatResult.ROOM_BANNED_AVATAR;
+                    break;
+                case "473":
+                case "475":
+                    result = ChatResult.ROOM_PRIVATE_ROOM;
+                    break;
+                case "403":
+                    result = ChatResult.ADDRESS_DOESNT_EXIST;
+                    break;
+                default:
+                    result = ChatResult.ROOM_UNKNOWN_FAILURE;
+                    break;
+            }
+            fail(waiting, result);
+        }
+
+        private void onMessage(final String sender, final String target, final String text) {
+            final RoomMessageListener current = listener;
+            if (current == null || !target.startsWith("#") || isRelayNick(sender) || !isDeliveringRelay(this, target)) {
+                return;
+            }
+
+            try {
+                current.onRoomMessage(target.substring(1), sender, text);
+            } catch (Exception e) {
+                logger.error("IRC room message listener failed", e);
+            }
+        }
+
+        /**
+         * Closes the connection and fails everything waiting on it. Avatars and channel members are kept, so the
+         * channels are joined again after reconnecting.
+         */
+        private void close(final String reason, final boolean reconnect) {
+            if (channel != null) {
+                logger.warn("IRC relay {} disconnected: {}", index, reason);
+                if (key != null) {
+                    key.cancel();
+                }
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    logger.debug("Unable to close IRC relay {}", index, e);
+                }
+            }
+
+            channel = null;
+            key = null;
+            connected = false;
+            registered = false;
+            joined.clear();
+            readBuffer.clear();
+
+            final List<Write> unsent = new ArrayList<>(writes);
+            writes.clear();
+            pendingBytes = 0;
+            for (Write write : unsent) {
+                if (write.done != null) {
+                    timeouts.increment();
+                    write.done.complete(ChatResult.TIMEOUT);
+                }
+            }
+
+            final List<Pending> failed = new ArrayList<>(pendingRegistration);
+            pendingRegistration.clear();
+            for (List<Pending> waiting : pendingJoins.values()) {
+                failed.addAll(waiting);
+            }
+            pendingJoins.clear();
+            fail(failed, ChatResult.TIMEOUT);
 
+            if (reconnect) {
+                reconnects.increment();
+                reconnectAt = now() + reconnectDelayMs;
+            }
+        }
     }
 }
@@ -0,0 +1,47 @@
+package com.ocdsoft.bacta.soe.chat.local;
+
+import com.ocdsoft.bacta.soe.connection.SoeUdpConnection;
+import com.ocdsoft.bacta.soe.object.chat.ChatAvatarId;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import lombok.Getter;
+
+/**
+ * An avatar connected to the {@link LocalChatModule} and the connection its messages are sent on.
+ */
+public final class ChatMember {
+
+    @Getter
+    private final SoeUdpConnection connection;
+    @Getter
+    private final ChatAvatarId avatar;
+    /**
+     * Interned id of the avatar, see {@link com.ocdsoft.bacta.soe.object.chat.ChatAvatarRegistry}
+     */
+    @Getter
+    private final int avatarId;
+
+    private final TIntSet roomIds = new TIntHashSet();
+
+    ChatMember(final SoeUdpConnection connection, final ChatAvatarId avatar, final int avatarId) {
+        this.connection = connection;
+        this.avatar = avatar;
+        this.avatarId = avatarId;
+    }
+
+    public int getConnectionId() {
+        return connection.getId();
+    }
+
+    synchronized void joined(final int roomId) {
+        roomIds.add(roomId);
+    }
+
+    synchronized void left(final int roomId) {
+        roomIds.remove(roomId);
+    }
+
+    synchronized int[] getRoomIds() {
+        return roomIds.toArray();
+    }
+}
@@ -0,0 +1,370 @@
+package com.ocdsoft.bacta.soe.chat.local;
+
+import com.ocdsoft.bacta.soe.chat.message.ChatFriendsListUpdate;
+import com.ocdsoft.bacta.soe.connection.SoeUdpConnection;
+import com.ocdsoft.bacta.soe.object.chat.ChatAvatarId;
+import com.ocdsoft.bacta.soe.object.chat.ChatAvatarRegistry;
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.map.TIntByteMap;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntByteHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks which avatars are online and tells the avatars that have them friended when that changes.
+ *
+ * Avatars are keyed by their {@link ChatAvatarRegistry} id. Next to each avatar's friend and ignore lists, a reverse
+ * index holds the avatars that have it friended, so a connect or disconnect only touches its online watchers. An
+ * avatar that ignores a watcher is never reported to it.
+ *
+ * Changes are queued per watcher and sent as a batch of {@link ChatFriendsListUpdate} messages on {@link #flush()}.
+ * A change that is undone before the flush, such as a quick relog, cancels out and nothing is sent. Each update is
+ * serialized once per flush however many watchers receive it.
+ */
+public class ChatPresenceService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChatPresenceService.class);
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 250;
+
+    private static final byte OFFLINE = 0;
+    private static final byte ONLINE = 1;
+
+    private final ChatAvatarRegistry avatarRegistry;
+
+    private final TIntObjectMap<TIntSet> friends = new TIntObjectHashMap<>();
+    private final TIntObjectMap<TIntSet> ignores = new TIntObjectHashMap<>();
+    private final TIntObjectMap<TIntSet> watchers = new TIntObjectHashMap<>();
+    private final TIntObjectMap<SoeUdpConnection> online = new TIntObjectHashMap<>();
+
+    /**
+     * Watcher id to the friend states it has not been sent yet
+     */
+    private TIntObjectMap<TIntByteMap> pending = new TIntObjectHashMap<>();
+
+    private final Object flushLock = new Object();
+    private final ScheduledExecutorService flushExecutor;
+
+    private final LongAdder changes = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder updatesSent = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+
+    /**
+     * Creates a service that is only flushed by calling {@link #flush()}
+     */
+    public ChatPresenceService(final ChatAvatarRegistry avatarRegistry) {
+        this(avatarRegistry, 0);
+    }
+
+    /**
+     * @param flushIntervalMs How often queued changes are sent, or 0 to only send them on {@link #flush()}
+     */
+    public ChatPresenceService(final ChatAvatarRegistry avatarRegistry, final long flushIntervalMs) {
+        this.avatarRegistry = avatarRegistry;
+
+        if (flushIntervalMs > 0) {
+            flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "Chat Presence Flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flushExecutor.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        } else {
+            flushExecutor = null;
+        }
+    }
+
+    /**
+     * Marks an avatar online, queues its state for its watchers and queues its online friends for the avatar itself
+     */
+    public synchronized void connect(final int avatarId, final SoeUdpConnection connection) {
+        final boolean wasOnline = online.put(avatarId, connection) != null;
+        if (wasOnline) {
+            return;
+        }
+
+        notifyWatchers(avatarId, ONLINE);
+
+        final TIntSet friendIds = friends.get(avatarId);
+        if (friendIds != null) {
+            final TIntIterator iterator = friendIds.iterator();
+            while (iterator.hasNext()) {
+                final int friendId = iterator.next();
+                if (online.containsKey(friendId) && !isIgnoring(friendId, avatarId)) {
+                    queue(avatarId, friendId, ONLINE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks an avatar offline and queues that for its watchers. Changes still queued for the avatar are dropped.
+     */
+    public synchronized void disconnect(final int avatarId) {
+        if (online.remove(avatarId) == null) {
+            return;
+        }
+
+        pending.remove(avatarId);
+        notifyWatchers(avatarId, OFFLINE);
+    }
+
+    public synchronized boolean isOnline(final int avatarId) {
+        return online.containsKey(avatarId);
+    }
+
+    /**
+     * Adds a friend to an avatar's list. If both are online, the friend's state is queued for the avatar.
+     * @return false if the friend was already on the list
+     */
+    public synchronized boolean addFriend(final int avatarId, final int friendId) {
+        if (!set(friends, avatarId).add(friendId)) {
+            return false;
+        }
+        set(watchers, friendId).add(avatarId);
+
+        if (online.containsKey(avatarId) && online.containsKey(friendId) && !isIgnoring(friendId, avatarId)) {
+            queue(avatarId, friendId, ONLINE);
+        }
+        return true;
+    }
+
+    public synchronized boolean removeFriend(final int avatarId, final int friendId) {
+        if (!remove(friends, avatarId, friendId)) {
+            return false;
+        }
+        remove(watchers, friendId, avatarId);
+
+        final TIntByteMap queued = pending.get(avatarId);
+        if (queued != null) {
+            queued.remove(friendId);
+        }
+        return true;
+    }
+
+    /**
+     * Adds an avatar to another's ignore list. The ignored avatar stops receiving presence updates for it.
+     */
+    public synchronized boolean addIgnore(final int avatarId, final int ignoredId) {
+        if (!set(ignores, avatarId).add(ignoredId)) {
+            return false;
+        }
+
+        final TIntByteMap queued = pending.get(ignoredId);
+        if (queued != null) {
+            queued.remove(avatarId);
+        }
+        return true;
+    }
+
+    public synchronized boolean removeIgnore(final int avatarId, final int ignoredId) {
+        return remove(ignores, avatarId, ignoredId);
+    }
+
+    /**
+     * Removes every trace of an avatar, ahead of its id being released. Ignore lists have no reverse index, so every
+     * one of them is searched.
+     */
+    public synchronized void forget(final int avatarId) {
+        disconnect(avatarId);
+
+        for (int friendId : getFriends(avatarId)) {
+            removeFriend(avatarId, friendId);
+        }
+        for (int watcherId : getWatchers(avatarId)) {
+            removeFriend(watcherId, avatarId);
+        }
+        ignores.remove(avatarId);
+        for (int ignoringId : ignores.keys()) {
+            remove(ignores, ignoringId, avatarId);
+        }
+    }
+
+    public synchronized int[] getFriends(final int avatarId) {
+        final TIntSet set = friends.get(avatarId);
+        return set != null ? set.toArray() : new int[0];
+    }
+
+    public synchronized int[] getIgnores(final int avatarId) {
+        final TIntSet set = ignores.get(avatarId);
+        return set != null ? set.toArray() : new int[0];
+    }
+
+    /**
+     * @return The avatars that have this avatar on their friend list
+     */
+    public synchronized int[] getWatchers(final int avatarId) {
+        final TIntSet set = watchers.get(avatarId);
+        return set != null ? set.toArray() : new int[0];
+    }
+
+    /**
+     * Sends every queued change. The queue is swapped out under the lock and the messages are sent outside of it;
+     * flushes themselves are serialized so updates for a watcher are never reordered.
+     * @return The number of updates sent
+     */
+    public int flush() {
+        synchronized (flushLock) {
+            return flushPending();
+        }
+    }
+
+    private int flushPending() {
+        final TIntObjectMap<TIntByteMap> batch;
+        final TIntObjectMap<SoeUdpConnection> connections = new TIntObjectHashMap<>();
+
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return 0;
+            }
+            batch = pending;
+            pending = new TIntObjectHashMap<>();
+
+            for (int watcherId : batch.keys()) {
+                final SoeUdpConnection connection = online.get(watcherId);
+                if (connection != null) {
+                    connections.put(watcherId, connection);
+                }
+            }
+        }
+
+        final TIntObjectMap<ByteBuffer> serialized = new TIntObjectHashMap<>();
+        short priority = 0;
+        int sent = 0;
+
+        for (int watcherId : connections.keys()) {
+            final SoeUdpConnection connection = connections.get(watcherId);
+            final TIntByteMap states = batch.get(watcherId);
+
+            for (int friendId : states.keys()) {
+                final byte state = states.get(friendId);
+                final int key = friendId << 1 | state;
+
+                ByteBuffer buffer = serialized.get(key);
+                if (buffer == null) {
+                    final ChatAvatarId friend = avatarRegistry.get(friendId);
+                    if (friend == null) {
+                        continue;
+                    }
+                    final ChatFriendsListUpdate update = new ChatFriendsListUpdate(friend, state == ONLINE);
+                    buffer = update.serialize();
+                    priority = update.getPriority();
+                    serialized.put(key, buffer);
+                }
+                connection.sendSerialized(priority, buffer);
+                ++sent;
+            }
+        }
+
+        flushes.increment();
+        updatesSent.add(sent);
+        return sent;
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            logger.error("Unable to flush presence updates", e);
+        }
+    }
+
+    public void close() {
+        if (flushExecutor != null) {
+            flushExecutor.shutdown();
+        }
+    }
+
+    private void notifyWatchers(final int avatarId, final byte state) {
+        final TIntSet watcherIds = watchers.get(avatarId);
+        if (watcherIds == null) {
+            return;
+        }
+
+        final TIntIterator iterator = watcherIds.iterator();
+        while (iterator.hasNext()) {
+            final int watcherId = iterator.next();
+            if (online.containsKey(watcherId) && !isIgnoring(avatarId, watcherId)) {
+                queue(watcherId, avatarId, state);
+            }
+        }
+    }
+
+    /**
+     * Queues a state for a watcher. A queued change is only ever the opposite of what the watcher last received,
+     * so a second change for the same friend undoes it.
+     */
+    private void queue(final int watcherId, final int friendId, final byte state) {
+        changes.increment();
+
+        TIntByteMap states = pending.get(watcherId);
+        if (states == null) {
+            states = new TIntByteHashMap();
+            pending.put(watcherId, states);
+        } else if (states.containsKey(friendId)) {
+            if (states.get(friendId) != state) {
+                states.remove(friendId);
+                cancelled.increment();
+            }
+            return;
+        }
+
+        states.put(friendId, state);
+    }
+
+    private boolean isIgnoring(final int avatarId, final int ignoredId) {
+        final TIntSet set = ignores.get(avatarId);
+        return set != null && set.contains(ignoredId);
+    }
+
+    private static TIntSet set(final TIntObjectMap<TIntSet> map, final int key) {
+        TIntSet set = map.get(key);
+        if (set == null) {
+            set = new TIntHashSet();
+            map.put(key, set);
+        }
+        return set;
+    }
+
+    private static boolean remove(final TIntObjectMap<TIntSet> map, final int key, final int value) {
+        final TIntSet set = map.get(key);
+        if (set == null || !set.remove(value)) {
+            return false;
+        }
+        if (set.isEmpty()) {
+            map.remove(key);
+        }
+        return true;
+    }
+
+    public long getChanges() {
+        return changes.sum();
+    }
+
+    public long getCancelled() {
+        return cancelled.sum();
+    }
+
+    public long getUpdatesSent() {
+        return updatesSent.sum();
+    }
+
+    public long getFlushes() {
+        return flushes.sum();
+    }
+
+    public synchronized int getOnlineCount() {
+        return online.size();
+    }
+}
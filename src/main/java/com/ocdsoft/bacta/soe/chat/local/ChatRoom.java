@@ -0,0 +1,224 @@
+package com.ocdsoft.bacta.soe.chat.local;
+
+import com.ocdsoft.bacta.soe.chat.ChatResult;
+import com.ocdsoft.bacta.soe.object.chat.ChatRoomData;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import lombok.Getter;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.function.Consumer;
+
+/**
+ * A room of the {@link LocalChatModule}.
+ *
+ * Members are kept as a set of connection ids. Changes are made under the room's lock and publish a new
+ * {@link #getRecipients()} array, so a message is fanned out without locking or looking members up.
+ *
+ * The encoded {@link ChatRoomData} is kept until the data is changed through {@link #update(Consumer)}, so room
+ * lists and queries copy it instead of encoding the room again.
+ */
+public final class ChatRoom {
+
+    private static final ChatMember[] NO_MEMBERS = new ChatMember[0];
+
+    @Getter
+    private final ChatRoomData data;
+
+    private final int ownerId;
+
+    private final TIntSet memberIds = new TIntHashSet();
+    private volatile ChatMember[] recipients = NO_MEMBERS;
+
+    private final TIntSet moderators = new TIntHashSet();
+    private final TIntSet banned = new TIntHashSet();
+    private final TIntSet invited = new TIntHashSet();
+
+    private volatile ByteBuffer encoded;
+
+    ChatRoom(final ChatRoomData data, final int ownerId) {
+        this.data = data;
+        this.ownerId = ownerId;
+    }
+
+    public int getId() {
+        return data.getRoomId();
+    }
+
+    public String getAddress() {
+        return data.getAddress();
+    }
+
+    /**
+     * @return The room data as written by {@link ChatRoomData#writeToBuffer(ByteBuffer)}, encoded at most once per change
+     */
+    public ByteBuffer getEncoded() {
+        ByteBuffer current = encoded;
+        if (current == null) {
+            synchronized (this) {
+                if (encoded == null) {
+                    encoded = encode(data);
+                }
+                current = encoded;
+            }
+        }
+        return current.duplicate();
+    }
+
+    /**
+     * Changes the room data under the room's lock and drops its encoding
+     */
+    synchronized void update(final Consumer<ChatRoomData> change) {
+        change.accept(data);
+        encoded = null;
+    }
+
+    /**
+     * @return Members at the time of the last change, not to be modified
+     */
+    public ChatMember[] getRecipients() {
+        return recipients;
+    }
+
+    public int getMemberCount() {
+        return recipients.length;
+    }
+
+    public synchronized boolean isMember(final int connectionId) {
+        return memberIds.contains(connectionId);
+    }
+
+    public synchronized boolean isModerator(final int avatarId) {
+        return ownerId == avatarId || moderators.contains(avatarId);
+    }
+
+    public synchronized boolean isBanned(final int avatarId) {
+        return banned.contains(avatarId);
+    }
+
+    public synchronized boolean isInvited(final int avatarId) {
+        return invited.contains(avatarId);
+    }
+
+    /**
+     * Entering a room the member is already in succeeds and changes nothing
+     */
+    synchronized ChatResult enter(final ChatMember member) {
+
+        if (banned.contains(member.getAvatarId())) {
+            return ChatResult.ROOM_BANNED_AVATAR;
+        }
+
+        if (data.isMembersOnly() && !invited.contains(member.getAvatarId()) && !isModerator(member.getAvatarId())) {
+            return ChatResult.ROOM_PRIVATE_ROOM;
+        }
+
+        if (!memberIds.add(member.getConnectionId())) {
+            return ChatResult.SUCCESS;
+        }
+
+        final ChatMember[] current = recipients;
+        final ChatMember[] updated = new ChatMember[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = member;
+        recipients = updated;
+
+        member.joined(getId());
+        return ChatResult.SUCCESS;
+    }
+
+    synchronized boolean leave(final ChatMember member) {
+
+        if (!memberIds.remove(member.getConnectionId())) {
+            return false;
+        }
+
+        final ChatMember[] current = recipients;
+        final ChatMember[] updated = new ChatMember[current.length - 1];
+        int index = 0;
+        for (ChatMember recipient : current) {
+            if (recipient.getConnectionId() != member.getConnectionId()) {
+                updated[index++] = recipient;
+            }
+        }
+        recipients = updated;
+
+        member.left(getId());
+        return true;
+    }
+
+    synchronized void clear() {
+        for (ChatMember member : recipients) {
+            member.left(getId());
+        }
+        memberIds.clear();
+        recipients = NO_MEMBERS;
+    }
+
+    synchronized int[] getModeratorIds() {
+        return moderators.toArray();
+    }
+
+    synchronized int[] getBannedIds() {
+        return banned.toArray();
+    }
+
+    synchronized int[] getInvitedIds() {
+        return invited.toArray();
+    }
+
+    synchronized boolean addModerator(final int avatarId) {
+        return moderators.add(avatarId);
+    }
+
+    synchronized boolean removeModerator(final int avatarId) {
+        return moderators.remove(avatarId);
+    }
+
+    synchronized boolean ban(final int avatarId) {
+        invited.remove(avatarId);
+        return banned.add(avatarId);
+    }
+
+    synchronized boolean unban(final int avatarId) {
+        return banned.remove(avatarId);
+    }
+
+    synchronized boolean invite(final int avatarId) {
+        return invited.add(avatarId);
+    }
+
+    synchronized boolean uninvite(final int avatarId) {
+        return invited.remove(avatarId);
+    }
+
+    /**
+     * Drops an avatar from the moderator, ban and invite lists, ahead of its id being released
+     */
+    synchronized void forget(final int avatarId) {
+        moderators.remove(avatarId);
+        banned.remove(avatarId);
+        invited.remove(avatarId);
+    }
+
+    private static ByteBuffer encode(final ChatRoomData data) {
+        int size = 256;
+        while (true) {
+            final ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+            try {
+                data.writeToBuffer(buffer);
+            } catch (BufferOverflowException e) {
+                size *= 2;
+                continue;
+            }
+            buffer.flip();
+
+            final ByteBuffer exact = ByteBuffer.allocate(buffer.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+            exact.put(buffer);
+            exact.flip();
+            return exact;
+        }
+    }
+}
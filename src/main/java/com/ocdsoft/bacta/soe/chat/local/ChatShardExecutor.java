@@ -0,0 +1,182 @@
+package com.ocdsoft.bacta.soe.chat.local;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lmax.disruptor.BatchEventProcessor;
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.RingBuffer;
+import com.ocdsoft.bacta.engine.conf.BactaConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs chat work on a fixed number of single threaded shards. Rooms and avatars are assigned to a shard by hashing
+ * their id, so all work for one room or avatar runs on one thread, in the order it was submitted.
+ *
+ * Each shard's mailbox is a multi producer {@link RingBuffer} drained by one {@link BatchEventProcessor}. Mailboxes
+ * are bounded: a task submitted to a full mailbox is rejected rather than blocking the submitting thread, which is
+ * usually a packet thread or another shard.
+ *
+ * With 0 shards, tasks run on the submitting thread.
+ */
+@Singleton
+public class ChatShardExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChatShardExecutor.class);
+
+    private final Shard[] shards;
+
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    @Inject
+    public ChatShardExecutor(final BactaConfiguration configuration) {
+        this(configuration.getIntWithDefault("Bacta/ChatServer", "chatShards", 0),
+                configuration.getIntWithDefault("Bacta/ChatServer", "chatShardMailboxSize", 4096));
+    }
+
+    /**
+     * @param mailboxSize Tasks each shard can have waiting, rounded up to a power of two
+     */
+    public ChatShardExecutor(final int shardCount, final int mailboxSize) {
+        shards = new Shard[Math.max(0, shardCount)];
+
+        final int ringSize = Integer.highestOneBit(Math.max(2, mailboxSize) * 2 - 1);
+        for (int i = 0; i < shards.length; ++i) {
+            shards[i] = new Shard(i, ringSize);
+        }
+
+        if (shards.length > 0) {
+            logger.info("Running chat on {} shards with mailboxes of {}.", shards.length, ringSize);
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @return The shard work for {@code key} runs on, or 0 when tasks run inline
+     */
+    public int shardOf(final int key) {
+        if (shards.length == 0) {
+            return 0;
+        }
+        // Spread dense ids over the shards
+        final int hash = key * 0x9E3779B9;
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % shards.length;
+    }
+
+    /**
+     * Runs a task on the shard of {@code key}
+     * @return false if that shard's mailbox is full and the task was dropped
+     */
+    public boolean execute(final int key, final Runnable task) {
+        return executeOn(shardOf(key), task);
+    }
+
+    /**
+     * Runs a task on a shard, see {@link #shardOf(int)}
+     * @return false if the shard's mailbox is full and the task was dropped
+     */
+    public boolean executeOn(final int shard, final Runnable task) {
+        if (shards.length == 0) {
+            task.run();
+            executed.increment();
+            return true;
+        }
+
+        if (!shards[shard].offer(task)) {
+            rejected.increment();
+            logger.warn("Chat shard {} mailbox is full, dropped a task", shard);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the calling thread is the thread of {@code shard}, or tasks run inline
+     */
+    public boolean isOnShard(final int shard) {
+        return shards.length == 0 || Thread.currentThread() == shards[shard].thread;
+    }
+
+    public void close() {
+        for (Shard shard : shards) {
+            shard.processor.halt();
+        }
+    }
+
+    public long getExecuted() {
+        return executed.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return Tasks waiting in all mailboxes
+     */
+    public long getBacklog() {
+        long backlog = 0;
+        for (Shard shard : shards) {
+            backlog += shard.ringBuffer.getBufferSize() - shard.ringBuffer.remainingCapacity();
+        }
+        return backlog;
+    }
+
+    private static final class Task {
+        private Runnable runnable;
+    }
+
+    private final class Shard implements EventHandler<Task> {
+
+        private final RingBuffer<Task> ringBuffer;
+        private final BatchEventProcessor<Task> processor;
+        private final Thread thread;
+
+        private Shard(final int index, final int ringSize) {
+            ringBuffer = RingBuffer.createMultiProducer(Task::new, ringSize, new BlockingWaitStrategy());
+            processor = new BatchEventProcessor<>(ringBuffer, ringBuffer.newBarrier(), this);
+            ringBuffer.addGatingSequences(processor.getSequence());
+
+            thread = new Thread(processor, "Chat Shard " + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private boolean offer(final Runnable task) {
+            final long sequence;
+            try {
+                sequence = ringBuffer.tryNext();
+            } catch (InsufficientCapacityException e) {
+                return false;
+            }
+
+            try {
+                ringBuffer.get(sequence).runnable = task;
+            } finally {
+                ringBuffer.publish(sequence);
+            }
+            return true;
+        }
+
+        @Override
+        public void onEvent(final Task event, final long sequence, final boolean endOfBatch) {
+            final Runnable task = event.runnable;
+            event.runnable = null;
+
+            try {
+                task.run();
+            } catch (Exception e) {
+                logger.error("Chat shard task failed", e);
+            }
+            executed.increment();
+        }
+    }
+}
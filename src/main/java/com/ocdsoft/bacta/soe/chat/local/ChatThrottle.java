@@ -0,0 +1,287 @@
+package com.ocdsoft.bacta.soe.chat.local;
+
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Rate limits chat messages with a token bucket per avatar and one per room. A message is sent only if both its
+ * sender's and its room's bucket hold a token.
+ *
+ * Buckets are kept in primitive arrays indexed by {@link com.ocdsoft.bacta.soe.object.chat.ChatAvatarRegistry} id
+ * and room id, which are both small and dense. Tokens are counted in millionths so refills need no floating point.
+ *
+ * Messages over the limit are dropped, or with {@link ChatThrottleConfiguration.Policy#QUEUE} held in a short queue
+ * per avatar and sent in order by {@link #drain()} as the buckets refill. While an avatar has messages queued, its
+ * new messages queue behind them.
+ */
+public class ChatThrottle {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChatThrottle.class);
+
+    public enum Admission {
+        SENT,
+        QUEUED,
+        DROPPED
+    }
+
+    private static final long UNIT = 1_000_000L;
+
+    private final ChatThrottleConfiguration configuration;
+    private final LongSupplier nanoClock;
+
+    private final Buckets avatarBuckets;
+    private final Buckets roomBuckets;
+    private final TIntObjectMap<ArrayDeque<Pending>> queues = new TIntObjectHashMap<>();
+
+    private final ScheduledExecutorService drainExecutor;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder drained = new LongAdder();
+
+    public ChatThrottle(final ChatThrottleConfiguration configuration) {
+        this(configuration, System::nanoTime);
+    }
+
+    /**
+     * @param nanoClock Time source, {@link System#nanoTime()} outside of tests. With the queue policy and a drain
+     *                  interval above zero, queued messages are drained on a background thread whatever the clock;
+     *                  with an interval of 0 only {@link #drain()} sends them.
+     */
+    public ChatThrottle(final ChatThrottleConfiguration configuration, final LongSupplier nanoClock) {
+        this.configuration = configuration;
+        this.nanoClock = nanoClock;
+        this.avatarBuckets = new Buckets(configuration.getAvatarBurst(), configuration.getAvatarMessagesPerSecond());
+        this.roomBuckets = new Buckets(configuration.getRoomBurst(), configuration.getRoomMessagesPerSecond());
+
+        if (configuration.getPolicy() == ChatThrottleConfiguration.Policy.QUEUE && configuration.getDrainIntervalMs() > 0) {
+            drainExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "Chat Throttle Drain");
+                thread.setDaemon(true);
+                return thread;
+            });
+            final long interval = configuration.getDrainIntervalMs();
+            drainExecutor.scheduleWithFixedDelay(this::drainQuietly, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            drainExecutor = null;
+        }
+    }
+
+    /**
+     * Runs {@code send} now if the avatar and room have a token, otherwise queues or drops it per the policy.
+     * {@code send} is run outside of the throttle's lock.
+     */
+    public Admission admit(final int avatarId, final int roomId, final Runnable send) {
+        synchronized (this) {
+            final ArrayDeque<Pending> queue = queues.get(avatarId);
+
+            if (queue == null && acquire(avatarId, roomId, nanoClock.getAsLong())) {
+                sent.increment();
+            } else if (configuration.getPolicy() == ChatThrottleConfiguration.Policy.QUEUE
+                    && (queue == null || queue.size() < configuration.getMaxQueuedPerAvatar())) {
+                enqueue(avatarId, queue, new Pending(roomId, send));
+                queued.increment();
+                return Admission.QUEUED;
+            } else {
+                dropped.increment();
+                return Admission.DROPPED;
+            }
+        }
+
+        send.run();
+        return Admission.SENT;
+    }
+
+    /**
+     * Sends queued messages whose buckets have refilled, oldest first for each avatar
+     * @return The number of messages sent
+     */
+    public int drain() {
+        final List<Runnable> ready = new ArrayList<>();
+
+        synchronized (this) {
+            if (queues.isEmpty()) {
+                return 0;
+            }
+
+            final long now = nanoClock.getAsLong();
+            for (int avatarId : queues.keys()) {
+                final ArrayDeque<Pending> queue = queues.get(avatarId);
+                while (!queue.isEmpty() && acquire(avatarId, queue.peek().roomId, now)) {
+                    ready.add(queue.poll().send);
+                }
+                if (queue.isEmpty()) {
+                    queues.remove(avatarId);
+                }
+            }
+        }
+
+        for (Runnable send : ready) {
+            send.run();
+        }
+
+        drained.add(ready.size());
+        return ready.size();
+    }
+
+    private void drainQuietly() {
+        try {
+            drain();
+        } catch (Exception e) {
+            logger.error("Unable to drain throttled chat messages", e);
+        }
+    }
+
+    /**
+     * Drops the messages an avatar has queued, such as when it disconnects. Its bucket is kept, so reconnecting does
+     * not refill it.
+     */
+    public synchronized void forget(final int avatarId) {
+        final ArrayDeque<Pending> queue = queues.remove(avatarId);
+        if (queue != null) {
+            dropped.add(queue.size());
+        }
+    }
+
+    /**
+     * Drops everything kept for an avatar whose id is being released, so the next avatar given the id starts with a
+     * full bucket
+     */
+    public synchronized void release(final int avatarId) {
+        forget(avatarId);
+        avatarBuckets.reset(avatarId);
+    }
+
+    public void close() {
+        if (drainExecutor != null) {
+            drainExecutor.shutdown();
+        }
+    }
+
+    private boolean acquire(final int avatarId, final int roomId, final long now) {
+        if (!avatarBuckets.available(avatarId, now) || !roomBuckets.available(roomId, now)) {
+            return false;
+        }
+        avatarBuckets.take(avatarId);
+        roomBuckets.take(roomId);
+        return true;
+    }
+
+    private void enqueue(final int avatarId, ArrayDeque<Pending> queue, final Pending pending) {
+        if (queue == null) {
+            queue = new ArrayDeque<>(configuration.getMaxQueuedPerAvatar());
+            queues.put(avatarId, queue);
+        }
+        queue.add(pending);
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getQueued() {
+        return queued.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getDrained() {
+        return drained.sum();
+    }
+
+    /**
+     * @return Messages waiting in queues right now
+     */
+    public synchronized int getQueuedCount() {
+        int count = 0;
+        final Iterator<ArrayDeque<Pending>> iterator = queues.valueCollection().iterator();
+        while (iterator.hasNext()) {
+            count += iterator.next().size();
+        }
+        return count;
+    }
+
+    private static final class Pending {
+        private final int roomId;
+        private final Runnable send;
+
+        private Pending(final int roomId, final Runnable send) {
+            this.roomId = roomId;
+            this.send = send;
+        }
+    }
+
+    /**
+     * Token buckets indexed by id. A bucket is full the first time its id is seen.
+     */
+    private static final class Buckets {
+
+        private static final long UNSEEN = Long.MIN_VALUE;
+
+        private final long capacity;
+        private final long perSecond;
+        private final long fillNanos;
+
+        private long[] tokens = new long[0];
+        private long[] updated = new long[0];
+
+        private Buckets(final int burst, final int perSecond) {
+            this.capacity = Math.max(1, burst) * UNIT;
+            this.perSecond = perSecond;
+            this.fillNanos = perSecond > 0 ? TimeUnit.SECONDS.toNanos(Math.max(1, burst)) / perSecond : 0;
+        }
+
+        boolean available(final int id, final long now) {
+            if (perSecond <= 0) {
+                return true;
+            }
+
+            if (id >= tokens.length) {
+                final int length = Math.max(id + 1, tokens.length * 2);
+                tokens = Arrays.copyOf(tokens, length);
+                final int from = updated.length;
+                updated = Arrays.copyOf(updated, length);
+                Arrays.fill(updated, from, length, UNSEEN);
+            }
+
+            final long elapsed = now - updated[id];
+            if (updated[id] == UNSEEN || elapsed >= fillNanos) {
+                tokens[id] = capacity;
+            } else if (elapsed > 0) {
+                // elapsed is below fillNanos, so this cannot overflow
+                tokens[id] = Math.min(capacity, tokens[id] + elapsed * perSecond * UNIT / TimeUnit.SECONDS.toNanos(1));
+            }
+            updated[id] = now;
+
+            return tokens[id] >= UNIT;
+        }
+
+        void take(final int id) {
+            if (perSecond > 0) {
+                tokens[id] -= UNIT;
+            }
+        }
+
+        void reset(final int id) {
+            if (id >= 0 && id < updated.length) {
+                updated[id] = UNSEEN;
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.ocdsoft.bacta.soe.chat.local;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.ocdsoft.bacta.engine.conf.BactaConfiguration;
+import lombok.Getter;
+
+/**
+ * Limits applied by {@link ChatThrottle}, read from the Bacta/ChatServer section. A rate of 0 disables that bucket.
+ */
+@Singleton
+public final class ChatThrottleConfiguration {
+
+    public enum Policy {
+        /**
+         * Messages over the limit are rejected
+         */
+        DROP,
+        /**
+         * Messages over the limit wait, up to maxQueuedPerAvatar, until the buckets refill
+         */
+        QUEUE
+    }
+
+    private static final int DEFAULT_AVATAR_BURST = 10;
+    private static final int DEFAULT_AVATAR_RATE = 2;
+    private static final int DEFAULT_ROOM_BURST = 50;
+    private static final int DEFAULT_ROOM_RATE = 20;
+    private static final int DEFAULT_MAX_QUEUED = 5;
+    private static final int DEFAULT_DRAIN_INTERVAL_MS = 100;
+
+    @Getter private final int avatarBurst;
+    @Getter private final int avatarMessagesPerSecond;
+    @Getter private final int roomBurst;
+    @Getter private final int roomMessagesPerSecond;
+    @Getter private final Policy policy;
+    @Getter private final int maxQueuedPerAvatar;
+    @Getter private final int drainIntervalMs;
+
+    @Inject
+    public ChatThrottleConfiguration(final BactaConfiguration configuration) {
+        this(configuration.getIntWithDefault("Bacta/ChatServer", "avatarMessageBurst", DEFAULT_AVATAR_BURST),
+                configuration.getIntWithDefault("Bacta/ChatServer", "avatarMessagesPerSecond", DEFAULT_AVATAR_RATE),
+                configuration.getIntWithDefault("Bacta/ChatServer", "roomMessageBurst", DEFAULT_ROOM_BURST),
+                configuration.getIntWithDefault("Bacta/ChatServer", "roomMessagesPerSecond", DEFAULT_ROOM_RATE),
+                Policy.valueOf(configuration.getStringWithDefault("Bacta/ChatServer", "throttlePolicy", "DROP").toUpperCase()),
+                configuration.getIntWithDefault("Bacta/ChatServer", "maxQueuedPerAvatar", DEFAULT_MAX_QUEUED),
+                configuration.getIntWithDefault("Bacta/ChatServer", "throttleDrainIntervalMs", DEFAULT_DRAIN_INTERVAL_MS));
+    }
+
+    /**
+     * @return The limits used when nothing is configured
+     */
+    public static ChatThrottleConfiguration defaults() {
+        return new ChatThrottleConfiguration(DEFAULT_AVATAR_BURST, DEFAULT_AVATAR_RATE, DEFAULT_ROOM_BURST, DEFAULT_ROOM_RATE,
+                Policy.DROP, DEFAULT_MAX_QUEUED, DEFAULT_DRAIN_INTERVAL_MS);
+    }
+
+    public ChatThrottleConfiguration(final int avatarBurst,
+                                     final int avatarMessagesPerSecond,
+                                     final int roomBurst,
+                                     final int roomMessagesPerSecond,
+                                     final Policy policy,
+                                     final int maxQueuedPerAvatar,
+                                     final int drainIntervalMs) {
+        this.avatarBurst = avatarBurst;
+        this.avatarMessagesPerSecond = avatarMessagesPerSecond;
+        this.roomBurst = roomBurst;
+        this.roomMessagesPerSecond = roomMessagesPerSecond;
+        this.policy = policy;
+        this.maxQueuedPerAvatar = maxQueuedPerAvatar;
+        this.drainIntervalMs = drainIntervalMs;
+    }
+}
@@ -1,45 +1,725 @@
 package com.ocdsoft.bacta.soe.chat.local;
 
-import com.ocdsoft.bacta.soe.chat.ChatAvatarId;
+import com.google.inject.Inject;
 import com.ocdsoft.bacta.soe.chat.ChatModule;
+import com.ocdsoft.bacta.soe.chat.ChatResult;
+import com.ocdsoft.bacta.soe.chat.message.ChatOnSendRoomMessage;
+import com.ocdsoft.bacta.soe.chat.message.ChatQueryRoom;
+import com.ocdsoft.bacta.soe.chat.message.ChatQueryRoomResults;
+import com.ocdsoft.bacta.soe.chat.message.ChatRoomList;
+import com.ocdsoft.bacta.soe.chat.message.ChatRoomMessage;
+import com.ocdsoft.bacta.soe.chat.message.ChatSendToRoom;
+import com.ocdsoft.bacta.soe.connection.SoeUdpConnection;
+import com.ocdsoft.bacta.soe.object.chat.ChatAvatarId;
+import com.ocdsoft.bacta.soe.object.chat.ChatAvatarRegistry;
 import com.ocdsoft.bacta.soe.object.chat.ChatRoomData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 /**
  * Created by crush on 1/12/2015.
  *
  * LocalChatModule acts as a local chat server instance instead of delegating to an external server. For this reason,
  * it only understands the SOE chat protocol, but requires no third-party server installation.
+ *
+ * Rooms are indexed by id and by address. Messages sent to a room are serialized once and the same buffer is queued
+ * on every member's connection.
+ *
+ * The room list is kept serialized. Adding, removing or changing a room only marks it stale; the next request
+ * rebuilds it from each room's cached encoding, so only rooms that changed are encoded again.
+ *
+ * Room messages can be spread over the threads of a {@link ChatShardExecutor}. A message is handled on its room's
+ * shard, and each recipient's copy is queued from the recipient's own shard.
  */
 public class LocalChatModule implements ChatModule {
 
-    private final Map<String, ChatRoomData> chatRooms;
-    private final Set<ChatAvatarId> registeredAvatars;
+    private static final Logger logger = LoggerFactory.getLogger(LocalChatModule.class);
+
+    private final Map<Integer, ChatRoom> roomsById;
+    private final Map<String, ChatRoom> roomsByAddress;
+    private final AtomicInteger nextRoomId;
+
+    private final AtomicInteger roomListVersion = new AtomicInteger();
+    private volatile SerializedRoomList roomList;
+    private final LongAdder roomListHits = new LongAdder();
+    private final LongAdder roomListBuilds = new LongAdder();
+    private final LongAdder droppedDeliveries = new LongAdder();
+
+    private final ChatAvatarRegistry avatarRegistry;
+    private final Map<Integer, ChatMember> membersByConnection;
+    private final Map<Integer, ChatMember> membersByAvatar;
+    private final ChatPresenceService presence;
+    private final ChatThrottle throttle;
+    private final ChatShardExecutor shards;
 
     public LocalChatModule() {
-        chatRooms = new HashMap<>();
-        registeredAvatars = new TreeSet<>();
+        this(new ChatAvatarRegistry(), ChatThrottleConfiguration.defaults(), new ChatShardExecutor(0, 0));
+    }
+
+    @Inject
+    public LocalChatModule(final ChatAvatarRegistry avatarRegistry,
+                           final ChatThrottleConfiguration throttleConfiguration,
+                           final ChatShardExecutor shards) {
+        this.avatarRegistry = avatarRegistry;
+        roomsById = new ConcurrentHashMap<>();
+        roomsByAddress = new ConcurrentHashMap<>();
+        nextRoomId = new AtomicInteger();
+        membersByConnection = new ConcurrentHashMap<>();
+        membersByAvatar = new ConcurrentHashMap<>();
+        presence = new ChatPresenceService(avatarRegistry, ChatPresenceService.DEFAULT_FLUSH_INTERVAL_MS);
+        throttle = new ChatThrottle(throttleConfiguration);
+        this.shards = shards;
+    }
+
+    public ChatAvatarRegistry getAvatarRegistry() {
+        return avatarRegistry;
+    }
+
+    public ChatPresenceService getPresence() {
+        return presence;
+    }
+
+    public ChatThrottle getThrottle() {
+        return throttle;
+    }
+
+    public ChatShardExecutor getShards() {
+        return shards;
+    }
+
+    /**
+     * Stops the presence flush and throttle drain threads. The shard executor is shared, so it is closed by its owner.
+     */
+    public void close() {
+        presence.close();
+        throttle.close();
     }
 
+    /**
+     * Gives the avatar its registry id ahead of its first connect
+     */
     @Override
-    public void register(ChatAvatarId avatarId) {
-        if (registeredAvatars.contains(avatarId))
-            return; //return something. findout how statuses should work.
+    public CompletionStage<ChatResult> register(final com.ocdsoft.bacta.soe.chat.ChatAvatarId avatarId) {
+        avatarRegistry.intern(avatarId);
+        return CompletableFuture.completedFuture(ChatResult.SUCCESS);
+    }
 
-        registeredAvatars.add(avatarId);
+    /**
+     * Avatars of the local module are connected with {@link #connectAvatar}, which binds them to their connection
+     */
+    @Override
+    public CompletionStage<ChatResult> connect(final com.ocdsoft.bacta.soe.chat.ChatAvatarId avatarId, final String password) {
+        return CompletableFuture.completedFuture(ChatResult.SUCCESS);
     }
 
     @Override
-    public void connect(ChatAvatarId avatarId, String password) {
+    public CompletionStage<ChatResult> disconnect(final com.ocdsoft.bacta.soe.chat.ChatAvatarId avatarId) {
+        final ChatMember member = findMember(avatarId);
+        if (member == null) {
+            return CompletableFuture.completedFuture(ChatResult.SRC_AVATAR_DOESNT_EXIST);
+        }
+        disconnectAvatar(member.getConnectionId());
+        return CompletableFuture.completedFuture(ChatResult.SUCCESS);
+    }
 
+    @Override
+    public CompletionStage<ChatResult> enterRoom(final com.ocdsoft.bacta.soe.chat.ChatAvatarId avatarId, final String roomAddress) {
+        final ChatMember member = findMember(avatarId);
+        final ChatRoom room = getRoom(roomAddress);
+        if (member == null) {
+            return CompletableFuture.completedFuture(ChatResult.SRC_AVATAR_DOESNT_EXIST);
+        }
+        if (room == null) {
+            return CompletableFuture.completedFuture(ChatResult.ADDRESS_DOESNT_EXIST);
+        }
+        return CompletableFuture.completedFuture(enterRoom(member.getConnectionId(), room.getId()));
     }
 
     @Override
-    public void disconnect(ChatAvatarId avatarId) {
+    public CompletionStage<ChatResult> leaveRoom(final com.ocdsoft.bacta.soe.chat.ChatAvatarId avatarId, final String roomAddress) {
+        final ChatMember member = findMember(avatarId);
+        final ChatRoom room = getRoom(roomAddress);
+        if (member == null) {
+            return CompletableFuture.completedFuture(ChatResult.SRC_AVATAR_DOESNT_EXIST);
+        }
+        if (room == null) {
+            return CompletableFuture.completedFuture(ChatResult.ADDRESS_DOESNT_EXIST);
+        }
+        return CompletableFuture.completedFuture(leaveRoom(member.getConnectionId(), room.getId()));
+    }
+
+    @Override
+    public CompletionStage<ChatResult> sendToRoom(final com.ocdsoft.bacta.soe.chat.ChatAvatarId avatarId, final String roomAddress, final String message) {
+        final ChatMember member = findMember(avatarId);
+        final ChatRoom room = getRoom(roomAddress);
+        if (member == null) {
+            return CompletableFuture.completedFuture(ChatResult.SRC_AVATAR_DOESNT_EXIST);
+        }
+        if (room == null) {
+            return CompletableFuture.completedFuture(ChatResult.ADDRESS_DOESNT_EXIST);
+        }
+        return submit(member, new ChatSendToRoom(message, "", room.getId(), 0));
+    }
+
+    private ChatMember findMember(final com.ocdsoft.bacta.soe.chat.ChatAvatarId avatarId) {
+        final int id = avatarRegistry.find(avatarId.getGameCode(), avatarId.getCluster(), avatarId.getName());
+        return id != ChatAvatarRegistry.NONE ? membersByAvatar.get(id) : null;
+    }
+
+    /**
+     * Targets named by a client are only looked up, so made up names never take a registry id
+     */
+    private int findAvatar(final ChatAvatarId avatar) {
+        return avatarRegistry.find(avatar.getGameCode(), avatar.getCluster(), avatar.getName());
+    }
+
+    /**
+     * Removes an avatar that no longer exists, such as a deleted character, from every room list, friend list and
+     * ignore list, then releases its registry id
+     */
+    public ChatResult destroyAvatar(final ChatAvatarId avatar) {
+        final int avatarId = findAvatar(avatar);
+        if (avatarId == ChatAvatarRegistry.NONE) {
+            return ChatResult.DEST_AVATAR_DOESNT_EXIST;
+        }
+
+        final ChatMember member = membersByAvatar.get(avatarId);
+        if (member != null) {
+            disconnectAvatar(member.getConnectionId());
+        }
+
+        for (ChatRoom room : roomsById.values()) {
+            room.forget(avatarId);
+        }
+        presence.forget(avatarId);
+        throttle.release(avatarId);
+        avatarRegistry.release(avatarId);
+        return ChatResult.SUCCESS;
+    }
+
+    /**
+     * Binds an avatar to the connection its room messages are sent on, replacing any earlier connection of the avatar
+     */
+    public ChatMember connectAvatar(final SoeUdpConnection connection, final ChatAvatarId avatar) {
+        final ChatMember member = new ChatMember(connection, avatar, avatarRegistry.intern(avatar));
+
+        final ChatMember previous = membersByAvatar.put(member.getAvatarId(), member);
+        if (previous != null && previous.getConnectionId() != member.getConnectionId()) {
+            disconnectAvatar(previous.getConnectionId());
+        }
+
+        membersByConnection.put(member.getConnectionId(), member);
+        presence.connect(member.getAvatarId(), connection);
+        return member;
+    }
+
+    /**
+     * Removes the avatar on a connection from every room it is in
+     */
+    public void disconnectAvatar(final int connectionId) {
+        final ChatMember member = membersByConnection.remove(connectionId);
+        if (member == null) {
+            return;
+        }
+
+        if (membersByAvatar.remove(member.getAvatarId(), member)) {
+            presence.disconnect(member.getAvatarId());
+            throttle.forget(member.getAvatarId());
+        }
+
+        for (int roomId : member.getRoomIds()) {
+            final ChatRoom room = roomsById.get(roomId);
+            if (room != null) {
+                room.leave(member);
+            }
+        }
+    }
+
+    public ChatMember getMember(final int connectionId) {
+        return membersByConnection.get(connectionId);
+    }
+
+    public ChatRoom getRoom(final int roomId) {
+        return roomsById.get(roomId);
+    }
+
+    public ChatRoom getRoom(final String address) {
+        return roomsByAddress.get(address.toLowerCase());
+    }
+
+    public Collection<ChatRoom> getRooms() {
+        return Collections.unmodifiableCollection(roomsById.values());
+    }
+
+    /**
+     * @return The new room, or null if a room already has this address
+     */
+    public ChatRoom createRoom(final ChatAvatarId creator,
+                               final String address,
+                               final String title,
+                               final boolean moderated,
+                               final boolean membersOnly,
+                               final boolean persistent) {
+
+        final ChatRoomData data = new ChatRoomData(address, creator);
+        data.setRoomId(nextRoomId.incrementAndGet());
+        data.setTitle(title);
+        data.setModerated(moderated);
+        data.setMembersOnly(membersOnly);
+        data.setPersistent(persistent);
+
+        final ChatRoom room = new ChatRoom(data, avatarRegistry.intern(creator));
+
+        if (roomsByAddress.putIfAbsent(address.toLowerCase(), room) != null) {
+            return null;
+        }
+
+        roomsById.put(room.getId(), room);
+        roomListVersion.incrementAndGet();
+        logger.debug("Created room {} {}", room.getId(), address);
+        return room;
+    }
+
+    public ChatResult destroyRoom(final int connectionId, final int roomId) {
+        final ChatMember member = membersByConnection.get(connectionId);
+        if (member == null) {
+            return ChatResult.SRC_AVATAR_DOESNT_EXIST;
+        }
+
+        final ChatRoom room = roomsById.get(roomId);
+        if (room == null) {
+            return ChatResult.ADDRESS_DOESNT_EXIST;
+        }
+
+        if (!room.isModerator(member.getAvatarId())) {
+            return ChatResult.ROOM_NO_PRIVILEGES;
+        }
+
+        roomsById.remove(roomId);
+        roomsByAddress.remove(room.getAddress().toLowerCase(), room);
+        roomListVersion.incrementAndGet();
+        room.clear();
+        return ChatResult.SUCCESS;
+    }
+
+    /**
+     * Changes a room's data, such as its title, and marks the room list stale. The address must not be changed.
+     */
+    public ChatResult updateRoom(final int roomId, final Consumer<ChatRoomData> change) {
+        final ChatRoom room = roomsById.get(roomId);
+        if (room == null) {
+            return ChatResult.ADDRESS_DOESNT_EXIST;
+        }
+
+        room.update(change);
+        roomListVersion.incrementAndGet();
+        return ChatResult.SUCCESS;
+    }
+
+    /**
+     * Answers ChatRequestRoomList with the cached room list
+     */
+    public void requestRoomList(final SoeUdpConnection connection) {
+        final SerializedRoomList list = getRoomList();
+        connection.sendSerialized(list.priority, list.buffer);
+    }
+
+    /**
+     * Answers ChatQueryRoom with the room's members and lists. The room itself is copied from its cached encoding.
+     */
+    public ChatResult queryRoom(final SoeUdpConnection connection, final ChatQueryRoom query) {
+        final ChatRoom room = getRoom(query.getRoomName());
+        if (room == null) {
+            return ChatResult.ADDRESS_DOESNT_EXIST;
+        }
+
+        final ChatMember[] recipients = room.getRecipients();
+        final List<ChatAvatarId> avatars = new ArrayList<>(recipients.length);
+        for (ChatMember member : recipients) {
+            avatars.add(member.getAvatar());
+        }
+
+        connection.sendMessage(new ChatQueryRoomResults(
+                avatars,
+                avatarsOf(room.getInvitedIds()),
+                avatarsOf(room.getModeratorIds()),
+                avatarsOf(room.getBannedIds()),
+                room.getEncoded(),
+                query.getSequence()));
+
+        return ChatResult.SUCCESS;
+    }
+
+    private List<ChatAvatarId> avatarsOf(final int[] avatarIds) {
+        final List<ChatAvatarId> avatars = new ArrayList<>(avatarIds.length);
+        for (int avatarId : avatarIds) {
+            final ChatAvatarId avatar = avatarRegistry.get(avatarId);
+            if (avatar != null) {
+                avatars.add(avatar);
+            }
+        }
+        return avatars;
+    }
+
+    /**
+     * A list built while a room changes is stamped with the older version, so it is rebuilt on the next request
+     */
+    private SerializedRoomList getRoomList() {
+        final int version = roomListVersion.get();
+        final SerializedRoomList cached = roomList;
+        if (cached != null && cached.version == version) {
+            roomListHits.increment();
+            return cached;
+        }
+
+        final List<ByteBuffer> encodedRooms = new ArrayList<>(roomsById.size());
+        for (ChatRoom room : roomsById.values()) {
+            encodedRooms.add(room.getEncoded());
+        }
+
+        final ChatRoomList message = ChatRoomList.fromEncoded(encodedRooms);
+        final SerializedRoomList built = new SerializedRoomList(version, message.getPriority(), message.serialize());
+        roomList = built;
+        roomListBuilds.increment();
+        return built;
+    }
+
+    public long getRoomListHits() {
+        return roomListHits.sum();
+    }
+
+    public long getRoomListBuilds() {
+        return roomListBuilds.sum();
+    }
+
+    /**
+     * @return Room message copies that were never queued because the recipient's shard was full
+     */
+    public long getDroppedDeliveries() {
+        return droppedDeliveries.sum();
+    }
+
+    public ChatResult enterRoom(final int connectionId, final int roomId) {
+        final ChatMember member = membersByConnection.get(connectionId);
+        if (member == null) {
+            return ChatResult.SRC_AVATAR_DOESNT_EXIST;
+        }
+
+        final ChatRoom room = roomsById.get(roomId);
+        if (room == null) {
+            return ChatResult.ADDRESS_DOESNT_EXIST;
+        }
+
+        return room.enter(member);
+    }
+
+    public ChatResult leaveRoom(final int connectionId, final int roomId) {
+        final ChatMember member = membersByConnection.get(connectionId);
+        if (member == null) {
+            return ChatResult.SRC_AVATAR_DOESNT_EXIST;
+        }
+
+        final ChatRoom room = roomsById.get(roomId);
+        if (room == null) {
+            return ChatResult.ADDRESS_DOESNT_EXIST;
+        }
+
+        return room.leave(member) ? ChatResult.SUCCESS : ChatResult.ROOM_NOT_IN_ROOM;
+    }
+
+    public ChatResult addModerator(final int connectionId, final int roomId, final ChatAvatarId target) {
+        final ChatRoom room = moderatedRoom(connectionId, roomId);
+        if (room == null) {
+            return lastModerationFailure(connectionId, roomId);
+        }
+        final int targetId = findAvatar(target);
+        if (targetId == ChatAvatarRegistry.NONE) {
+            return ChatResult.DEST_AVATAR_DOESNT_EXIST;
+        }
+        room.addModerator(targetId);
+        return ChatResult.SUCCESS;
+    }
+
+    public ChatResult removeModerator(final int connectionId, final int roomId, final ChatAvatarId target) {
+        final ChatRoom room = moderatedRoom(connectionId, roomId);
+        if (room == null) {
+            return lastModerationFailure(connectionId, roomId);
+        }
+        final int targetId = findAvatar(target);
+        return targetId != ChatAvatarRegistry.NONE && room.removeModerator(targetId) ? ChatResult.SUCCESS : ChatResult.DEST_AVATAR_DOESNT_EXIST;
+    }
+
+    /**
+     * Bans an avatar from a room, removing it if it is in the room
+     */
+    public ChatResult ban(final int connectionId, final int roomId, final ChatAvatarId target) {
+        final ChatRoom room = moderatedRoom(connectionId, roomId);
+        if (room == null) {
+            return lastModerationFailure(connectionId, roomId);
+        }
+
+        final int targetId = findAvatar(target);
+        if (targetId == ChatAvatarRegistry.NONE) {
+            return ChatResult.DEST_AVATAR_DOESNT_EXIST;
+        }
+        room.ban(targetId);
+
+        final ChatMember targetMember = membersByAvatar.get(targetId);
+        if (targetMember != null) {
+            room.leave(targetMember);
+        }
+        return ChatResult.SUCCESS;
+    }
+
+    public ChatResult unban(final int connectionId, final int roomId, final ChatAvatarId target) {
+        final ChatRoom room = moderatedRoom(connectionId, roomId);
+        if (room == null) {
+            return lastModerationFailure(connectionId, roomId);
+        }
+        final int targetId = findAvatar(target);
+        return targetId != ChatAvatarRegistry.NONE && room.unban(targetId) ? ChatResult.SUCCESS : ChatResult.DEST_AVATAR_DOESNT_EXIST;
+    }
+
+    public ChatResult invite(final int connectionId, final int roomId, final ChatAvatarId target) {
+        final ChatRoom room = moderatedRoom(connectionId, roomId);
+        if (room == null) {
+            return lastModerationFailure(connectionId, roomId);
+        }
+        final int targetId = findAvatar(target);
+        if (targetId == ChatAvatarRegistry.NONE) {
+            return ChatResult.DEST_AVATAR_DOESNT_EXIST;
+        }
+        room.invite(targetId);
+        return ChatResult.SUCCESS;
+    }
+
+    public ChatResult uninvite(final int connectionId, final int roomId, final ChatAvatarId target) {
+        final ChatRoom room = moderatedRoom(connectionId, roomId);
+        if (room == null) {
+            return lastModerationFailure(connectionId, roomId);
+        }
+        final int targetId = findAvatar(target);
+        return targetId != ChatAvatarRegistry.NONE && room.uninvite(targetId) ? ChatResult.SUCCESS : ChatResult.DEST_AVATAR_DOESNT_EXIST;
+    }
+
+    public ChatResult addFriend(final int connectionId, final ChatAvatarId friend) {
+        final ChatMember member = membersByConnection.get(connectionId);
+        if (member == null) {
+            return ChatResult.SRC_AVATAR_DOESNT_EXIST;
+        }
+        final int friendId = findAvatar(friend);
+        if (friendId == ChatAvatarRegistry.NONE) {
+            return ChatResult.DEST_AVATAR_DOESNT_EXIST;
+        }
+        presence.addFriend(member.getAvatarId(), friendId);
+        return ChatResult.SUCCESS;
+    }
+
+    public ChatResult removeFriend(final int connectionId, final ChatAvatarId friend) {
+        final ChatMember member = membersByConnection.get(connectionId);
+        if (member == null) {
+            return ChatResult.SRC_AVATAR_DOESNT_EXIST;
+        }
+        final int friendId = findAvatar(friend);
+        return friendId != ChatAvatarRegistry.NONE && presence.removeFriend(member.getAvatarId(), friendId)
+                ? ChatResult.SUCCESS : ChatResult.DEST_AVATAR_DOESNT_EXIST;
+    }
+
+    public ChatResult addIgnore(final int connectionId, final ChatAvatarId ignored) {
+        final ChatMember member = membersByConnection.get(connectionId);
+        if (member == null) {
+            return ChatResult.SRC_AVATAR_DOESNT_EXIST;
+        }
+        final int ignoredId = findAvatar(ignored);
+        if (ignoredId == ChatAvatarRegistry.NONE) {
+            return ChatResult.DEST_AVATAR_DOESNT_EXIST;
+        }
+        presence.addIgnore(member.getAvatarId(), ignoredId);
+        return ChatResult.SUCCESS;
+    }
+
+    public ChatResult removeIgnore(final int connectionId, final ChatAvatarId ignored) {
+        final ChatMember member = membersByConnection.get(connectionId);
+        if (member == null) {
+            return ChatResult.SRC_AVATAR_DOESNT_EXIST;
+        }
+        final int ignoredId = findAvatar(ignored);
+        return ignoredId != ChatAvatarRegistry.NONE && presence.removeIgnore(member.getAvatarId(), ignoredId)
+                ? ChatResult.SUCCESS : ChatResult.DEST_AVATAR_DOESNT_EXIST;
+    }
+
+    private ChatRoom moderatedRoom(final int connectionId, final int roomId) {
+        final ChatMember member = membersByConnection.get(connectionId);
+        final ChatRoom room = roomsById.get(roomId);
+        if (member == null || room == null || !room.isModerator(member.getAvatarId())) {
+            return null;
+        }
+        return room;
+    }
+
+    private ChatResult lastModerationFailure(final int connectionId, final int roomId) {
+        if (!membersByConnection.containsKey(connectionId)) {
+            return ChatResult.SRC_AVATAR_DOESNT_EXIST;
+        }
+        if (!roomsById.containsKey(roomId)) {
+            return ChatResult.ADDRESS_DOESNT_EXIST;
+        }
+        return ChatResult.ROOM_NO_PRIVILEGES;
+    }
+
+    /**
+     * Fans a message out to every member of the room, and answers the sender with a ChatOnSendRoomMessage.
+     * The ChatRoomMessage is serialized once and that buffer is shared by every member's send queue.
+     *
+     * Messages pass the {@link ChatThrottle} first. A dropped message is answered with ROOM_UNKNOWN_FAILURE; a
+     * queued one returns SUCCESS now and is answered when it is sent. The same applies to a message handed to
+     * another shard, which is answered with ROOM_UNKNOWN_FAILURE if that shard's mailbox is full, or if a
+     * recipient's shard was too full to take its copy.
+     */
+    public ChatResult sendToRoom(final SoeUdpConnection connection, final ChatSendToRoom message) {
+        final ChatMember sender = membersByConnection.get(connection.getId());
+        if (sender == null) {
+            return reply(connection, message, ChatResult.SRC_AVATAR_DOESNT_EXIST);
+        }
+
+        final CompletableFuture<ChatResult> result = submit(sender, message);
+        result.thenAccept(value -> reply(connection, message, value));
+        return result.getNow(ChatResult.SUCCESS);
+    }
+
+    /**
+     * Passes a room message through the throttle to its room's shard
+     * @return Completes once the message has been fanned out or rejected
+     */
+    private CompletableFuture<ChatResult> submit(final ChatMember sender, final ChatSendToRoom message) {
+        // Buckets are indexed by room id, so only ids of existing rooms may reach the throttle
+        if (!roomsById.containsKey(message.getRoomId())) {
+            return CompletableFuture.completedFuture(ChatResult.ADDRESS_DOESNT_EXIST);
+        }
+
+        final CompletableFuture<ChatResult> result = new CompletableFuture<>();
+        final Runnable send = () -> result.complete(broadcast(sender.getConnectionId(), message));
+
+        final ChatThrottle.Admission admission = throttle.admit(sender.getAvatarId(), message.getRoomId(), () -> {
+            if (!shards.execute(message.getRoomId(), send)) {
+                result.complete(ChatResult.ROOM_UNKNOWN_FAILURE);
+            }
+        });
+
+        if (admission == ChatThrottle.Admission.DROPPED) {
+            result.complete(ChatResult.ROOM_UNKNOWN_FAILURE);
+        }
+        return result;
+    }
+
+    private static ChatResult reply(final SoeUdpConnection connection, final ChatSendToRoom message, final ChatResult result) {
+        connection.sendMessage(new ChatOnSendRoomMessage(result.getValue(), message.getSequence()));
+        return result;
+    }
+
+    private ChatResult broadcast(final int connectionId, final ChatSendToRoom message) {
+        final ChatMember sender = membersByConnection.get(connectionId);
+        if (sender == null) {
+            return ChatResult.SRC_AVATAR_DOESNT_EXIST;
+        }
+
+        final ChatRoom room = roomsById.get(message.getRoomId());
+        if (room == null) {
+            return ChatResult.ADDRESS_DOESNT_EXIST;
+        }
+
+        if (!room.isMember(connectionId)) {
+            return ChatResult.ROOM_SRC_NOT_IN_ROOM;
+        }
+
+        if (room.getData().isModerated() && !room.isModerator(sender.getAvatarId())) {
+            return ChatResult.ROOM_MODERATED_ROOM;
+        }
+
+        final ChatRoomMessage roomMessage = new ChatRoomMessage(
+                sender.getAvatar(),
+                room.getId(),
+                message.getMessage(),
+                message.getOutOfBand());
+
+        final int dropped = deliver(room.getRecipients(), roomMessage.getPriority(), roomMessage.serialize());
+        if (dropped > 0) {
+            logger.warn("Room {} message from {} was not delivered to {} members, their shards are full",
+                    room.getId(), sender.getAvatarId(), dropped);
+            return ChatResult.ROOM_UNKNOWN_FAILURE;
+        }
+        return ChatResult.SUCCESS;
+    }
+
+    /**
+     * Queues one serialized message on every recipient's connection, from the recipient's shard
+     * @return The number of recipients that were dropped because their shard's mailbox was full
+     */
+    @SuppressWarnings("unchecked")
+    private int deliver(final ChatMember[] recipients, final short priority, final ByteBuffer serialized) {
+        final int shardCount = shards.getShardCount();
+        if (shardCount == 0) {
+            for (ChatMember recipient : recipients) {
+                recipient.getConnection().sendSerialized(priority, serialized);
+            }
+            return 0;
+        }
+
+        final List<ChatMember>[] recipientsByShard = new List[shardCount];
+        for (ChatMember recipient : recipients) {
+            final int shard = shards.shardOf(recipient.getAvatarId());
+            if (recipientsByShard[shard] == null) {
+                recipientsByShard[shard] = new ArrayList<>();
+            }
+            recipientsByShard[shard].add(recipient);
+        }
+
+        int dropped = 0;
+        for (int shard = 0; shard < shardCount; ++shard) {
+            final List<ChatMember> shardRecipients = recipientsByShard[shard];
+            if (shardRecipients == null) {
+                continue;
+            }
+
+            final Runnable send = () -> {
+                for (ChatMember recipient : shardRecipients) {
+                    recipient.getConnection().sendSerialized(priority, serialized);
+                }
+            };
+
+            if (shards.isOnShard(shard)) {
+                send.run();
+            } else if (!shards.executeOn(shard, send)) {
+                dropped += shardRecipients.size();
+            }
+        }
+
+        droppedDeliveries.add(dropped);
+        return dropped;
+    }
+
+    private static final class SerializedRoomList {
+        private final int version;
+        private final short priority;
+        private final ByteBuffer buffer;
 
+        private SerializedRoomList(final int version, final short priority, final ByteBuffer buffer) {
+            this.version = version;
+            this.priority = priority;
+            this.buffer = buffer;
+        }
     }
 }
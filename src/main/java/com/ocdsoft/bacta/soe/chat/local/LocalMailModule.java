@@ -1,9 +1,580 @@
 package com.ocdsoft.bacta.soe.chat.local;
 
+import com.google.inject.Inject;
+import com.ocdsoft.bacta.engine.conf.BactaConfiguration;
+import com.ocdsoft.bacta.engine.utils.BufferUtil;
+import com.ocdsoft.bacta.soe.chat.ChatAvatarId;
+import com.ocdsoft.bacta.soe.chat.ChatPersistentMessageToClientData;
+import com.ocdsoft.bacta.soe.chat.ChatResult;
 import com.ocdsoft.bacta.soe.chat.MailModule;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Created by crush on 1/12/2015.
+ *
+ * LocalMailModule keeps persistent messages in an append-only log of memory-mapped {@link MailSegment} files, so no
+ * external database is needed.
+ *
+ * Messages, deletes and status changes are appended as records. On start the log is scanned once to build a
+ * per-avatar index of record locations; headers are decoded the first time a mailbox is listed, and bodies only when
+ * a message is fetched. Once more than half of the log is deleted messages and superseded records, the live messages
+ * are copied into new segments and the old ones removed. Compaction also keeps a delete record of the highest id
+ * handed out, so ids of deleted messages are never reused after a restart.
+ *
+ * A message is limited to {@link #MAX_RECORD_SIZE} bytes once encoded; a larger one is refused.
  */
 public class LocalMailModule implements MailModule {
+
+    private static final Logger logger = LoggerFactory.getLogger(LocalMailModule.class);
+
+    private static final String LOG_SUFFIX = ".log";
+    private static final String COMPACT_SUFFIX = ".compact";
+    private static final String COMPACT_MARKER = "compact.done";
+
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+    private final Path directory;
+    private final int segmentSize;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final List<MailSegment> segments = new ArrayList<>();
+    private final Map<String, List<MailEntry>> mailboxes = new HashMap<>();
+    private final TIntObjectMap<MailEntry> entries = new TIntObjectHashMap<>();
+
+    private final ByteBuffer scratch = ByteBuffer.allocate(MAX_RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    private int nextMessageId = 1;
+    private int nextSegmentNumber = 1;
+    private long liveBytes;
+    private long deadBytes;
+
+    @Inject
+    public LocalMailModule(final BactaConfiguration configuration) throws IOException {
+        this(Paths.get(configuration.getStringWithDefault("Bacta/ChatServer", "mailDirectory", "mail")),
+                configuration.getIntWithDefault("Bacta/ChatServer", "mailSegmentSize", 16 * 1024 * 1024));
+    }
+
+    public LocalMailModule(final Path directory, final int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = Math.max(segmentSize, MAX_RECORD_SIZE + MailSegment.RECORD_HEADER_SIZE);
+
+        Files.createDirectories(directory);
+        recoverCompaction();
+        load();
+
+        logger.info("Loaded {} messages in {} mailboxes from {} segments", entries.size(), mailboxes.size(), segments.size());
+    }
+
+    private static String key(final ChatAvatarId avatarId) {
+        return avatarId.getFullName().toLowerCase();
+    }
+
+    @Override
+    public SendResult sendPersistentMessage(final ChatAvatarId from,
+                                            final ChatAvatarId to,
+                                            final String subject,
+                                            final String message,
+                                            final String outOfBand) {
+        lock.writeLock().lock();
+        try {
+            final int timeStamp = (int) (System.currentTimeMillis() / 1000);
+            final String ownerKey = key(to);
+
+            // Encoded before an id is taken, so a message too large for a record uses none up
+            scratch.clear();
+            try {
+                scratch.putInt(0);
+                scratch.put((byte) ChatPersistentMessageToClientData.STATUS_NEW);
+                scratch.putInt(timeStamp);
+                BufferUtil.putAscii(scratch, ownerKey);
+                BufferUtil.putAscii(scratch, from.getFullName());
+                BufferUtil.putUnicode(scratch, subject);
+                BufferUtil.putUnicode(scratch, message);
+                BufferUtil.putUnicode(scratch, outOfBand != null ? outOfBand : "");
+            } catch (BufferOverflowException e) {
+                logger.warn("Refusing mail from {} to {}, larger than {} bytes", from.getFullName(), ownerKey, MAX_RECORD_SIZE);
+                return SendResult.refused(ChatResult.ROOM_UNKNOWN_FAILURE);
+            }
+            scratch.flip();
+
+            final int id = nextMessageId++;
+            scratch.putInt(0, id);
+
+            final int length = scratch.remaining();
+            final MailSegment segment = activeSegment(length);
+            final int offset = segment.append(MailSegment.MESSAGE, scratch);
+
+            final MailEntry entry = new MailEntry(id, ownerKey, segment, offset, ChatPersistentMessageToClientData.STATUS_NEW);
+            index(entry);
+            liveBytes += MailSegment.RECORD_HEADER_SIZE + length;
+
+            return SendResult.sent(id);
+
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<ChatPersistentMessageToClientData> getMessageHeaders(final ChatAvatarId owner) {
+        lock.readLock().lock();
+        try {
+            final List<MailEntry> mailbox = mailboxes.get(key(owner));
+            if (mailbox == null) {
+                return Collections.emptyList();
+            }
+
+            final List<ChatPersistentMessageToClientData> headers = new ArrayList<>(mailbox.size());
+            for (MailEntry entry : mailbox) {
+                headers.add(entry.getHeader());
+            }
+            return headers;
+
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ChatPersistentMessageToClientData getMessage(final ChatAvatarId owner, final int messageId) {
+        final ChatPersistentMessageToClientData message;
+
+        lock.readLock().lock();
+        try {
+            final MailEntry entry = entries.get(messageId);
+            if (entry == null || !entry.ownerKey.equals(key(owner))) {
+                return null;
+            }
+            message = entry.readMessage();
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (message.getStatus() != ChatPersistentMessageToClientData.STATUS_READ) {
+            setStatus(messageId, ChatPersistentMessageToClientData.STATUS_READ);
+        }
+        return message;
+    }
+
+    private void setStatus(final int messageId, final char status) {
+        lock.writeLock().lock();
+        try {
+            final MailEntry entry = entries.get(messageId);
+            if (entry == null || entry.status == status) {
+                return;
+            }
+
+            scratch.clear();
+            scratch.putInt(messageId);
+            scratch.put((byte) status);
+            scratch.flip();
+
+            final int length = scratch.remaining();
+            activeSegment(length).append(MailSegment.STATUS, scratch);
+            entry.setStatus(status);
+            deadBytes += MailSegment.RECORD_HEADER_SIZE + length;
+
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean deleteMessage(final ChatAvatarId owner, final int messageId) {
+        lock.writeLock().lock();
+        try {
+            final MailEntry entry = entries.get(messageId);
+            if (entry == null || !entry.ownerKey.equals(key(owner))) {
+                return false;
+            }
+
+            delete(entry);
+            compactIfNeeded();
+            return true;
+
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int deleteAllMessages(final ChatAvatarId owner) {
+        lock.writeLock().lock();
+        try {
+            final List<MailEntry> mailbox = mailboxes.get(key(owner));
+            if (mailbox == null) {
+                return 0;
+            }
+
+            final List<MailEntry> deleted = new ArrayList<>(mailbox);
+            for (MailEntry entry : deleted) {
+                delete(entry);
+            }
+            compactIfNeeded();
+            return deleted.size();
+
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void delete(final MailEntry entry) throws IOException {
+        scratch.clear();
+        scratch.putInt(entry.id);
+        scratch.flip();
+
+        final int length = scratch.remaining();
+        activeSegment(length).append(MailSegment.DELETE, scratch);
+
+        unindex(entry);
+        final int recordSize = MailSegment.RECORD_HEADER_SIZE + entry.segment.getLength(entry.offset);
+        liveBytes -= recordSize;
+        deadBytes += recordSize + MailSegment.RECORD_HEADER_SIZE + length;
+    }
+
+    private void index(final MailEntry entry) {
+        entries.put(entry.id, entry);
+        mailboxes.computeIfAbsent(entry.ownerKey, k -> new ArrayList<>()).add(entry);
+    }
+
+    private void unindex(final MailEntry entry) {
+        entries.remove(entry.id);
+        final List<MailEntry> mailbox = mailboxes.get(entry.ownerKey);
+        if (mailbox != null) {
+            mailbox.remove(entry);
+            if (mailbox.isEmpty()) {
+                mailboxes.remove(entry.ownerKey);
+            }
+        }
+    }
+
+    /**
+     * @return The last segment, or a new one if the record would not fit
+     */
+    private MailSegment activeSegment(final int payloadLength) throws IOException {
+        if (!segments.isEmpty()) {
+            final MailSegment last = segments.get(segments.size() - 1);
+            if (last.getPosition() + MailSegment.RECORD_HEADER_SIZE + payloadLength <= last.capacity()) {
+                return last;
+            }
+        }
+
+        final int number = nextSegmentNumber++;
+        final MailSegment segment = new MailSegment(segmentPath(number, LOG_SUFFIX), number, segmentSize);
+        segments.add(segment);
+        return segment;
+    }
+
+    private Path segmentPath(final int number, final String suffix) {
+        return directory.resolve(String.format("mail-%08d%s", number, suffix));
+    }
+
+    private static int segmentNumber(final Path path) {
+        final String name = path.getFileName().toString();
+        return Integer.parseInt(name.substring(5, name.indexOf('.')));
+    }
+
+    private List<Path> listSegments(final String suffix) throws IOException {
+        final List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "mail-*" + suffix)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        paths.sort((a, b) -> Integer.compare(segmentNumber(a), segmentNumber(b)));
+        return paths;
+    }
+
+    /**
+     * A compaction interrupted before its segments were complete is discarded. Once the marker is written, holding the
+     * number of the first new segment, the compaction is finished instead.
+     */
+    private void recoverCompaction() throws IOException {
+        final Path marker = directory.resolve(COMPACT_MARKER);
+
+        if (!Files.exists(marker)) {
+            for (Path path : listSegments(COMPACT_SUFFIX)) {
+                logger.warn("Discarding {} of an unfinished compaction", path);
+                Files.delete(path);
+            }
+            return;
+        }
+
+        final int firstCompacted = Integer.parseInt(new String(Files.readAllBytes(marker), StandardCharsets.US_ASCII).trim());
+        logger.warn("Finishing an interrupted compaction");
+
+        for (Path path : listSegments(LOG_SUFFIX)) {
+            if (segmentNumber(path) < firstCompacted) {
+                Files.delete(path);
+            }
+        }
+
+        for (Path path : listSegments(COMPACT_SUFFIX)) {
+            Files.move(path, segmentPath(segmentNumber(path), LOG_SUFFIX));
+        }
+
+        Files.delete(marker);
+    }
+
+    /**
+     * Scans the log once, keeping only the location of each message. Later records of a message override earlier ones.
+     */
+    private void load() throws IOException {
+        for (Path path : listSegments(LOG_SUFFIX)) {
+            final int number = segmentNumber(path);
+            final MailSegment segment = new MailSegment(path, number, segmentSize);
+            segments.add(segment);
+            nextSegmentNumber = Math.max(nextSegmentNumber, number + 1);
+
+            int offset = 0;
+            byte type;
+            while ((type = segment.getType(offset)) != MailSegment.END) {
+                final int length = segment.getLength(offset);
+                final int recordSize = MailSegment.RECORD_HEADER_SIZE + length;
+                final ByteBuffer payload = segment.payload(offset);
+                final int id = payload.getInt();
+
+                switch (type) {
+                    case MailSegment.MESSAGE: {
+                        final char status = (char) payload.get();
+                        payload.getInt();
+                        final String ownerKey = BufferUtil.getAscii(payload);
+                        index(new MailEntry(id, ownerKey, segment, offset, status));
+                        liveBytes += recordSize;
+                        nextMessageId = Math.max(nextMessageId, id + 1);
+                        break;
+                    }
+                    case MailSegment.DELETE: {
+                        final MailEntry entry = entries.get(id);
+                        if (entry != null) {
+                            unindex(entry);
+                            final int deletedSize = MailSegment.RECORD_HEADER_SIZE + entry.segment.getLength(entry.offset);
+                            liveBytes -= deletedSize;
+                            deadBytes += deletedSize;
+                        }
+                        deadBytes += recordSize;
+                        nextMessageId = Math.max(nextMessageId, id + 1);
+                        break;
+                    }
+                    case MailSegment.STATUS: {
+                        final MailEntry entry = entries.get(id);
+                        if (entry != null) {
+                            entry.setStatus((char) payload.get());
+                        }
+                        deadBytes += recordSize;
+                        break;
+                    }
+                    default:
+                        throw new IOException("Unknown mail record type " + type + " at " + offset + " in " + path);
+                }
+
+                offset += recordSize;
+            }
+
+            segment.recover(offset);
+        }
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (deadBytes > liveBytes && deadBytes > segmentSize / 2) {
+            compact();
+        }
+    }
+
+    /**
+     * Copies every live message, with its current status, into new segments and removes the old ones. A delete
+     * record of the last id handed out follows them, as the message that held it may be gone.
+     */
+    private void compact() throws IOException {
+        final long start = System.currentTimeMillis();
+        final int messageCount = entries.size();
+
+        final List<MailEntry> live = new ArrayList<>(entries.valueCollection());
+        live.sort((a, b) -> Integer.compare(a.id, b.id));
+
+        final int firstCompacted = nextSegmentNumber;
+        final List<MailSegment> compacted = new ArrayList<>();
+        final MailSegment[] newSegments = new MailSegment[live.size()];
+        final int[] newOffsets = new int[live.size()];
+
+        MailSegment current = null;
+        for (int i = 0; i < live.size(); ++i) {
+            final MailEntry entry = live.get(i);
+            final ByteBuffer payload = entry.segment.payload(entry.offset);
+            payload.put(4, (byte) entry.status);
+
+            int offset = current != null ? current.append(MailSegment.MESSAGE, payload) : -1;
+            if (offset < 0) {
+                final int number = nextSegmentNumber++;
+                current = new MailSegment(segmentPath(number, COMPACT_SUFFIX), number, segmentSize);
+                compacted.add(current);
+                payload.rewind();
+                offset = current.append(MailSegment.MESSAGE, payload);
+            }
+
+            newSegments[i] = current;
+            newOffsets[i] = offset;
+        }
+
+        final ByteBuffer highWater = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        highWater.putInt(0, nextMessageId - 1);
+        if (current == null || current.append(MailSegment.DELETE, highWater) < 0) {
+            final int number = nextSegmentNumber++;
+            current = new MailSegment(segmentPath(number, COMPACT_SUFFIX), number, segmentSize);
+            compacted.add(current);
+            current.append(MailSegment.DELETE, highWater);
+        }
+
+        for (MailSegment segment : compacted) {
+            segment.force();
+        }
+
+        final Path marker = directory.resolve(COMPACT_MARKER);
+        Files.write(marker, Integer.toString(firstCompacted).getBytes(StandardCharsets.US_ASCII), StandardOpenOption.CREATE_NEW, StandardOpenOption.SYNC);
+
+        for (MailSegment segment : segments) {
+            segment.delete();
+        }
+        segments.clear();
+
+        for (MailSegment segment : compacted) {
+            segment.rename(segmentPath(segment.getNumber(), LOG_SUFFIX));
+            segments.add(segment);
+        }
+
+        Files.delete(marker);
+
+        for (int i = 0; i < live.size(); ++i) {
+            live.get(i).move(newSegments[i], newOffsets[i]);
+        }
+
+        deadBytes = MailSegment.RECORD_HEADER_SIZE + highWater.capacity();
+        logger.info("Compacted mail log to {} messages in {} segments in {}ms",
+                messageCount, segments.size(), System.currentTimeMillis() - start);
+    }
+
+    public int getMessageCount() {
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            for (MailSegment segment : segments) {
+                segment.close();
+            }
+            segments.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Where a message lives in the log, and its header once decoded
+     */
+    private static final class MailEntry {
+
+        private final int id;
+        private final String ownerKey;
+
+        private MailSegment segment;
+        private int offset;
+        private volatile char status;
+
+        private volatile ChatPersistentMessageToClientData header;
+
+        private MailEntry(final int id, final String ownerKey, final MailSegment segment, final int offset, final char status) {
+            this.id = id;
+            this.ownerKey = ownerKey;
+            this.segment = segment;
+            this.offset = offset;
+            this.status = status;
+        }
+
+        private void setStatus(final char status) {
+            this.status = status;
+            this.header = null;
+        }
+
+        private void move(final MailSegment segment, final int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        private ChatPersistentMessageToClientData getHeader() {
+            ChatPersistentMessageToClientData result = header;
+            if (result == null) {
+                result = decode(true);
+                header = result;
+            }
+            return result;
+        }
+
+        private ChatPersistentMessageToClientData readMessage() {
+            return decode(false);
+        }
+
+        private ChatPersistentMessageToClientData decode(final boolean headerOnly) {
+            final ByteBuffer payload = segment.payload(offset);
+            payload.getInt();
+            payload.get();
+            final int timeStamp = payload.getInt();
+            BufferUtil.getAscii(payload);
+            final ChatAvatarId from = new ChatAvatarId(BufferUtil.getAscii(payload));
+            final String subject = BufferUtil.getUnicode(payload);
+
+            if (headerOnly) {
+                return new ChatPersistentMessageToClientData(from, id, true, null, subject, null, status, timeStamp);
+            }
+
+            final String message = BufferUtil.getUnicode(payload);
+            final String outOfBand = BufferUtil.getUnicode(payload);
+            return new ChatPersistentMessageToClientData(from, id, false, message, subject, outOfBand, status, timeStamp);
+        }
+    }
 }
@@ -0,0 +1,122 @@
+package com.ocdsoft.bacta.soe.chat.local;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One fixed size, memory-mapped file of the {@link LocalMailModule} log. Records are appended and never changed,
+ * except for the status byte of a message being rewritten during compaction.
+ *
+ * A record is a type byte, the payload length and the payload. The file is zero filled when created, so a zero type
+ * byte marks the end of the log.
+ */
+final class MailSegment {
+
+    static final byte END = 0;
+    static final byte MESSAGE = 1;
+    static final byte DELETE = 2;
+    static final byte STATUS = 3;
+
+    static final int RECORD_HEADER_SIZE = 5;
+
+    @Getter
+    private final int number;
+    @Getter
+    private Path path;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+
+    @Getter
+    private int position;
+
+    MailSegment(final Path path, final int number, final int size) throws IOException {
+        this.path = path;
+        this.number = number;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final long mapSize = Math.max(size, channel.size());
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, mapSize);
+        this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.position = 0;
+    }
+
+    int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * @return Offset of the record, or -1 if it does not fit
+     */
+    int append(final byte type, final ByteBuffer payload) {
+        final int length = payload.remaining();
+        if (position + RECORD_HEADER_SIZE + length > buffer.capacity()) {
+            return -1;
+        }
+
+        final int offset = position;
+
+        final ByteBuffer target = buffer.duplicate();
+        target.position(offset + RECORD_HEADER_SIZE);
+        target.put(payload);
+
+        buffer.putInt(offset + 1, length);
+        // The type byte goes last, so a torn write ends the log instead of leaving a partial record
+        buffer.put(offset, type);
+
+        position = offset + RECORD_HEADER_SIZE + length;
+        return offset;
+    }
+
+    byte getType(final int offset) {
+        return offset + RECORD_HEADER_SIZE <= buffer.capacity() ? buffer.get(offset) : END;
+    }
+
+    int getLength(final int offset) {
+        return buffer.getInt(offset + 1);
+    }
+
+    /**
+     * @return A little endian view of the payload of the record at {@code offset}
+     */
+    ByteBuffer payload(final int offset) {
+        final ByteBuffer view = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        view.position(offset + RECORD_HEADER_SIZE);
+        view.limit(offset + RECORD_HEADER_SIZE + getLength(offset));
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Moves the write position past the records already in the file
+     */
+    void recover(final int position) {
+        this.position = position;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    void rename(final Path target) throws IOException {
+        Files.move(path, target, StandardCopyOption.ATOMIC_MOVE);
+        path = target;
+    }
+
+    void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+}
@@ -0,0 +1,114 @@
+package com.ocdsoft.bacta.soe.chat.message;
+
+import com.ocdsoft.bacta.soe.message.GameNetworkMessage;
+import com.ocdsoft.bacta.soe.object.chat.ChatAvatarId;
+import com.ocdsoft.bacta.soe.util.SOECRC32;
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Carries a batch of avatar scoped requests from a game server to the chat server. Each request is a serialized
+ * {@link GameNetworkMessage} tagged with a sequence number, which its answer in {@link ChatAgentResponses} repeats.
+ */
+public class ChatAgentRequests extends GameNetworkMessage {
+
+    private static final short priority = 0x4;
+    private static final int messageType = SOECRC32.hashCode(ChatAgentRequests.class.getSimpleName());
+
+    /**
+     * Bytes of a serialized batch ahead of its requests: priority, message type, link id and request count
+     */
+    public static final int BATCH_OVERHEAD = 14;
+
+    /**
+     * Bytes added to a batch per request, next to the avatar and the message
+     */
+    public static final int REQUEST_OVERHEAD = 8;
+
+    /**
+     * Identifies the game server's link across reconnects, so replayed requests are recognised
+     */
+    @Getter
+    private final int linkId;
+    @Getter
+    private final List<Request> requests;
+
+    public ChatAgentRequests(final int linkId, final List<Request> requests) {
+        super(priority, messageType);
+
+        this.linkId = linkId;
+        this.requests = requests;
+    }
+
+    public ChatAgentRequests(final ByteBuffer buffer) {
+        super(priority, messageType);
+
+        linkId = buffer.getInt();
+
+        final int count = buffer.getInt();
+        requests = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            final int sequence = buffer.getInt();
+            final ChatAvatarId avatar = new ChatAvatarId(buffer);
+            requests.add(new Request(sequence, avatar, slice(buffer, buffer.getInt())));
+        }
+    }
+
+    @Override
+    public void writeToBuffer(final ByteBuffer buffer) {
+        buffer.putInt(linkId);
+        buffer.putInt(requests.size());
+        for (Request request : requests) {
+            buffer.putInt(request.sequence);
+            request.avatar.writeToBuffer(buffer);
+            buffer.putInt(request.message.remaining());
+            buffer.put(request.message.duplicate());
+        }
+    }
+
+    static ByteBuffer slice(final ByteBuffer buffer, final int length) {
+        final ByteBuffer view = buffer.duplicate();
+        view.limit(view.position() + length);
+        buffer.position(buffer.position() + length);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public static final class Request {
+
+        @Getter
+        private final int sequence;
+        @Getter
+        private final ChatAvatarId avatar;
+        /**
+         * The request as written by {@link GameNetworkMessage#serialize()}
+         */
+        private final ByteBuffer message;
+
+        public Request(final int sequence, final ChatAvatarId avatar, final ByteBuffer message) {
+            this.sequence = sequence;
+            this.avatar = avatar;
+            this.message = message;
+        }
+
+        public ByteBuffer getMessage() {
+            return message.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * @return The message type of the request, which selects its handler
+         */
+        public int getMessageType() {
+            return message.getInt(message.position() + 2);
+        }
+
+        public int getEncodedSize() {
+            return REQUEST_OVERHEAD
+                    + 6 + avatar.getGameCode().length() + avatar.getCluster().length() + avatar.getName().length()
+                    + message.remaining();
+        }
+    }
+}
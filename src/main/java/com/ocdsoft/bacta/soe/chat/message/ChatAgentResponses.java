@@ -0,0 +1,80 @@
+package com.ocdsoft.bacta.soe.chat.message;
+
+import com.ocdsoft.bacta.soe.message.GameNetworkMessage;
+import com.ocdsoft.bacta.soe.util.SOECRC32;
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Answers a {@link ChatAgentRequests} batch. Each response repeats the sequence of its request and carries a
+ * {@link com.ocdsoft.bacta.soe.chat.ChatResult} value and an optional serialized reply.
+ */
+public class ChatAgentResponses extends GameNetworkMessage {
+
+    private static final short priority = 0x4;
+    private static final int messageType = SOECRC32.hashCode(ChatAgentResponses.class.getSimpleName());
+
+    private static final ByteBuffer NO_MESSAGE = ByteBuffer.allocate(0).order(ByteOrder.LITTLE_ENDIAN);
+
+    @Getter
+    private final List<Response> responses;
+
+    public ChatAgentResponses(final List<Response> responses) {
+        super(priority, messageType);
+
+        this.responses = responses;
+    }
+
+    public ChatAgentResponses(final ByteBuffer buffer) {
+        super(priority, messageType);
+
+        final int count = buffer.getInt();
+        responses = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            final int sequence = buffer.getInt();
+            final int result = buffer.getInt();
+            responses.add(new Response(sequence, result, ChatAgentRequests.slice(buffer, buffer.getInt())));
+        }
+    }
+
+    @Override
+    public void writeToBuffer(final ByteBuffer buffer) {
+        buffer.putInt(responses.size());
+        for (Response response : responses) {
+            buffer.putInt(response.sequence);
+            buffer.putInt(response.result);
+            buffer.putInt(response.message.remaining());
+            buffer.put(response.message.duplicate());
+        }
+    }
+
+    public static final class Response {
+
+        @Getter
+        private final int sequence;
+        @Getter
+        private final int result;
+        /**
+         * The reply as written by {@link GameNetworkMessage#serialize()}, empty if there is none
+         */
+        private final ByteBuffer message;
+
+        public Response(final int sequence, final int result, final ByteBuffer message) {
+            this.sequence = sequence;
+            this.result = result;
+            this.message = message != null ? message : NO_MESSAGE;
+        }
+
+        public ByteBuffer getMessage() {
+            return message.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        public boolean hasMessage() {
+            return message.hasRemaining();
+        }
+    }
+}
@@ -1,11 +1,43 @@
 package com.ocdsoft.bacta.soe.chat.message;
 
-import com.ocdsoft.bacta.soe.chat.ChatAvatarId;
+import com.ocdsoft.bacta.engine.utils.BufferUtil;
+import com.ocdsoft.bacta.soe.message.GameNetworkMessage;
+import com.ocdsoft.bacta.soe.object.chat.ChatAvatarId;
+import com.ocdsoft.bacta.soe.util.SOECRC32;
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
 
 /**
  * Created by crush on 1/12/2015.
  */
-public class ChatFriendsListUpdate {
-    private ChatAvatarId characterName;
-    private boolean isOnline;
+public class ChatFriendsListUpdate extends GameNetworkMessage {
+
+    private static final short priority = 0x2; //TODO: Get the right value
+    private static final int messageType = SOECRC32.hashCode(ChatFriendsListUpdate.class.getSimpleName());
+
+    @Getter
+    private final ChatAvatarId characterName;
+    @Getter
+    private final boolean isOnline;
+
+    public ChatFriendsListUpdate(final ChatAvatarId characterName, final boolean isOnline) {
+        super(priority, messageType);
+
+        this.characterName = characterName;
+        this.isOnline = isOnline;
+    }
+
+    public ChatFriendsListUpdate(final ByteBuffer buffer) {
+        super(priority, messageType);
+
+        characterName = new ChatAvatarId(buffer);
+        isOnline = BufferUtil.getBoolean(buffer);
+    }
+
+    @Override
+    public void writeToBuffer(final ByteBuffer buffer) {
+        characterName.writeToBuffer(buffer);
+        BufferUtil.putBoolean(buffer, isOnline);
+    }
 }
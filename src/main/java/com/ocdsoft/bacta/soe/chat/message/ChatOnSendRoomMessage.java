@@ -1,9 +1,41 @@
 package com.ocdsoft.bacta.soe.chat.message;
 
+import com.ocdsoft.bacta.soe.message.GameNetworkMessage;
+import com.ocdsoft.bacta.soe.util.SOECRC32;
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+
 /**
  * Created by crush on 1/12/2015.
  */
-public class ChatOnSendRoomMessage {
-    private int result;
-    private int sequence;
+public class ChatOnSendRoomMessage extends GameNetworkMessage {
+
+    private static final short priority = 0x2; //TODO: Get the right value
+    private static final int messageType = SOECRC32.hashCode(ChatOnSendRoomMessage.class.getSimpleName());
+
+    @Getter
+    private final int result;
+    @Getter
+    private final int sequence;
+
+    public ChatOnSendRoomMessage(final int result, final int sequence) {
+        super(priority, messageType);
+
+        this.result = result;
+        this.sequence = sequence;
+    }
+
+    public ChatOnSendRoomMessage(final ByteBuffer buffer) {
+        super(priority, messageType);
+
+        result = buffer.getInt();
+        sequence = buffer.getInt();
+    }
+
+    @Override
+    public void writeToBuffer(final ByteBuffer buffer) {
+        buffer.putInt(result);
+        buffer.putInt(sequence);
+    }
 }
@@ -1,9 +1,42 @@
 package com.ocdsoft.bacta.soe.chat.message;
 
+import com.ocdsoft.bacta.engine.utils.BufferUtil;
+import com.ocdsoft.bacta.soe.message.GameNetworkMessage;
+import com.ocdsoft.bacta.soe.util.SOECRC32;
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+
 /**
  * Created by crush on 1/12/2015.
  */
-public class ChatQueryRoom {
-    private String roomName;
-    private int sequence;
+public class ChatQueryRoom extends GameNetworkMessage {
+
+    private static final short priority = 0x3; //TODO: Get the right value
+    private static final int messageType = SOECRC32.hashCode(ChatQueryRoom.class.getSimpleName());
+
+    @Getter
+    private final String roomName;
+    @Getter
+    private final int sequence;
+
+    public ChatQueryRoom(final String roomName, final int sequence) {
+        super(priority, messageType);
+
+        this.roomName = roomName;
+        this.sequence = sequence;
+    }
+
+    public ChatQueryRoom(final ByteBuffer buffer) {
+        super(priority, messageType);
+
+        roomName = BufferUtil.getAscii(buffer);
+        sequence = buffer.getInt();
+    }
+
+    @Override
+    public void writeToBuffer(final ByteBuffer buffer) {
+        BufferUtil.putAscii(buffer, roomName);
+        buffer.putInt(sequence);
+    }
 }
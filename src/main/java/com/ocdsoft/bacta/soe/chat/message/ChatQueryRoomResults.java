@@ -1,18 +1,99 @@
 package com.ocdsoft.bacta.soe.chat.message;
 
-import com.ocdsoft.bacta.soe.chat.ChatAvatarId;
+import com.ocdsoft.bacta.soe.message.GameNetworkMessage;
+import com.ocdsoft.bacta.soe.object.chat.ChatAvatarId;
 import com.ocdsoft.bacta.soe.object.chat.ChatRoomData;
+import com.ocdsoft.bacta.soe.util.SOECRC32;
+import lombok.Getter;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Created by crush on 1/12/2015.
+ *
+ * The room itself may be given already encoded by {@link ChatRoomData#writeToBuffer(ByteBuffer)}, in which case
+ * {@link #getRoomData()} is null and the encoding is copied into the message as it is.
  */
-public class ChatQueryRoomResults {
-    private List<ChatAvatarId> avatars;
-    private List<ChatAvatarId> invitees;
-    private List<ChatAvatarId> moderators;
-    private List<ChatAvatarId> banned;
-    private ChatRoomData roomData;
-    private int sequence;
+public class ChatQueryRoomResults extends GameNetworkMessage {
+
+    private static final short priority = 0x2; //TODO: Get the right value
+    private static final int messageType = SOECRC32.hashCode(ChatQueryRoomResults.class.getSimpleName());
+
+    @Getter
+    private final List<ChatAvatarId> avatars;
+    @Getter
+    private final List<ChatAvatarId> invitees;
+    @Getter
+    private final List<ChatAvatarId> moderators;
+    @Getter
+    private final List<ChatAvatarId> banned;
+    @Getter
+    private final ChatRoomData roomData;
+    @Getter
+    private final int sequence;
+
+    private final ByteBuffer encodedRoom;
+
+    public ChatQueryRoomResults(final List<ChatAvatarId> avatars,
+                                final List<ChatAvatarId> invitees,
+                                final List<ChatAvatarId> moderators,
+                                final List<ChatAvatarId> banned,
+                                final ByteBuffer encodedRoom,
+                                final int sequence) {
+        super(priority, messageType);
+
+        this.avatars = avatars;
+        this.invitees = invitees;
+        this.moderators = moderators;
+        this.banned = banned;
+        this.roomData = null;
+        this.encodedRoom = encodedRoom;
+        this.sequence = sequence;
+    }
+
+    public ChatQueryRoomResults(final ByteBuffer buffer) {
+        super(priority, messageType);
+
+        avatars = readAvatars(buffer);
+        invitees = readAvatars(buffer);
+        moderators = readAvatars(buffer);
+        banned = readAvatars(buffer);
+        roomData = new ChatRoomData(buffer);
+        sequence = buffer.getInt();
+        encodedRoom = null;
+    }
+
+    @Override
+    public void writeToBuffer(final ByteBuffer buffer) {
+        writeAvatars(buffer, avatars);
+        writeAvatars(buffer, invitees);
+        writeAvatars(buffer, moderators);
+        writeAvatars(buffer, banned);
+
+        if (encodedRoom != null) {
+            buffer.put(encodedRoom.duplicate());
+        } else {
+            roomData.writeToBuffer(buffer);
+        }
+
+        buffer.putInt(sequence);
+    }
+
+    private static List<ChatAvatarId> readAvatars(final ByteBuffer buffer) {
+        final int count = buffer.getInt();
+        final List<ChatAvatarId> list = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            list.add(new ChatAvatarId(buffer));
+        }
+        return list;
+    }
+
+    private static void writeAvatars(final ByteBuffer buffer, final List<ChatAvatarId> list) {
+        buffer.putInt(list.size());
+        for (ChatAvatarId avatarId : list) {
+            avatarId.writeToBuffer(buffer);
+        }
+    }
 }
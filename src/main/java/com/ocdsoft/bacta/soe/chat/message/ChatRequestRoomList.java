@@ -1,10 +1,30 @@
 package com.ocdsoft.bacta.soe.chat.message;
 
+import com.ocdsoft.bacta.soe.message.GameNetworkMessage;
+import com.ocdsoft.bacta.soe.util.SOECRC32;
+
+import java.nio.ByteBuffer;
+
 /**
  * Created by crush on 1/12/2015.
  */
-public class ChatRequestRoomList {
-    /*
-    Intentionally empty.
-     */
+public class ChatRequestRoomList extends GameNetworkMessage {
+
+    private static final short priority = 0x1; //TODO: Get the right value
+    private static final int messageType = SOECRC32.hashCode(ChatRequestRoomList.class.getSimpleName());
+
+    public ChatRequestRoomList() {
+        super(priority, messageType);
+    }
+
+    public ChatRequestRoomList(final ByteBuffer buffer) {
+        super(priority, messageType);
+        /*
+        Intentionally empty.
+         */
+    }
+
+    @Override
+    public void writeToBuffer(final ByteBuffer buffer) {
+    }
 }
@@ -1,12 +1,80 @@
 package com.ocdsoft.bacta.soe.chat.message;
 
+import com.ocdsoft.bacta.soe.message.GameNetworkMessage;
 import com.ocdsoft.bacta.soe.object.chat.ChatRoomData;
+import com.ocdsoft.bacta.soe.util.SOECRC32;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
  * Created by crush on 1/12/2015.
+ *
+ * Either holds the rooms themselves, or rooms already encoded by {@link ChatRoomData#writeToBuffer(ByteBuffer)},
+ * which are copied into the message as they are.
  */
-public class ChatRoomList {
-    private List<ChatRoomData> roomData;
+public class ChatRoomList extends GameNetworkMessage {
+
+    private static final short priority = 0x2; //TODO: Get the right value
+    private static final int messageType = SOECRC32.hashCode(ChatRoomList.class.getSimpleName());
+
+    private final List<ChatRoomData> roomData;
+    private final List<ByteBuffer> encodedRooms;
+
+    public ChatRoomList(final List<ChatRoomData> roomData) {
+        this(roomData, null);
+    }
+
+    /**
+     * @param encodedRooms One buffer per room, positioned at the start of its encoding. The buffers are not modified.
+     */
+    public static ChatRoomList fromEncoded(final List<ByteBuffer> encodedRooms) {
+        return new ChatRoomList(null, encodedRooms);
+    }
+
+    private ChatRoomList(final List<ChatRoomData> roomData, final List<ByteBuffer> encodedRooms) {
+        super(priority, messageType);
+
+        this.roomData = roomData;
+        this.encodedRooms = encodedRooms;
+    }
+
+    public ChatRoomList(final ByteBuffer buffer) {
+        super(priority, messageType);
+
+        final int count = buffer.getInt();
+        roomData = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            roomData.add(new ChatRoomData(buffer));
+        }
+        encodedRooms = null;
+    }
+
+    /**
+     * @return The rooms, or an empty list if this list was built from encoded rooms
+     */
+    public List<ChatRoomData> getRoomData() {
+        return roomData != null ? Collections.unmodifiableList(roomData) : Collections.emptyList();
+    }
+
+    public int getRoomCount() {
+        return roomData != null ? roomData.size() : encodedRooms.size();
+    }
+
+    @Override
+    public void writeToBuffer(final ByteBuffer buffer) {
+        if (encodedRooms != null) {
+            buffer.putInt(encodedRooms.size());
+            for (ByteBuffer room : encodedRooms) {
+                buffer.put(room.duplicate());
+            }
+        } else {
+            buffer.putInt(roomData.size());
+            for (ChatRoomData room : roomData) {
+                room.writeToBuffer(buffer);
+            }
+        }
+    }
 }
@@ -1,13 +1,53 @@
 package com.ocdsoft.bacta.soe.chat.message;
 
-import com.ocdsoft.bacta.soe.chat.ChatAvatarId;
+import com.ocdsoft.bacta.engine.utils.BufferUtil;
+import com.ocdsoft.bacta.soe.message.GameNetworkMessage;
+import com.ocdsoft.bacta.soe.object.chat.ChatAvatarId;
+import com.ocdsoft.bacta.soe.util.SOECRC32;
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
 
 /**
  * Created by crush on 1/12/2015.
  */
-public class ChatRoomMessage {
-    private ChatAvatarId fromName;
-    private int fromRoom;
-    private String message; //utf
-    private String outOfBand; //utf
+public class ChatRoomMessage extends GameNetworkMessage {
+
+    private static final short priority = 0x4; //TODO: Get the right value
+    private static final int messageType = SOECRC32.hashCode(ChatRoomMessage.class.getSimpleName());
+
+    @Getter
+    private final ChatAvatarId fromName;
+    @Getter
+    private final int fromRoom;
+    @Getter
+    private final String message; //utf
+    @Getter
+    private final String outOfBand; //utf
+
+    public ChatRoomMessage(final ChatAvatarId fromName, final int fromRoom, final String message, final String outOfBand) {
+        super(priority, messageType);
+
+        this.fromName = fromName;
+        this.fromRoom = fromRoom;
+        this.message = message;
+        this.outOfBand = outOfBand;
+    }
+
+    public ChatRoomMessage(final ByteBuffer buffer) {
+        super(priority, messageType);
+
+        fromName = new ChatAvatarId(buffer);
+        fromRoom = buffer.getInt();
+        message = BufferUtil.getUnicode(buffer);
+        outOfBand = BufferUtil.getUnicode(buffer);
+    }
+
+    @Override
+    public void writeToBuffer(final ByteBuffer buffer) {
+        fromName.writeToBuffer(buffer);
+        buffer.putInt(fromRoom);
+        BufferUtil.putUnicode(buffer, message);
+        BufferUtil.putUnicode(buffer, outOfBand);
+    }
 }
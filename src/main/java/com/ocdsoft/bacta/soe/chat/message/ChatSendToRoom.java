@@ -1,11 +1,52 @@
 package com.ocdsoft.bacta.soe.chat.message;
 
+import com.ocdsoft.bacta.engine.utils.BufferUtil;
+import com.ocdsoft.bacta.soe.message.GameNetworkMessage;
+import com.ocdsoft.bacta.soe.util.SOECRC32;
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+
 /**
  * Created by crush on 1/12/2015.
  */
-public class ChatSendToRoom {
-    private String message; //utf
-    private String outOfBand; //utf
-    private int roomId;
-    private int sequence;
+public class ChatSendToRoom extends GameNetworkMessage {
+
+    private static final short priority = 0x2; //TODO: Get the right value
+    private static final int messageType = SOECRC32.hashCode(ChatSendToRoom.class.getSimpleName());
+
+    @Getter
+    private final String message; //utf
+    @Getter
+    private final String outOfBand; //utf
+    @Getter
+    private final int roomId;
+    @Getter
+    private final int sequence;
+
+    public ChatSendToRoom(final String message, final String outOfBand, final int roomId, final int sequence) {
+        super(priority, messageType);
+
+        this.message = message;
+        this.outOfBand = outOfBand;
+        this.roomId = roomId;
+        this.sequence = sequence;
+    }
+
+    public ChatSendToRoom(final ByteBuffer buffer) {
+        super(priority, messageType);
+
+        message = BufferUtil.getUnicode(buffer);
+        outOfBand = BufferUtil.getUnicode(buffer);
+        roomId = buffer.getInt();
+        sequence = buffer.getInt();
+    }
+
+    @Override
+    public void writeToBuffer(final ByteBuffer buffer) {
+        BufferUtil.putUnicode(buffer, message);
+        BufferUtil.putUnicode(buffer, outOfBand);
+        buffer.putInt(roomId);
+        buffer.putInt(sequence);
+    }
 }
@@ -1,27 +1,51 @@
 package com.ocdsoft.bacta.soe.chat.xmpp;
 
-import com.ocdsoft.bacta.engine.conf.BactaConfiguration;
 import com.ocdsoft.bacta.soe.chat.ChatAvatarId;
 import com.ocdsoft.bacta.soe.chat.ChatModule;
+import com.ocdsoft.bacta.soe.chat.ChatResult;
 
-import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 /**
  * Created by crush on 1/12/2015.
+ *
+ * Not bridged yet. Nothing reaches an XMPP server, so every call completes with ROOM_UNKNOWN_FAILURE rather than
+ * pretend it succeeded. See {@link com.ocdsoft.bacta.soe.chat.irc.IrcChatModule} for a bridge to an external chat
+ * network.
  */
 public class XmppChatModule implements ChatModule {
     @Override
-    public void register(ChatAvatarId avatarId) {
+    public CompletionStage<ChatResult> register(ChatAvatarId avatarId) {
+        return unavailable();
+    }
+
+    @Override
+    public CompletionStage<ChatResult> connect(ChatAvatarId avatarId, String password) {
+        return unavailable();
+    }
 
+    @Override
+    public CompletionStage<ChatResult> disconnect(ChatAvatarId avatarId) {
+        return unavailable();
     }
 
     @Override
-    public void connect(ChatAvatarId avatarId, String password) {
+    public CompletionStage<ChatResult> enterRoom(ChatAvatarId avatarId, String roomAddress) {
+        return unavailable();
+    }
 
+    @Override
+    public CompletionStage<ChatResult> leaveRoom(ChatAvatarId avatarId, String roomAddress) {
+        return unavailable();
     }
 
     @Override
-    public void disconnect(ChatAvatarId avatarId) {
+    public CompletionStage<ChatResult> sendToRoom(ChatAvatarId avatarId, String roomAddress, String message) {
+        return unavailable();
+    }
 
+    private static CompletionStage<ChatResult> unavailable() {
+        return CompletableFuture.completedFuture(ChatResult.ROOM_UNKNOWN_FAILURE);
     }
 }
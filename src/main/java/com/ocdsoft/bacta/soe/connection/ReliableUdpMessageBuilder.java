@@ -2,14 +2,20 @@ package com.ocdsoft.bacta.soe.connection;
 
 import com.ocdsoft.bacta.engine.network.client.UdpMessageBuilder;
 import com.ocdsoft.bacta.soe.io.udp.NetworkConfiguration;
+import com.ocdsoft.bacta.soe.message.FragmentedMessage;
+import com.ocdsoft.bacta.soe.message.ReliableFragment;
+import com.ocdsoft.bacta.soe.message.ReliableMessage;
 import com.ocdsoft.bacta.soe.message.ReliableNetworkMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
-import java.util.*;
-import java.util.concurrent.PriorityBlockingQueue;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by Kyle on 3/26/14.
@@ -34,165 +40,351 @@ import java.util.concurrent.atomic.AtomicInteger;
      bool ackDeduping;
  };
  */
+/**
+ * Game threads hand messages to {@link #add(ByteBuffer)}, which only appends to a lock free intake queue.
+ * {@link #buildNext()} drains the intake, groups and fragments messages, and assigns sequence numbers, and
+ * {@link #expireResends(long)} queues overdue packets. Both run on the send thread, and on the receive thread when
+ * an ack flushes the reliable queue ahead of it, so the owning {@link SoeUdpMessageProcessor} calls them only while
+ * holding its lock; that keeps one writer at a time for the head and the fragment in progress. Acknowledgements
+ * come from the receive thread without the lock and only release window slots and move the tail.
+ * <p>
+ * The window is a ring indexed by an ever increasing sequence counter. Only the low 16 bits go on the wire, so
+ * acknowledgements are mapped back into the window relative to its tail, which stays correct across the
+ * 0xFFFF to 0 wrap.
+ * <p>
+ * Selective acknowledgements (cUdpPacketAck) clear single slots inside the window. Any older packet still
+ * outstanding at that point was most likely lost, so it is queued for an immediate resend rather than waiting on
+ * its resend timeout. A packet is queued for a resend at most once until it has been resent, whether it was found
+ * missing by an ack or by its timeout.
+ * <p>
+ * Window slots are written by the send thread and cleared by the receive thread, so they are atomic references.
+ */
 public class ReliableUdpMessageBuilder implements UdpMessageBuilder<ByteBuffer> {
 
     public final static Logger logger = LoggerFactory.getLogger(ReliableUdpMessageBuilder.class);
 
+    private static final int SEQUENCE_MASK = 0xFFFF;
+
     private final NetworkConfiguration configuration;
-    private final AtomicInteger sequenceNum = new AtomicInteger();
-    private final Set<ReliableNetworkMessage> containerList;
     private final int maxOutstandingPackets;
+    private final int channel;
 
     private final SoeUdpConnection connection;
 
-    private ReliableNetworkMessage pendingContainer;
+    private final Queue<ByteBuffer> intake;
+
+    private final AtomicReferenceArray<ReliableMessage> window;
+    private final int windowMask;
+
+    /** 1 for each window slot whose packet is waiting in the resend queue */
+    private final AtomicIntegerArray queuedForResend;
+
+    /** Next sequence to be assigned, written under the processor lock only */
+    private final AtomicLong head;
 
-    private final Queue<ReliableNetworkMessage> unacknowledgedQueue;
+    /** Oldest unacknowledged sequence, written by the receive thread only */
+    private final AtomicLong tail;
+
+    /** Packets found missing or overdue, resent by {@link #buildNext()} ahead of new data */
+    private final Queue<ReliableMessage> resendQueue;
+
+    /** Every sequence below this mark has already been queued for a fast retransmit, written by acks only */
+    private long fastRetransmitMark;
+
+    private FragmentProcessor fragmentProcessor;
+
+    private final LongAdder selectiveAcks;
+    private final LongAdder fastRetransmits;
+    private final LongAdder timeoutResends;
 
     public ReliableUdpMessageBuilder(final SoeUdpConnection connection, final NetworkConfiguration configuration) {
+        this(connection, configuration, 0);
+    }
+
+    /**
+     * @param channel Reliable channel, 0-3, this builder sends on. Each channel has its own sequence space.
+     */
+    public ReliableUdpMessageBuilder(final SoeUdpConnection connection, final NetworkConfiguration configuration, final int channel) {
 
         this.connection = connection;
         this.configuration = configuration;
-        
-        this.maxOutstandingPackets = configuration.getMaxOutstandingPackets();
+        this.channel = channel;
+
+        // Half the sequence space at most, or acknowledgements become ambiguous after wrapping
+        this.maxOutstandingPackets = Math.min(configuration.getMaxOutstandingPackets(), Short.MAX_VALUE);
+
+        int capacity = Integer.highestOneBit(Math.max(maxOutstandingPackets - 1, 1)) << 1;
+        window = new AtomicReferenceArray<>(capacity);
+        windowMask = capacity - 1;
+        queuedForResend = new AtomicIntegerArray(capacity);
 
-        containerList = Collections.synchronizedSet(new TreeSet<ReliableNetworkMessage>());
-        pendingContainer = null;
+        intake = new ConcurrentLinkedQueue<>();
+        resendQueue = new ConcurrentLinkedQueue<>();
+        head = new AtomicLong();
+        tail = new AtomicLong();
+        fragmentProcessor = null;
 
-        unacknowledgedQueue = new PriorityBlockingQueue<>(maxOutstandingPackets);
+        selectiveAcks = new LongAdder();
+        fastRetransmits = new LongAdder();
+        timeoutResends = new LongAdder();
     }
 
-    private short getAndIncrement() {
+    public long getSelectiveAckCount() {
+        return selectiveAcks.sum();
+    }
 
-        int value = sequenceNum.getAndIncrement();
-        if(value > Short.MAX_VALUE) {
-            value = 0;
-            sequenceNum.set(value);
-        }
+    public long getFastRetransmitCount() {
+        return fastRetransmits.sum();
+    }
+
+    public long getTimeoutResendCount() {
+        return timeoutResends.sum();
+    }
+
+    public int getChannel() {
+        return channel;
+    }
 
-        return (short) value;
+    /**
+     * @return Number of packets sent and not yet acknowledged
+     */
+    public int getOutstandingCount() {
+        return (int) (head.get() - tail.get());
     }
 
     @Override
-    public synchronized boolean add(ByteBuffer buffer) {
+    public boolean add(ByteBuffer buffer) {
 
-        if (unacknowledgedQueue.size() >= maxOutstandingPackets) {
+        if (getOutstandingCount() >= maxOutstandingPackets) {
             return false;
         }
 
-        if (pendingContainer != null) {
-            if (configuration.isMultiGameMessages() && pendingContainer.size() + buffer.limit() + 1 <= configuration.getMaxReliablePayload()) {
-                return pendingContainer.addMessage(buffer);
+        return intake.add(buffer);
+    }
+
+    @Override
+    public ByteBuffer buildNext() {
+
+        ReliableMessage resend;
+        while ((resend = resendQueue.poll()) != null) {
+            int index = resend.getSequenceNumber() & windowMask;
+            if (window.get(index) != resend) {
+                // Acknowledged while it was waiting
+                continue;
+            }
+            queuedForResend.set(index, 0);
+
+            ByteBuffer packet = resend(resend);
+            if (packet != null) {
+                return packet;
+            }
+        }
+
+        if (getOutstandingCount() >= maxOutstandingPackets) {
+            return null;
+        }
+
+        if (fragmentProcessor != null) {
+            ReliableMessage fragment = fragmentProcessor.next();
+            if (!fragmentProcessor.hasNext()) {
+                fragmentProcessor = null;
             }
-            pendingContainer.finish();
-            containerList.add(pendingContainer);
-            pendingContainer = null;
+            return send(fragment);
+        }
+
+        ByteBuffer buffer = intake.poll();
+        if (buffer == null) {
+            return null;
         }
 
         // Fragment large message
         if (buffer.limit() > configuration.getMaxReliablePayload()) {
+            fragmentProcessor = new FragmentProcessor(buffer);
+            return buildNext();
+        }
 
-            if(pendingContainer != null) {
-                pendingContainer.finish();
-                containerList.add(pendingContainer);
-                pendingContainer = null;
-            }
+        ReliableNetworkMessage container = new ReliableNetworkMessage(channel, nextSequence(), buffer);
 
-            //TODO: Pool instances?
-            FragmentProcessor fragmentProcessor = new FragmentProcessor(buffer);
-            while (fragmentProcessor.hasNext()) {
-                containerList.add(fragmentProcessor.next());
+        if (configuration.isMultiGameMessages()) {
+            ByteBuffer next;
+            while ((next = intake.peek()) != null &&
+                    container.size() + next.limit() + 1 <= configuration.getMaxReliablePayload()) {
+                container.addMessage(intake.poll());
             }
-
-            return true;
         }
 
-        pendingContainer = new ReliableNetworkMessage(getAndIncrement(), buffer);
-        return true;
+        container.finish();
+        return send(container);
     }
 
-    @Override
-    public synchronized ByteBuffer buildNext() {
-
-//
-//        for(ReliableNetworkMessage message : unacknowledgedQueue) {
-//            if(currentTime - message.getLastSendAttempt() > 10000 + message.getSendAttempts() * (resendDelayPercentage * resendDelayAdjust)) {
-//                message.addSendAttempt();
-//                return message.getBuffer().slice();
-//            }
-//        }
-
-        Iterator<ReliableNetworkMessage> iterator = containerList.iterator();
-
-        if (!iterator.hasNext()) {
-            if (pendingContainer != null) {
-                pendingContainer.finish();
-                pendingContainer.addSendAttempt();
-                unacknowledgedQueue.add(pendingContainer);
-                ByteBuffer slice = pendingContainer.slice();
-                pendingContainer = null;
-                return slice;
-            }
+    private short nextSequence() {
+        return (short) head.get();
+    }
+
+    private ByteBuffer send(ReliableMessage message) {
+        ByteBuffer packet = message.slice();
+        if (packet == null) {
+            // Never take a window slot for a frame that cannot be sent, the sequence would never be acknowledged
+            logger.warn("Dropping reliable message {} with no payload", message.getSequenceNumber());
+            fragmentProcessor = null;
             return null;
         }
 
-        ReliableNetworkMessage message = iterator.next();
-        containerList.remove(message);
+        long sequence = head.get();
+        int index = (int) (sequence & windowMask);
+        queuedForResend.set(index, 0);
+        window.set(index, message);
+        head.set(sequence + 1);
+
         message.addSendAttempt();
-        unacknowledgedQueue.add(message);
-        return message.slice();
+        return packet;
+    }
+
+    private ByteBuffer resend(ReliableMessage message) {
+        ByteBuffer packet = message.slice();
+        if (packet != null) {
+            message.addSendAttempt();
+        }
+        return packet;
+    }
+
+    /**
+     * Queues every outstanding packet whose resend delay has passed and that is not already queued. The delay backs
+     * off linearly with the number of attempts already made. Called under the processor lock, like
+     * {@link #buildNext()}.
+     *
+     * @param currentTime Current time in milliseconds
+     */
+    public void expireResends(long currentTime) {
+
+        long baseDelay = configuration.getResendDelayAdjust() * configuration.getResendDelayPercent() / 100;
+        long end = head.get();
+
+        for (long sequence = tail.get(); sequence < end; ++sequence) {
+            ReliableMessage message = window.get((int) (sequence & windowMask));
+            if (message != null && currentTime - message.getLastSendAttempt() > baseDelay * message.getSendAttempts()
+                    && queueResend(sequence, message)) {
+                timeoutResends.increment();
+            }
+        }
     }
 
+    /**
+     * Acknowledges every packet up to and including {@code sequenceNumber}. Sequence numbers that fall outside
+     * the window are duplicates or stale and are ignored.
+     *
+     * @param sequenceNumber The wire sequence number from an AckAll packet
+     */
     @Override
     public void acknowledge(short sequenceNumber) {
-        logger.debug("Client Ack: " + sequenceNumber);
+        logger.debug("Client Ack: " + (sequenceNumber & SEQUENCE_MASK));
 
-        while (!unacknowledgedQueue.isEmpty() &&
-                (unacknowledgedQueue.peek().getSequenceNumber() <= sequenceNumber)) {
-            unacknowledgedQueue.poll();
+        long first = tail.get();
+        long offset = windowOffset(first, sequenceNumber);
+
+        if (offset < 0) {
+            return;
+        }
+
+        long last = first + offset;
+        for (long sequence = first; sequence <= last; ++sequence) {
+            release((int) (sequence & windowMask));
         }
 
+        advanceTail(last + 1);
     }
 
-    private class FragmentProcessor {
+    /**
+     * Acknowledges a single packet inside the window. Older packets that are still outstanding are queued for a
+     * fast retransmit, once per gap.
+     *
+     * @param sequenceNumber The wire sequence number from an Ack packet
+     */
+    public void acknowledgeSingle(short sequenceNumber) {
+        logger.debug("Client Selective Ack: " + (sequenceNumber & SEQUENCE_MASK));
 
-        private final ByteBuffer buffer;
-        private final int size;
-        private boolean first;
+        long first = tail.get();
+        long offset = windowOffset(first, sequenceNumber);
 
-        public FragmentProcessor(ByteBuffer buffer) {
-            this.buffer = buffer;
-            size = buffer.remaining();
-            first = true;
+        if (offset < 0) {
+            return;
         }
 
-        public boolean hasNext() {
-            return buffer.hasRemaining();
-        }
+        selectiveAcks.increment();
 
-        public ReliableNetworkMessage next() {
+        long acked = first + offset;
+        release((int) (acked & windowMask));
 
-            int messageSize;
-            int maxFragmentPayload = configuration.getMaxReliablePayload();
-            if(first) {
-                maxFragmentPayload -=4;
-            }
-            if (buffer.remaining() > maxFragmentPayload) {
-                messageSize = maxFragmentPayload;
-            } else {
-                messageSize = buffer.remaining();
+        for (long sequence = Math.max(first, fastRetransmitMark); sequence < acked; ++sequence) {
+            ReliableMessage message = window.get((int) (sequence & windowMask));
+            if (message != null && queueResend(sequence, message)) {
+                fastRetransmits.increment();
             }
+        }
+        fastRetransmitMark = Math.max(fastRetransmitMark, acked + 1);
+
+        advanceTail(first);
+    }
+
+    /**
+     * @return false if the packet is already waiting in the resend queue
+     */
+    private boolean queueResend(long sequence, ReliableMessage message) {
+        if (!queuedForResend.compareAndSet((int) (sequence & windowMask), 0, 1)) {
+            return false;
+        }
+        resendQueue.add(message);
+        return true;
+    }
+
+    /**
+     * Moves the tail to {@code from}, then past any packets that were already selectively acknowledged
+     */
+    private void advanceTail(long from) {
+        long end = head.get();
+        long newTail = from;
+        while (newTail < end && window.get((int) (newTail & windowMask)) == null) {
+            newTail++;
+        }
+        tail.set(newTail);
+    }
+
+    /**
+     * @return Distance of {@code sequenceNumber} from {@code first}, or -1 if it is not in the window
+     */
+    private long windowOffset(long first, short sequenceNumber) {
+        long offset = (sequenceNumber - first) & SEQUENCE_MASK;
+        return offset < head.get() - first ? offset : -1;
+    }
+
+    private void release(int index) {
+        ReliableMessage message = window.getAndSet(index, null);
+        if (message != null) {
+            message.release();
+        }
+    }
+
+    /**
+     * Splits a large message into fragments that all read from one retained copy of the message
+     */
+    private class FragmentProcessor {
 
-            ByteBuffer slice = buffer.slice();
-            slice.limit(messageSize);
+        private final FragmentedMessage message;
+        private int offset;
 
-            buffer.position(buffer.position() + messageSize);
+        public FragmentProcessor(ByteBuffer buffer) {
+            message = new FragmentedMessage(channel, buffer, configuration.getMaxReliablePayload());
+            offset = 0;
+        }
 
-            ReliableNetworkMessage message = new ReliableNetworkMessage(getAndIncrement(), slice, first, size);
-            message.finish();
+        public boolean hasNext() {
+            return offset < message.size();
+        }
 
-            first = false;
-            return message;
+        public ReliableFragment next() {
+            ReliableFragment fragment = message.fragment(nextSequence(), offset);
+            offset += fragment.getLength();
+            return fragment;
         }
     }
 }
@@ -3,7 +3,6 @@ package com.ocdsoft.bacta.soe.connection;
 import com.codahale.metrics.annotation.Counted;
 import com.ocdsoft.bacta.engine.network.client.ConnectionState;
 import com.ocdsoft.bacta.engine.network.client.UdpConnection;
-import com.ocdsoft.bacta.engine.network.client.UdpMessageProcessor;
 import com.ocdsoft.bacta.soe.io.udp.NetworkConfiguration;
 import com.ocdsoft.bacta.soe.message.*;
 import com.ocdsoft.bacta.soe.util.SoeMessageUtil;
@@ -16,7 +15,6 @@ import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Queue;
@@ -44,14 +42,35 @@ public final class SoeUdpConnection extends UdpConnection implements SoeUdpConne
     
     private ConnectionState state;
 
-    private final UdpMessageProcessor<ByteBuffer> udpMessageProcessor;
+    private final NetworkConfiguration networkConfiguration;
+
+    private final SoeUdpMessageProcessor udpMessageProcessor;
 
     private final AtomicInteger clientSequenceNumber;
 
+    private int lastOrderedStamp = -1;
+
     private final FragmentContainer fragmentContainer;
 
     private final List<ConnectionRole> roles;
 
+    /**
+     * Session state of the layers above the protocol, carried over when the session is resumed
+     */
+    @Getter
+    @Setter
+    private volatile Object sessionAttachment;
+
+    /**
+     * Secret handed to the client that it must present to resume this session, 0 if none was issued
+     */
+    @Getter
+    @Setter
+    private volatile long resumeToken;
+
+    @Getter
+    private boolean resumed;
+
     @Getter
     private long lastActivity;
 
@@ -81,6 +100,7 @@ public final class SoeUdpConnection extends UdpConnection implements SoeUdpConne
                             final Consumer<SoeUdpConnection> connectCallback) {
         
         this.remoteAddress = remoteAddress;
+        this.networkConfiguration = networkConfiguration;
         this.connectCallback = connectCallback;
         this.state = connectionState;
 
@@ -133,20 +153,39 @@ public final class SoeUdpConnection extends UdpConnection implements SoeUdpConne
     }
 
     public void sendMessage(GameNetworkMessage message) {
+        sendSerialized(message.getPriority(), message.serialize());
+    }
 
-        gameNetworkMessagesSent.incrementAndGet();
-        
-        // TODO: Better buffer creation
-        ByteBuffer buffer = ByteBuffer.allocate(1500).order(ByteOrder.LITTLE_ENDIAN);
+    /**
+     * Sends one message to many connections. The message is serialized once and each online connection queues a view
+     * of that buffer, so only the reliable framing is built per recipient.
+     *
+     * @return Number of connections the message was queued on
+     */
+    public static int broadcast(final GameNetworkMessage message, final Iterable<SoeUdpConnection> connections) {
+
+        final ByteBuffer serialized = message.serialize();
+        final short priority = message.getPriority();
+
+        int recipients = 0;
+        for (SoeUdpConnection connection : connections) {
+            if (connection.getState() == ConnectionState.ONLINE) {
+                connection.sendSerialized(priority, serialized);
+                ++recipients;
+            }
+        }
+        return recipients;
+    }
 
-        buffer.putShort(message.getPriority());
-        buffer.putInt(message.getMessageType());
+    /**
+     * Sends a game message serialized by {@link GameNetworkMessage#serialize()}. The buffer is not modified, so
+     * one serialized message can be sent to many connections.
+     */
+    public void sendSerialized(short priority, ByteBuffer serialized) {
 
-        message.writeToBuffer(buffer);
-        buffer.limit(buffer.position());
-        buffer.rewind();
+        gameNetworkMessagesSent.incrementAndGet();
 
-        if (!udpMessageProcessor.addReliable(buffer)) {
+        if (!udpMessageProcessor.addReliable(serialized.duplicate(), networkConfiguration.getReliableChannel(priority))) {
             if(getState() == ConnectionState.ONLINE) {
                 setState(ConnectionState.DISCONNECTED);
             }
@@ -155,10 +194,55 @@ public final class SoeUdpConnection extends UdpConnection implements SoeUdpConne
         }
     }
 
+    /**
+     * Sends a message that is superseded by the next one for the same object, such as a position update. It is
+     * sent unreliably and only the newest message per object is sent each flush.
+     */
+    public void sendOrdered(GameNetworkMessage message, long objectId) {
+
+        gameNetworkMessagesSent.incrementAndGet();
+
+        ByteBuffer buffer = message.serialize();
+
+        if (buffer.remaining() > networkConfiguration.getMaxReliablePayload()) {
+            logger.warn("Ordered message {} too large for a single packet, sending reliably", message.getClass().getSimpleName());
+            if (!udpMessageProcessor.addReliable(buffer, networkConfiguration.getReliableChannel(message.getPriority()))) {
+                if(getState() == ConnectionState.ONLINE) {
+                    setState(ConnectionState.DISCONNECTED);
+                }
+                return;
+            }
+        } else {
+            udpMessageProcessor.addOrdered(objectId, buffer);
+        }
+        updateLastActivity();
+    }
+
+    /**
+     * Called on the receive thread for each ordered packet
+     * @return false if a packet with a newer stamp has already been accepted
+     */
+    public boolean acceptOrdered(short orderStamp) {
+        int stamp = orderStamp & 0xFFFF;
+        if (lastOrderedStamp != -1 && (short) (stamp - lastOrderedStamp) <= 0) {
+            return false;
+        }
+        lastOrderedStamp = stamp;
+        updateLastActivity();
+        return true;
+    }
+
+    @Override
+    public long getOrderedUpdatesCoalesced() {
+        return udpMessageProcessor.getOrderedUpdatesCoalesced();
+    }
+
     public List<ByteBuffer> getPendingMessages() {
 
         List<ByteBuffer> pendingMessageList = new ArrayList<>();
 
+        udpMessageProcessor.expireResends(System.currentTimeMillis());
+
         ByteBuffer buffer;
         while ((buffer = udpMessageProcessor.processNext()) != null) {
             pendingMessageList.add(buffer);
@@ -177,13 +261,54 @@ public final class SoeUdpConnection extends UdpConnection implements SoeUdpConne
     }
 
     public void sendAck(short sequenceNum) {
+        sendAck(0, sequenceNum);
+    }
+
+    public void sendAck(int channel, short sequenceNum) {
         updateLastActivity();
-        sendMessage(new AckAllMessage(sequenceNum));
+        sendMessage(new AckAllMessage(channel, sequenceNum));
     }
 
     public void processAckAll(short sequenceNum) {
-        clientSequenceNumber.set(sequenceNum);
-        udpMessageProcessor.acknowledge(sequenceNum);
+        processAckAll(0, sequenceNum);
+    }
+
+    public void processAckAll(int channel, short sequenceNum) {
+        if (channel == 0) {
+            clientSequenceNumber.set(sequenceNum);
+        }
+        udpMessageProcessor.acknowledge(channel, sequenceNum);
+    }
+
+    public void processAck(int channel, short sequenceNum) {
+        udpMessageProcessor.acknowledgeSingle(channel, sequenceNum);
+    }
+
+    @Override
+    public long getSelectiveAcksReceived() {
+        long count = 0;
+        for (int channel = 0; channel < UdpPacketType.RELIABLE_CHANNELS; ++channel) {
+            count += udpMessageProcessor.getReliableUdpMessageBuilder(channel).getSelectiveAckCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getFastRetransmits() {
+        long count = 0;
+        for (int channel = 0; channel < UdpPacketType.RELIABLE_CHANNELS; ++channel) {
+            count += udpMessageProcessor.getReliableUdpMessageBuilder(channel).getFastRetransmitCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getTimeoutResends() {
+        long count = 0;
+        for (int channel = 0; channel < UdpPacketType.RELIABLE_CHANNELS; ++channel) {
+            count += udpMessageProcessor.getReliableUdpMessageBuilder(channel).getTimeoutResendCount();
+        }
+        return count;
     }
     
     @Override
@@ -240,6 +365,21 @@ public final class SoeUdpConnection extends UdpConnection implements SoeUdpConne
         roles.add(role);
     }
 
+    /**
+     * Restores the account binding of a lost session this client reconnected to
+     */
+    public void restoreSession(final int accountId, final String accountUsername, final List<ConnectionRole> roles, final Object sessionAttachment) {
+        this.accountId = accountId;
+        this.accountUsername = accountUsername;
+        for (ConnectionRole role : roles) {
+            if (!this.roles.contains(role)) {
+                this.roles.add(role);
+            }
+        }
+        this.sessionAttachment = sessionAttachment;
+        this.resumed = true;
+    }
+
     @SuppressWarnings("serial")
     private class FragmentContainer {
 
@@ -14,4 +14,9 @@ public interface SoeUdpConnectionMBean {
     AtomicInteger getProtocolMessagesSent();
     AtomicInteger getProtocolMessagesReceived();
     AtomicInteger getGameNetworkMessagesReceived();
+    long getSelectiveAcksReceived();
+    long getFastRetransmits();
+    long getTimeoutResends();
+    long getOrderedUpdatesCoalesced();
+    boolean isResumed();
 }
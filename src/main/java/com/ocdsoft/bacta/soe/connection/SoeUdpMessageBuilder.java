@@ -8,7 +8,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
-import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
 
 /**
@@ -18,7 +17,7 @@ public class SoeUdpMessageBuilder implements UdpMessageBuilder<ByteBuffer> {
 
     private final Logger logger = LoggerFactory.getLogger(getClass().getSimpleName());
 
-    private final Queue<ByteBuffer> bufferList;
+    private final ArrayBlockingQueue<ByteBuffer> bufferList;
     private final NetworkConfiguration configuration;
     private MultiMessage pendingMulti;
     private ByteBuffer pendingBuffer;
@@ -75,6 +74,13 @@ public class SoeUdpMessageBuilder implements UdpMessageBuilder<ByteBuffer> {
         return true;
     }
 
+    /**
+     * @return Number of packets that can still be queued. A single {@link #add(ByteBuffer)} queues at most one.
+     */
+    public int remainingCapacity() {
+        return bufferList.remainingCapacity();
+    }
+
     @Override
     public synchronized ByteBuffer buildNext() {
 
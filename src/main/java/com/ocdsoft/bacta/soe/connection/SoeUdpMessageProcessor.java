@@ -1,23 +1,43 @@
 package com.ocdsoft.bacta.soe.connection;
 
 import com.ocdsoft.bacta.engine.network.client.ConnectionState;
-import com.ocdsoft.bacta.engine.network.client.UdpMessageBuilder;
 import com.ocdsoft.bacta.engine.network.client.UdpMessageProcessor;
 import com.ocdsoft.bacta.soe.io.udp.NetworkConfiguration;
+import com.ocdsoft.bacta.soe.message.OrderedMessage;
+import com.ocdsoft.bacta.soe.message.UdpPacketType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
+ * Reliable traffic is split over the four SOE reliable channels, each with its own window, so a backlog of bulk
+ * data on one channel never holds up another. When packets are moved into the outgoing queue the channels are
+ * served by deficit round robin, weighted by {@link NetworkConfiguration#getReliableChannelWeight(int)}.
+ * <p>
+ * Ordered updates are keyed by object; a newer update for an object replaces one that has not been sent yet.
+ * <p>
+ * The reliable windows are built under this processor's lock, whether from the send thread or from the receive
+ * thread flushing ahead of an ack.
+ *
  * @author kyle
  */
 public final class SoeUdpMessageProcessor implements UdpMessageProcessor<ByteBuffer> {
 
     private final Logger logger = LoggerFactory.getLogger(getClass().getSimpleName());
 
-    private final UdpMessageBuilder<ByteBuffer> udpMessageBuilder;
-    private final UdpMessageBuilder<ByteBuffer> reliableUdpMessageBuilder;
+    private final SoeUdpMessageBuilder udpMessageBuilder;
+    private final ReliableUdpMessageBuilder[] reliableUdpMessageBuilders;
+
+    private final int[] deficits;
+    private final int[] quantums;
+
+    private final Map<Long, ByteBuffer> orderedUpdates;
+    private short orderStamp;
+    private long orderedUpdatesCoalesced;
 
     private final NetworkConfiguration configuration;
     private final SoeUdpConnection connection;
@@ -27,15 +47,43 @@ public final class SoeUdpMessageProcessor implements UdpMessageProcessor<ByteBuf
         this.connection = connection;
         this.configuration = configuration;
 
-        reliableUdpMessageBuilder = new ReliableUdpMessageBuilder(connection, configuration);
+        reliableUdpMessageBuilders = new ReliableUdpMessageBuilder[UdpPacketType.RELIABLE_CHANNELS];
+        deficits = new int[UdpPacketType.RELIABLE_CHANNELS];
+        quantums = new int[UdpPacketType.RELIABLE_CHANNELS];
+
+        for (int channel = 0; channel < reliableUdpMessageBuilders.length; ++channel) {
+            reliableUdpMessageBuilders[channel] = new ReliableUdpMessageBuilder(connection, configuration, channel);
+            quantums[channel] = configuration.getReliableChannelWeight(channel) * configuration.getMaxReliablePayload();
+        }
+
+        orderedUpdates = new LinkedHashMap<>();
         udpMessageBuilder = new SoeUdpMessageBuilder(configuration);
     }
 
     @Override
     public boolean addReliable(ByteBuffer buffer) {
+        return addReliable(buffer, 0);
+    }
+
+    public boolean addReliable(ByteBuffer buffer, int channel) {
         if (buffer == null) throw new NullPointerException();
 
-        return reliableUdpMessageBuilder.add(buffer);
+        return reliableUdpMessageBuilders[channel].add(buffer);
+    }
+
+    /**
+     * Queues an ordered update for an object, replacing any update for the same object still waiting to be sent
+     */
+    public synchronized void addOrdered(long objectId, ByteBuffer buffer) {
+        if (buffer == null) throw new NullPointerException();
+
+        if (orderedUpdates.put(objectId, buffer) != null) {
+            orderedUpdatesCoalesced++;
+        }
+    }
+
+    public synchronized long getOrderedUpdatesCoalesced() {
+        return orderedUpdatesCoalesced;
     }
 
     @Override
@@ -49,6 +97,7 @@ public final class SoeUdpMessageProcessor implements UdpMessageProcessor<ByteBuf
     @Override
     public ByteBuffer processNext() {
 
+        flushOrdered();
         flushReliable();
         ByteBuffer message = udpMessageBuilder.buildNext();
         if (message != null && message.remaining() > configuration.getMaxRawPacketSize()) {
@@ -64,17 +113,81 @@ public final class SoeUdpMessageProcessor implements UdpMessageProcessor<ByteBuf
 
     @Override
     public void acknowledge(short reliableSequence) {
+        acknowledge(0, reliableSequence);
+    }
+
+    public void acknowledge(int channel, short reliableSequence) {
         if(connection.getState() != ConnectionState.ONLINE) {
             connection.setState(ConnectionState.ONLINE);
         }
         connection.updateLastActivity();
-        reliableUdpMessageBuilder.acknowledge(reliableSequence);
+        reliableUdpMessageBuilders[channel].acknowledge(reliableSequence);
+    }
+
+    public void acknowledgeSingle(int channel, short reliableSequence) {
+        connection.updateLastActivity();
+        reliableUdpMessageBuilders[channel].acknowledgeSingle(reliableSequence);
+    }
+
+    /**
+     * Takes the same lock as {@link #flushReliable()}, so resends are never queued while a window is being built
+     */
+    public synchronized void expireResends(long currentTime) {
+        for (ReliableUdpMessageBuilder builder : reliableUdpMessageBuilders) {
+            builder.expireResends(currentTime);
+        }
     }
 
-    private void flushReliable() {
-        ByteBuffer message;
-        while ((message = reliableUdpMessageBuilder.buildNext()) != null) {
-            udpMessageBuilder.add(message);
+    public ReliableUdpMessageBuilder getReliableUdpMessageBuilder(int channel) {
+        return reliableUdpMessageBuilders[channel];
+    }
+
+    /**
+     * Stamps the pending ordered updates and moves them into the outgoing queue. Updates that do not fit stay
+     * pending, where they can still be superseded.
+     */
+    private synchronized void flushOrdered() {
+
+        Iterator<ByteBuffer> iterator = orderedUpdates.values().iterator();
+        while (iterator.hasNext() && udpMessageBuilder.remainingCapacity() > 1) {
+            OrderedMessage message = new OrderedMessage(orderStamp++, iterator.next());
+            udpMessageBuilder.add(message.slice());
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Moves reliable packets into the outgoing queue while it has room. Each round a channel earns its quantum of
+     * bytes and sends while it has credit; a channel with nothing to send forfeits its credit.
+     */
+    private synchronized void flushReliable() {
+
+        boolean sent = true;
+        while (sent) {
+            sent = false;
+
+            for (int channel = 0; channel < reliableUdpMessageBuilders.length; ++channel) {
+
+                deficits[channel] += quantums[channel];
+
+                while (deficits[channel] > 0) {
+
+                    // Leave room for the unreliable packet that may follow
+                    if (udpMessageBuilder.remainingCapacity() <= 1) {
+                        return;
+                    }
+
+                    ByteBuffer message = reliableUdpMessageBuilders[channel].buildNext();
+                    if (message == null) {
+                        deficits[channel] = 0;
+                        break;
+                    }
+
+                    deficits[channel] -= message.remaining();
+                    udpMessageBuilder.add(message);
+                    sent = true;
+                }
+            }
         }
     }
 }
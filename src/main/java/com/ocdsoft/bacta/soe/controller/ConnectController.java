@@ -56,6 +56,8 @@ public class ConnectController extends BaseSoeController {
         
         connection.setState(ConnectionState.ONLINE);
 
+        // Lost sessions are not resumed here: the connection id proves nothing, see SessionResumeService#resume
+
         ConfirmMessage response = new ConfirmMessage(
                 networkConfiguration.getCrcBytes(), 
                 connectionId, encryptCode, 
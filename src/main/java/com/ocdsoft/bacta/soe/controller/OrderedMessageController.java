@@ -0,0 +1,38 @@
+package com.ocdsoft.bacta.soe.controller;
+
+import com.google.inject.Singleton;
+import com.ocdsoft.bacta.soe.SoeController;
+import com.ocdsoft.bacta.soe.connection.SoeUdpConnection;
+import com.ocdsoft.bacta.soe.message.UdpPacketType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Routes the payload of an ordered packet unless a packet with a newer order stamp has already been seen.
+ */
+@Singleton
+@SoeController(handles = {UdpPacketType.cUdpPacketOrdered, UdpPacketType.cUdpPacketOrdered2})
+public class OrderedMessageController extends BaseSoeController {
+
+    private static final Logger logger = LoggerFactory.getLogger(OrderedMessageController.class);
+
+    @Override
+    public void handleIncoming(byte zeroByte, UdpPacketType type, SoeUdpConnection connection, ByteBuffer buffer) {
+
+        short orderStamp = buffer.getShort();
+        if (!connection.acceptOrdered(orderStamp)) {
+            logger.trace("Dropping stale ordered packet {}", orderStamp & 0xFFFF);
+            return;
+        }
+
+        try {
+
+            soeMessageRouter.routeMessage(connection, buffer);
+
+        } catch (Exception e) {
+            logger.error("Unable to handle Ordered", e);
+        }
+    }
+}
@@ -10,7 +10,9 @@ import org.slf4j.LoggerFactory;
 import java.nio.ByteBuffer;
 
 @Singleton
-@SoeController(handles = {UdpPacketType.cUdpPacketReliable1, UdpPacketType.cUdpPacketFragment1})
+@SoeController(handles = {
+        UdpPacketType.cUdpPacketReliable1, UdpPacketType.cUdpPacketReliable2, UdpPacketType.cUdpPacketReliable3, UdpPacketType.cUdpPacketReliable4,
+        UdpPacketType.cUdpPacketFragment1, UdpPacketType.cUdpPacketFragment2, UdpPacketType.cUdpPacketFragment3, UdpPacketType.cUdpPacketFragment4})
 public class ReliableMessageController extends BaseSoeController {
 
     private static final Logger logger = LoggerFactory.getLogger(ReliableMessageController.class);
@@ -19,9 +21,9 @@ public class ReliableMessageController extends BaseSoeController {
     public void handleIncoming(byte zeroByte, UdpPacketType type, SoeUdpConnection connection, ByteBuffer buffer) {
 
         short sequenceNum = buffer.getShort();
-        connection.sendAck(sequenceNum);
+        connection.sendAck(type.getReliableChannel(), sequenceNum);
 
-        if(type == UdpPacketType.cUdpPacketFragment1) {
+        if(type.isFragment()) {
             buffer = connection.addIncomingFragment(buffer);
         }
 
@@ -0,0 +1,153 @@
+package com.ocdsoft.bacta.soe.io.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file written by {@link PacketCaptureWriter} through a read only memory mapping.
+ *
+ * Records are returned through a reusable {@link Record} whose data is a view of the mapping, so iterating a
+ * capture does not allocate. Captures are limited to 2GB.
+ */
+public final class PacketCaptureReader implements Closeable {
+
+    private final FileChannel channel;
+    private final MappedByteBuffer mapping;
+
+    private final long startTime;
+
+    public PacketCaptureReader(final Path file) throws IOException {
+
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        mapping.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (mapping.remaining() < PacketCaptureWriter.HEADER_SIZE || mapping.getInt() != PacketCaptureWriter.MAGIC) {
+            channel.close();
+            throw new IOException("Not a packet capture: " + file);
+        }
+
+        short version = mapping.getShort();
+        if (version != PacketCaptureWriter.VERSION) {
+            channel.close();
+            throw new IOException("Unsupported packet capture version " + version + ": " + file);
+        }
+
+        mapping.getShort();
+        startTime = mapping.getLong();
+    }
+
+    /**
+     * @return Wall clock time the capture started, in epoch millis
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public Record newRecord() {
+        return new Record(mapping.duplicate().order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    /**
+     * Reads the next record into {@code record}
+     * @return false at the end of the capture, or if the last record was cut short
+     */
+    public boolean next(final Record record) {
+
+        if (mapping.remaining() < PacketCaptureWriter.RECORD_HEADER_SIZE) {
+            return false;
+        }
+
+        byte type = mapping.get();
+        int session = mapping.getInt();
+        long nanos = mapping.getLong();
+        int length = mapping.getShort() & 0xFFFF;
+
+        if (mapping.remaining() < length) {
+            return false;
+        }
+
+        record.type = type;
+        record.session = session;
+        record.nanos = nanos;
+        record.data.limit(mapping.position() + length).position(mapping.position());
+
+        mapping.position(mapping.position() + length);
+        return true;
+    }
+
+    /**
+     * Starts again from the first record
+     */
+    public void rewind() {
+        mapping.position(PacketCaptureWriter.HEADER_SIZE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public static final class Record {
+
+        private final ByteBuffer data;
+
+        private byte type;
+        private int session;
+        private long nanos;
+
+        private Record(final ByteBuffer data) {
+            this.data = data;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public boolean isSession() {
+            return type == PacketCaptureWriter.RECORD_SESSION;
+        }
+
+        public boolean isIncoming() {
+            return type == PacketCaptureWriter.RECORD_INCOMING;
+        }
+
+        public boolean isOutgoing() {
+            return type == PacketCaptureWriter.RECORD_OUTGOING;
+        }
+
+        public int getSession() {
+            return session;
+        }
+
+        /**
+         * @return Time since the capture started
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return View of the record data, valid until the next call to {@link PacketCaptureReader#next(Record)}
+         */
+        public ByteBuffer getData() {
+            return data;
+        }
+
+        /**
+         * @return Remote address of a SESSION record
+         */
+        public String getAddress() {
+            byte[] name = new byte[data.remaining()];
+            data.duplicate().get(name);
+            return new String(name, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.ocdsoft.bacta.soe.io.capture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Appends raw packets to a binary capture file, as they come off and go onto the wire.
+ *
+ * Layout, little endian:
+ * <pre>
+ *   header: int magic 'SOEC', short version, short reserved, long start time in epoch millis
+ *   record: byte type, int session, long nanos since start, unsigned short length, byte[length] data
+ * </pre>
+ * A SESSION record names a remote address, as text, the first time it is seen. Incoming packets are captured
+ * before decoding and outgoing packets after encoding, so the Confirm in either direction carries the encrypt
+ * code needed to decode the rest of a session.
+ *
+ * Records are buffered and written by whichever thread fills the buffer; call {@link #close()} to flush.
+ */
+public final class PacketCaptureWriter implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PacketCaptureWriter.class);
+
+    public static final int MAGIC = 0x43454F53;
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    public static final int RECORD_HEADER_SIZE = 15;
+
+    public static final byte RECORD_SESSION = 0;
+    public static final byte RECORD_INCOMING = 1;
+    public static final byte RECORD_OUTGOING = 2;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final long startNanos;
+    private final Map<InetSocketAddress, Integer> sessions;
+
+    private boolean failed;
+
+    public PacketCaptureWriter(final Path file) throws IOException {
+
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        sessions = new ConcurrentHashMap<>();
+        startNanos = System.nanoTime();
+
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) 0);
+        buffer.putLong(System.currentTimeMillis());
+    }
+
+    public void incoming(final InetSocketAddress address, final ByteBuffer packet) {
+        write(RECORD_INCOMING, address, packet);
+    }
+
+    public void outgoing(final InetSocketAddress address, final ByteBuffer packet) {
+        write(RECORD_OUTGOING, address, packet);
+    }
+
+    /**
+     * Copies the remaining bytes of the packet without moving its position
+     */
+    private synchronized void write(final byte type, final InetSocketAddress address, final ByteBuffer packet) {
+
+        if (failed) {
+            return;
+        }
+
+        long nanos = System.nanoTime() - startNanos;
+
+        Integer session = sessions.get(address);
+        if (session == null) {
+            session = sessions.size();
+            sessions.put(address, session);
+
+            byte[] name = (address.getHostString() + ":" + address.getPort()).getBytes(StandardCharsets.UTF_8);
+            append(RECORD_SESSION, session, nanos, ByteBuffer.wrap(name));
+        }
+
+        append(type, session, nanos, packet.duplicate());
+    }
+
+    private void append(final byte type, final int session, final long nanos, final ByteBuffer data) {
+
+        if (buffer.remaining() < RECORD_HEADER_SIZE + data.remaining()) {
+            flush();
+        }
+
+        buffer.put(type);
+        buffer.putInt(session);
+        buffer.putLong(nanos);
+        buffer.putShort((short) data.remaining());
+        buffer.put(data);
+    }
+
+    private void flush() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            logger.error("Unable to write packet capture, capture stopped", e);
+            failed = true;
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!failed) {
+            flush();
+        }
+        failed = true;
+        channel.close();
+    }
+}
@@ -0,0 +1,91 @@
+package com.ocdsoft.bacta.soe.io.impairment;
+
+import lombok.Getter;
+
+/**
+ * Conditions applied to packets travelling in one direction.
+ *
+ * Parsed from a comma separated list of name=value pairs, for example
+ * "loss=0.02,duplicate=0.01,reorder=0.05,reorderDelay=40,latency=50,jitter=20,bandwidth=64000,queue=500".
+ * Probabilities are 0-1, times are milliseconds and bandwidth is bytes per second, 0 meaning unlimited. Packets
+ * that would wait longer than {@code queue} milliseconds for bandwidth are dropped.
+ */
+public final class ImpairmentProfile {
+
+    public static final ImpairmentProfile NONE = new ImpairmentProfile(0, 0, 0, 0, 0, 0, 0, 1000);
+
+    @Getter private final double loss;
+    @Getter private final double duplicate;
+    @Getter private final double reorder;
+    @Getter private final int reorderDelay;
+    @Getter private final int latency;
+    @Getter private final int jitter;
+    @Getter private final int bandwidth;
+    @Getter private final int queue;
+
+    public ImpairmentProfile(final double loss,
+                             final double duplicate,
+                             final double reorder,
+                             final int reorderDelay,
+                             final int latency,
+                             final int jitter,
+                             final int bandwidth,
+                             final int queue) {
+        this.loss = loss;
+        this.duplicate = duplicate;
+        this.reorder = reorder;
+        this.reorderDelay = reorderDelay;
+        this.latency = latency;
+        this.jitter = jitter;
+        this.bandwidth = bandwidth;
+        this.queue = queue;
+    }
+
+    public static ImpairmentProfile parse(final String spec) {
+
+        if (spec == null || spec.trim().isEmpty()) {
+            return NONE;
+        }
+
+        double loss = 0;
+        double duplicate = 0;
+        double reorder = 0;
+        int reorderDelay = 0;
+        int latency = 0;
+        int jitter = 0;
+        int bandwidth = 0;
+        int queue = NONE.queue;
+
+        for (String part : spec.split(",")) {
+            String[] pair = part.trim().split("=");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Expected name=value in impairment profile but found '" + part + "'");
+            }
+
+            String value = pair[1].trim();
+            switch (pair[0].trim()) {
+                case "loss": loss = Double.parseDouble(value); break;
+                case "duplicate": duplicate = Double.parseDouble(value); break;
+                case "reorder": reorder = Double.parseDouble(value); break;
+                case "reorderDelay": reorderDelay = Integer.parseInt(value); break;
+                case "latency": latency = Integer.parseInt(value); break;
+                case "jitter": jitter = Integer.parseInt(value); break;
+                case "bandwidth": bandwidth = Integer.parseInt(value); break;
+                case "queue": queue = Integer.parseInt(value); break;
+                default: throw new IllegalArgumentException("Unknown impairment '" + pair[0] + "'");
+            }
+        }
+
+        return new ImpairmentProfile(loss, duplicate, reorder, reorderDelay, latency, jitter, bandwidth, queue);
+    }
+
+    public boolean isEnabled() {
+        return loss > 0 || duplicate > 0 || reorder > 0 || latency > 0 || jitter > 0 || bandwidth > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "loss=" + loss + ",duplicate=" + duplicate + ",reorder=" + reorder + ",reorderDelay=" + reorderDelay +
+                ",latency=" + latency + ",jitter=" + jitter + ",bandwidth=" + bandwidth + ",queue=" + queue;
+    }
+}
@@ -0,0 +1,242 @@
+package com.ocdsoft.bacta.soe.io.impairment;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sits between the socket and the protocol layer and degrades traffic according to an {@link ImpairmentProfile}
+ * per direction: packets are dropped, duplicated, delayed, reordered and held to a bandwidth limit, then handed to
+ * the direction's {@link Sink} on the impairment thread once due.
+ *
+ * Each direction draws from its own {@link Random} seeded from the configured seed, so the same traffic in the
+ * same order is impaired the same way on every run.
+ */
+public final class NetworkImpairment implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(NetworkImpairment.class);
+
+    public enum Direction {
+        INCOMING, OUTGOING
+    }
+
+    public interface Sink {
+        void deliver(InetSocketAddress address, ByteBuffer packet);
+    }
+
+    private final DelayQueue<DelayedPacket> queue;
+    private final Stage[] stages;
+    private final Thread thread;
+
+    private volatile boolean running;
+    private long sequence;
+
+    public NetworkImpairment(final String name,
+                             final long seed,
+                             final ImpairmentProfile incomingProfile,
+                             final Sink incomingSink,
+                             final ImpairmentProfile outgoingProfile,
+                             final Sink outgoingSink) {
+
+        queue = new DelayQueue<>();
+        stages = new Stage[] {
+                new Stage(incomingProfile, incomingSink, new Random(seed)),
+                new Stage(outgoingProfile, outgoingSink, new Random(~seed))
+        };
+
+        thread = new Thread(this);
+        thread.setName(name + " Impairment Thread");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        thread.interrupt();
+    }
+
+    public boolean isImpaired(final Direction direction) {
+        return stages[direction.ordinal()].profile.isEnabled();
+    }
+
+    public Stage getStage(final Direction direction) {
+        return stages[direction.ordinal()];
+    }
+
+    /**
+     * Queues a copy of the remaining bytes of the packet, or drops it
+     */
+    public void submit(final Direction direction, final InetSocketAddress address, final ByteBuffer packet) {
+        stages[direction.ordinal()].submit(address, packet, System.nanoTime());
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                DelayedPacket packet = queue.take();
+                packet.stage.delivered.incrementAndGet();
+                packet.stage.sink.deliver(packet.address, packet.data);
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                logger.error("Unable to deliver impaired packet", e);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "incoming[" + stages[0] + "] outgoing[" + stages[1] + "]";
+    }
+
+    /**
+     * One direction of impairment and its counters
+     */
+    public final class Stage {
+
+        private final ImpairmentProfile profile;
+        private final Sink sink;
+        private final Random random;
+
+        private long nextFreeNanos;
+
+        private long submitted;
+        private long dropped;
+        private long overflowed;
+        private long duplicated;
+        private long reordered;
+        private final AtomicLong delivered = new AtomicLong();
+
+        private Stage(final ImpairmentProfile profile, final Sink sink, final Random random) {
+            this.profile = profile;
+            this.sink = sink;
+            this.random = random;
+        }
+
+        private synchronized void submit(final InetSocketAddress address, final ByteBuffer packet, final long now) {
+
+            submitted++;
+
+            if (random.nextDouble() < profile.getLoss()) {
+                dropped++;
+                return;
+            }
+
+            int copies = 1;
+            if (random.nextDouble() < profile.getDuplicate()) {
+                duplicated++;
+                copies = 2;
+            }
+
+            for (int i = 0; i < copies; ++i) {
+
+                long due = now;
+
+                if (profile.getBandwidth() > 0) {
+                    long start = Math.max(now, nextFreeNanos);
+                    if (start - now > TimeUnit.MILLISECONDS.toNanos(profile.getQueue())) {
+                        overflowed++;
+                        continue;
+                    }
+                    nextFreeNanos = start + packet.remaining() * TimeUnit.SECONDS.toNanos(1) / profile.getBandwidth();
+                    due = nextFreeNanos;
+                }
+
+                long delayMillis = profile.getLatency();
+                if (profile.getJitter() > 0) {
+                    delayMillis += random.nextInt(2 * profile.getJitter() + 1) - profile.getJitter();
+                }
+                if (random.nextDouble() < profile.getReorder()) {
+                    reordered++;
+                    delayMillis += profile.getReorderDelay();
+                }
+                due += TimeUnit.MILLISECONDS.toNanos(Math.max(delayMillis, 0));
+
+                ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+                copy.put(packet.duplicate());
+                copy.flip();
+
+                queue.add(new DelayedPacket(this, address, copy, due, nextSequence()));
+            }
+        }
+
+        public ImpairmentProfile getProfile() {
+            return profile;
+        }
+
+        public synchronized long getSubmitted() {
+            return submitted;
+        }
+
+        public synchronized long getDropped() {
+            return dropped;
+        }
+
+        public synchronized long getOverflowed() {
+            return overflowed;
+        }
+
+        public synchronized long getDuplicated() {
+            return duplicated;
+        }
+
+        public synchronized long getReordered() {
+            return reordered;
+        }
+
+        public long getDelivered() {
+            return delivered.get();
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "submitted=" + submitted + " dropped=" + dropped + " overflowed=" + overflowed +
+                    " duplicated=" + duplicated + " reordered=" + reordered + " delivered=" + delivered.get();
+        }
+    }
+
+    private synchronized long nextSequence() {
+        return sequence++;
+    }
+
+    private static final class DelayedPacket implements Delayed {
+
+        private final Stage stage;
+        private final InetSocketAddress address;
+        private final ByteBuffer data;
+        private final long due;
+        private final long sequence;
+
+        private DelayedPacket(final Stage stage, final InetSocketAddress address, final ByteBuffer data, final long due, final long sequence) {
+            this.stage = stage;
+            this.address = address;
+            this.data = data;
+            this.due = due;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public long getDelay(final TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(final Delayed other) {
+            DelayedPacket packet = (DelayedPacket) other;
+            int result = Long.compare(due, packet.due);
+            return result != 0 ? result : Long.compare(sequence, packet.sequence);
+        }
+    }
+}
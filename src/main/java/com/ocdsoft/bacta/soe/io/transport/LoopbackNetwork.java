@@ -0,0 +1,64 @@
+package com.ocdsoft.bacta.soe.io.transport;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In memory network connecting {@link LoopbackTransport} endpoints by address. Packets go straight into the
+ * destination's inbox without touching the kernel; a packet for an address nobody has bound is dropped, as UDP
+ * would.
+ */
+public final class LoopbackNetwork {
+
+    private final Map<InetSocketAddress, LoopbackTransport> endpoints = new ConcurrentHashMap<>();
+    private final AtomicInteger nextPort = new AtomicInteger(50000);
+
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder undeliverable = new LongAdder();
+
+    public LoopbackTransport bind(final InetSocketAddress address) {
+        LoopbackTransport transport = new LoopbackTransport(this, address);
+        if (endpoints.putIfAbsent(address, transport) != null) {
+            throw new IllegalStateException("Address already bound: " + address);
+        }
+        return transport;
+    }
+
+    /**
+     * Binds an endpoint on 127.0.0.1 with the next free port, for clients
+     */
+    public LoopbackTransport bind() {
+        while (true) {
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1", nextPort.getAndIncrement());
+            if (!endpoints.containsKey(address)) {
+                return bind(address);
+            }
+        }
+    }
+
+    void unbind(final LoopbackTransport transport) {
+        endpoints.remove(transport.getAddress(), transport);
+    }
+
+    void deliver(final InetSocketAddress sender, final InetSocketAddress destination, final ByteBuffer packet) {
+        LoopbackTransport endpoint = endpoints.get(destination);
+        if (endpoint == null) {
+            undeliverable.increment();
+            return;
+        }
+        delivered.increment();
+        endpoint.enqueue(sender, packet);
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public long getUndeliverable() {
+        return undeliverable.sum();
+    }
+}
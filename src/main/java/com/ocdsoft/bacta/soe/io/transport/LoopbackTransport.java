@@ -0,0 +1,105 @@
+package com.ocdsoft.bacta.soe.io.transport;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One endpoint on a {@link LoopbackNetwork}. Incoming packets wait in a lock free inbox and are handed out either
+ * by {@link #run(Receiver)} on a dedicated thread, or by {@link #poll(Receiver, int)} when the caller wants to
+ * drive delivery itself, for example to keep a test single threaded and deterministic.
+ */
+public final class LoopbackTransport implements SoeTransport {
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final LoopbackNetwork network;
+    private final InetSocketAddress address;
+    private final Queue<Datagram> inbox = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean running = true;
+    private volatile Thread receiveThread;
+
+    LoopbackTransport(final LoopbackNetwork network, final InetSocketAddress address) {
+        this.network = network;
+        this.address = address;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Copies the packet, since the receiver decodes in place
+     */
+    @Override
+    public void send(final InetSocketAddress destination, final ByteBuffer packet) {
+        ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+        copy.put(packet.duplicate());
+        copy.flip();
+        network.deliver(address, destination, copy);
+    }
+
+    void enqueue(final InetSocketAddress sender, final ByteBuffer packet) {
+        inbox.offer(new Datagram(sender, packet));
+
+        Thread thread = receiveThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Delivers up to {@code max} waiting packets on the calling thread
+     * @return Number delivered
+     */
+    public int poll(final Receiver receiver, final int max) {
+        int count = 0;
+        Datagram datagram;
+        while (count < max && (datagram = inbox.poll()) != null) {
+            receiver.receive(datagram.sender, datagram.packet);
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public void run(final Receiver receiver) {
+
+        receiveThread = Thread.currentThread();
+
+        try {
+            while (running) {
+                if (poll(receiver, Integer.MAX_VALUE) == 0) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+            }
+        } finally {
+            receiveThread = null;
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        network.unbind(this);
+
+        Thread thread = receiveThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private static final class Datagram {
+        private final InetSocketAddress sender;
+        private final ByteBuffer packet;
+
+        private Datagram(final InetSocketAddress sender, final ByteBuffer packet) {
+            this.sender = sender;
+            this.packet = packet;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.ocdsoft.bacta.soe.io.transport;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Moves encoded packets between a {@link com.ocdsoft.bacta.soe.io.udp.SoeTransceiver} and its peers. The default
+ * sends over the engine's UDP socket; {@link LoopbackTransport} keeps everything in memory.
+ */
+public interface SoeTransport {
+
+    interface Receiver {
+        void receive(InetSocketAddress sender, ByteBuffer packet);
+    }
+
+    /**
+     * Sends the remaining bytes of the packet. The transport may keep the buffer.
+     */
+    void send(InetSocketAddress destination, ByteBuffer packet);
+
+    /**
+     * Hands incoming packets to the receiver until {@link #stop()} is called, blocking the calling thread
+     */
+    void run(Receiver receiver);
+
+    void stop();
+}
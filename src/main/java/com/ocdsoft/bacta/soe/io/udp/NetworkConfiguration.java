@@ -4,6 +4,7 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.ocdsoft.bacta.engine.conf.BactaConfiguration;
 import com.ocdsoft.bacta.soe.connection.EncryptMethod;
+import com.ocdsoft.bacta.soe.io.impairment.ImpairmentProfile;
 import lombok.Getter;
 
 /**
@@ -33,6 +34,28 @@ public final class NetworkConfiguration {
     @Getter private final boolean multiGameMessages;
 
     @Getter private final boolean disableInstrumentation;
+
+    @Getter private final boolean priorityChannels;
+    private final int[] reliableChannelWeights;
+
+    /**
+     * File raw packets are captured to, see {@link com.ocdsoft.bacta.soe.io.capture.PacketCaptureWriter}. Empty when disabled.
+     */
+    @Getter private final String captureFile;
+
+    /**
+     * Simulated network conditions, see {@link com.ocdsoft.bacta.soe.io.impairment.NetworkImpairment}
+     */
+    @Getter private final ImpairmentProfile incomingImpairment;
+    @Getter private final ImpairmentProfile outgoingImpairment;
+    @Getter private final long impairmentSeed;
+
+    /**
+     * How long a lost session can be resumed, see {@link com.ocdsoft.bacta.soe.service.SessionResumeService}. 0, the
+     * default, disables resuming.
+     */
+    @Getter private final int sessionResumeGraceMs;
+    @Getter private final int maxResumableSessions;
     
 //    logAllNetworkTraffic = false
 //    incomingBufferSize = 4194304
@@ -71,7 +94,49 @@ public final class NetworkConfiguration {
         multiSoeMessages = configuration.getBooleanWithDefault("SharedNetwork", "multiSoeMessages", true);
         multiGameMessages = configuration.getBooleanWithDefault("SharedNetwork", "multiGameMessages", true);
         disableInstrumentation = configuration.getBooleanWithDefault("SharedNetwork", "disableInstrumentation", false);
+        // Off until message priorities are verified: each channel has its own sequence space, so spreading messages
+        // over channels loses their send order, such as a scene create ahead of its baselines
+        priorityChannels = configuration.getBooleanWithDefault("SharedNetwork", "priorityChannels", false);
+        captureFile = configuration.getStringWithDefault("SharedNetwork", "captureFile", "");
+        incomingImpairment = ImpairmentProfile.parse(configuration.getStringWithDefault("SharedNetwork", "incomingImpairment", ""));
+        outgoingImpairment = ImpairmentProfile.parse(configuration.getStringWithDefault("SharedNetwork", "outgoingImpairment", ""));
+        impairmentSeed = configuration.getIntWithDefault("SharedNetwork", "impairmentSeed", 1);
+        sessionResumeGraceMs = configuration.getIntWithDefault("SharedNetwork", "sessionResumeGraceMs", 0);
+        maxResumableSessions = configuration.getIntWithDefault("SharedNetwork", "maxResumableSessions", 10000);
+        reliableChannelWeights = parseChannelWeights(configuration.getStringWithDefault("SharedNetwork", "reliableChannelWeights", "8,4,2,1"));
+    }
+
+    private static int[] parseChannelWeights(final String value) {
+        final int[] weights = new int[] {8, 4, 2, 1};
+        if (value != null) {
+            final String[] parts = value.split(",");
+            for (int i = 0; i < parts.length && i < weights.length; ++i) {
+                weights[i] = Math.max(1, Integer.parseInt(parts[i].trim()));
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * Maps a {@link com.ocdsoft.bacta.soe.message.GameNetworkMessage} priority to a reliable channel. Priority 1
+     * and below go out on Reliable1, which has the largest weight, and priority 4 and above on Reliable4.
+     * Messages are only ordered relative to others on the same channel. Unless priorityChannels is enabled,
+     * everything goes out on Reliable1 in send order.
+     *
+     * @return The reliable channel, 0-3
+     */
+    public int getReliableChannel(final short priority) {
+        if (!priorityChannels) {
+            return 0;
+        }
+        return Math.min(Math.max(priority, 1), 4) - 1;
+    }
 
+    /**
+     * @return Relative share of the send budget given to a reliable channel when several have data queued
+     */
+    public int getReliableChannelWeight(final int channel) {
+        return reliableChannelWeights[channel];
     }
 
     public int getMaxMultiPayload() {
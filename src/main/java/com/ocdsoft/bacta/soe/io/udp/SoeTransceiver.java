@@ -8,23 +8,34 @@ import com.ocdsoft.bacta.engine.utils.BufferUtil;
 import com.ocdsoft.bacta.soe.ServerType;
 import com.ocdsoft.bacta.soe.connection.ConnectionRole;
 import com.ocdsoft.bacta.soe.connection.SoeUdpConnection;
+import com.ocdsoft.bacta.soe.io.capture.PacketCaptureWriter;
+import com.ocdsoft.bacta.soe.io.impairment.NetworkImpairment;
+import com.ocdsoft.bacta.soe.io.transport.SoeTransport;
+import com.ocdsoft.bacta.soe.message.GameNetworkMessage;
 import com.ocdsoft.bacta.soe.message.UdpPacketType;
 import com.ocdsoft.bacta.soe.protocol.SoeProtocol;
-import com.ocdsoft.bacta.soe.router.SoeDevelopMessageRouter;
+import com.ocdsoft.bacta.soe.router.SoeMessageRouter;
+import com.ocdsoft.bacta.soe.service.SessionKeyService;
+import com.ocdsoft.bacta.soe.service.SessionResumeService;
 import org.apache.commons.modeler.Registry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.management.MBeanServer;
+import java.io.IOException;
 import java.io.InputStream;
 import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
  * Created by kburkhardt on 2/15/14.
@@ -34,7 +45,7 @@ public final class SoeTransceiver extends UdpTransceiver<SoeUdpConnection>  {
 
     private final static Logger logger = LoggerFactory.getLogger(SoeTransceiver.class);
 
-    private final SoeDevelopMessageRouter soeMessageRouter;
+    private final SoeMessageRouter soeMessageRouter;
 
     private final SoeProtocol protocol;
 
@@ -49,14 +60,29 @@ public final class SoeTransceiver extends UdpTransceiver<SoeUdpConnection>  {
     
     private final Counter incomingMessages;
     private final Counter outgoingMessages;
+    private final Counter broadcastMessages;
+    private final Counter broadcastRecipients;
     private final Timer sendTimer;
     private final Histogram sendQueueSizes;
 
+    private final PacketCaptureWriter captureWriter;
+
+    private final NetworkImpairment impairment;
+
+    private final SoeTransport transport;
+
+    // Resend counters of connections that have since been removed
+    private final LongAdder closedTimeoutResends = new LongAdder();
+    private final LongAdder closedFastRetransmits = new LongAdder();
+    private final LongAdder closedSelectiveAcks = new LongAdder();
+
     // Connection Id generator
-    private final Random random;
+    private final SessionKeyService keyService;
+
+    private final SessionResumeService resumeService;
 
     public SoeTransceiver() {
-        this(null, null, null, 0, null, null, null);
+        this(null, null, null, 0, null, null, null, null, null);
     }
     
     public SoeTransceiver(final MetricRegistry metrics,
@@ -64,21 +90,57 @@ public final class SoeTransceiver extends UdpTransceiver<SoeUdpConnection>  {
                           final InetAddress bindAddress,
                           final int port,
                           final ServerType serverType,
-                          final SoeDevelopMessageRouter soeMessageRouter,
-                          final Collection<String> whitelistedAddresses) {
+                          final SoeMessageRouter soeMessageRouter,
+                          final Collection<String> whitelistedAddresses,
+                          final SessionKeyService keyService,
+                          final SessionResumeService resumeService) {
+
+        this(metrics, configuration, bindAddress, port, serverType, soeMessageRouter, whitelistedAddresses, keyService, resumeService, null);
+    }
+
+    /**
+     * @param keyService Supplies ids for outgoing connections, plain random ids when null
+     * @param resumeService Keeps sessions of lost connections for resumption, none are kept when null
+     * @param transport Carries packets to and from peers, the engine's UDP socket when null
+     */
+    public SoeTransceiver(final MetricRegistry metrics,
+                          final NetworkConfiguration configuration,
+                          final InetAddress bindAddress,
+                          final int port,
+                          final ServerType serverType,
+                          final SoeMessageRouter soeMessageRouter,
+                          final Collection<String> whitelistedAddresses,
+                          final SessionKeyService keyService,
+                          final SessionResumeService resumeService,
+                          final SoeTransport transport) {
 
         super(bindAddress, port);
 
+        this.transport = transport != null ? transport : new UdpTransport();
+
         this.configuration = configuration;
         this.soeMessageRouter = soeMessageRouter;
         this.protocol = new SoeProtocol();
         this.whitelistedAddresses = whitelistedAddresses;
-        this.random = new Random();
+        this.keyService = keyService != null ? keyService : () -> ThreadLocalRandom.current().nextInt();
+        this.resumeService = resumeService;
 
         this.mBeanServer = ManagementFactory.getPlatformMBeanServer();
 
         protocol.setCompression(configuration.isCompression());
 
+        captureWriter = createCaptureWriter(configuration.getCaptureFile(), serverType);
+
+        if (configuration.getIncomingImpairment().isEnabled() || configuration.getOutgoingImpairment().isEnabled()) {
+            impairment = new NetworkImpairment(serverType.name(), configuration.getImpairmentSeed(),
+                    configuration.getIncomingImpairment(), this::processIncoming,
+                    configuration.getOutgoingImpairment(), this.transport::send);
+            logger.warn("Network impairment enabled: incoming[{}] outgoing[{}] seed {}",
+                    configuration.getIncomingImpairment(), configuration.getOutgoingImpairment(), configuration.getImpairmentSeed());
+        } else {
+            impairment = null;
+        }
+
         connectionMap = new ConcurrentHashMap<>();
 
         sendThread = new Thread(new SendLoop());
@@ -86,6 +148,8 @@ public final class SoeTransceiver extends UdpTransceiver<SoeUdpConnection>  {
 
         outgoingMessages = metrics.counter(MetricRegistry.name(SoeTransceiver.class, "message", "outgoing"));
         incomingMessages = metrics.counter(MetricRegistry.name(SoeTransceiver.class, "message", "incoming"));
+        broadcastMessages = metrics.counter(MetricRegistry.name(SoeTransceiver.class, "broadcast", "messages"));
+        broadcastRecipients = metrics.counter(MetricRegistry.name(SoeTransceiver.class, "broadcast", "recipients"));
         sendQueueSizes = metrics.histogram(MetricRegistry.name(SoeTransceiver.class, "message", "outgoing-queue"));
         sendTimer = metrics.timer(MetricRegistry.name(SoeTransceiver.class, "message", "send-timer"));
         
@@ -119,6 +183,25 @@ public final class SoeTransceiver extends UdpTransceiver<SoeUdpConnection>  {
         }
     }
     
+    /**
+     * Each transceiver captures to its own file, named by appending the server type to the configured capture file
+     */
+    private static PacketCaptureWriter createCaptureWriter(final String captureFile, final ServerType serverType) {
+
+        if (captureFile == null || captureFile.isEmpty()) {
+            return null;
+        }
+
+        try {
+            String file = captureFile + "." + serverType.name().toLowerCase();
+            logger.info("Capturing packets to {}", file);
+            return new PacketCaptureWriter(Paths.get(file));
+        } catch (IOException e) {
+            logger.error("Unable to open packet capture", e);
+            return null;
+        }
+    }
+
     public long getIncomingMessageCount() {
         return incomingMessages.getCount();
     }
@@ -127,6 +210,14 @@ public final class SoeTransceiver extends UdpTransceiver<SoeUdpConnection>  {
         return outgoingMessages.getCount();
     }
     
+    public long getBroadcastMessageCount() {
+        return broadcastMessages.getCount();
+    }
+
+    public long getBroadcastRecipientCount() {
+        return broadcastRecipients.getCount();
+    }
+
     public double getAverageSendQueueSize() {
         return sendQueueSizes.getSnapshot().getMean();
     }
@@ -134,6 +225,69 @@ public final class SoeTransceiver extends UdpTransceiver<SoeUdpConnection>  {
     public int getConnectionCount() {
         return connectionMap.size();
     }
+
+    public long getTimeoutResends() {
+        long count = closedTimeoutResends.sum();
+        for (SoeUdpConnection connection : connectionMap.values()) {
+            count += connection.getTimeoutResends();
+        }
+        return count;
+    }
+
+    public long getFastRetransmits() {
+        long count = closedFastRetransmits.sum();
+        for (SoeUdpConnection connection : connectionMap.values()) {
+            count += connection.getFastRetransmits();
+        }
+        return count;
+    }
+
+    public long getSelectiveAcksReceived() {
+        long count = closedSelectiveAcks.sum();
+        for (SoeUdpConnection connection : connectionMap.values()) {
+            count += connection.getSelectiveAcksReceived();
+        }
+        return count;
+    }
+
+    /**
+     * Folds the counters of a connection that is going away into the totals and keeps its session for resumption
+     */
+    private void retire(final SoeUdpConnection connection) {
+        closedTimeoutResends.add(connection.getTimeoutResends());
+        closedFastRetransmits.add(connection.getFastRetransmits());
+        closedSelectiveAcks.add(connection.getSelectiveAcksReceived());
+
+        if (resumeService != null) {
+            resumeService.store(connection);
+        }
+
+        if (!configuration.isDisableInstrumentation() && connection.getBeanName() != null) {
+            try {
+                if (mBeanServer.isRegistered(connection.getBeanName())) {
+                    mBeanServer.unregisterMBean(connection.getBeanName());
+                }
+            } catch (Exception e) {
+                logger.error("Unable to unregister bean", e);
+            }
+        }
+    }
+
+    public long getResumableSessionCount() {
+        return resumeService != null ? resumeService.getSessionCount() : 0;
+    }
+
+    public long getResumedSessionCount() {
+        return resumeService != null ? resumeService.getResumed() : 0;
+    }
+
+    public String getImpairmentReport() {
+        if (impairment == null) {
+            return "disabled";
+        }
+        return impairment + " resends[timeout=" + getTimeoutResends() + " fast=" + getFastRetransmits() +
+                " selectiveAcks=" + getSelectiveAcksReceived() + "]";
+    }
     
     /**
      * The factory method that creates instances of the {@link com.ocdsoft.bacta.engine.network.client.UdpConnection} specified in the {@code Client} parameter
@@ -164,7 +318,7 @@ public final class SoeTransceiver extends UdpTransceiver<SoeUdpConnection>  {
 
         try {
             SoeUdpConnection connection = new SoeUdpConnection(configuration, address, ConnectionState.LINKDEAD, connectCallback);
-            connection.setId(random.nextInt());
+            connection.setId(keyService.getNextConnectionId());
             
             if(whitelistedAddresses != null && whitelistedAddresses.contains(connection.getRemoteAddress().getHostString())) {
                 connection.addRole(ConnectionRole.WHITELISTED);
@@ -189,11 +343,58 @@ public final class SoeTransceiver extends UdpTransceiver<SoeUdpConnection>  {
         }
     }
 
+    /**
+     * Sends a message to the given connections, serializing it once for all of them
+     * @return Number of connections the message was queued on
+     */
+    public int broadcast(final GameNetworkMessage message, final Iterable<SoeUdpConnection> recipients) {
+        final int count = SoeUdpConnection.broadcast(message, recipients);
+        broadcastMessages.inc();
+        broadcastRecipients.inc(count);
+        return count;
+    }
+
+    /**
+     * Sends a message to every connection matching {@code filter}, serializing it once for all of them
+     * @return Number of connections the message was queued on
+     */
+    public int broadcast(final GameNetworkMessage message, final Predicate<SoeUdpConnection> filter) {
+        final List<SoeUdpConnection> recipients = new ArrayList<>();
+        for (SoeUdpConnection connection : connectionMap.values()) {
+            if (filter.test(connection)) {
+                recipients.add(connection);
+            }
+        }
+        return broadcast(message, recipients);
+    }
+
+    /**
+     * Sends a message to every online connection
+     */
+    public int broadcast(final GameNetworkMessage message) {
+        return broadcast(message, connectionMap.values());
+    }
+
     @Override
     public final void receiveMessage(InetSocketAddress sender, ByteBuffer buffer) {
 
+        if (captureWriter != null) {
+            captureWriter.incoming(sender, buffer);
+        }
+
+        if (impairment != null && impairment.isImpaired(NetworkImpairment.Direction.INCOMING)) {
+            impairment.submit(NetworkImpairment.Direction.INCOMING, sender, buffer);
+            return;
+        }
+
+        processIncoming(sender, buffer);
+    }
+
+    private void processIncoming(InetSocketAddress sender, ByteBuffer buffer) {
+
         try {
             incomingMessages.inc();
+
             SoeUdpConnection connection = connectionMap.get(sender);
             UdpPacketType packetType;
             
@@ -204,6 +405,10 @@ public final class SoeTransceiver extends UdpTransceiver<SoeUdpConnection>  {
 
                 if (packetType == UdpPacketType.cUdpPacketConnect) {
 
+                    if (connection != null) {
+                        retire(connection);
+                    }
+
                     connection = createConnection(sender);
                     connectionMap.put(sender, connection);
 
@@ -251,21 +456,68 @@ public final class SoeTransceiver extends UdpTransceiver<SoeUdpConnection>  {
         }
 
         outgoingMessages.inc();
-        handleOutgoing(buffer, connection.getRemoteAddress());
+
+        if (captureWriter != null) {
+            captureWriter.outgoing(connection.getRemoteAddress(), buffer);
+        }
+
+        if (impairment != null && impairment.isImpaired(NetworkImpairment.Direction.OUTGOING)) {
+            impairment.submit(NetworkImpairment.Direction.OUTGOING, connection.getRemoteAddress(), buffer);
+            return;
+        }
+
+        transport.send(connection.getRemoteAddress(), buffer);
     }
 
     @Override
     public final void run() {
+        if (impairment != null) {
+            impairment.start();
+        }
         sendThread.start();
-        super.run();
+        transport.run(this::receiveMessage);
     }
 
     public void stop() {
         sendThread.interrupt();
-        super.stop();
+        transport.stop();
+
+        if (impairment != null) {
+            impairment.stop();
+            logger.info("Network impairment: {}", getImpairmentReport());
+        }
+
+        if (captureWriter != null) {
+            try {
+                captureWriter.close();
+            } catch (IOException e) {
+                logger.error("Unable to close packet capture", e);
+            }
+        }
     }
 
-    private class SendLoop implements Runnable {
+    /**
+     * Default transport, the socket owned by {@link UdpTransceiver}
+     */
+    private class UdpTransport implements SoeTransport {
+
+        @Override
+        public void send(InetSocketAddress destination, ByteBuffer packet) {
+            handleOutgoing(packet, destination);
+        }
+
+        @Override
+        public void run(Receiver receiver) {
+            SoeTransceiver.super.run();
+        }
+
+        @Override
+        public void stop() {
+            SoeTransceiver.super.stop();
+        }
+    }
+
+        private class SendLoop implements Runnable {
 
         @Override
         public void run() {
@@ -274,7 +526,7 @@ public final class SoeTransceiver extends UdpTransceiver<SoeUdpConnection>  {
             
             try {
 
-                while(ctx == null) {
+                while(ctx == null && transport instanceof UdpTransport) {
                     Thread.sleep(100);
                 }
                 
@@ -315,9 +567,10 @@ public final class SoeTransceiver extends UdpTransceiver<SoeUdpConnection>  {
 
                         for (Object key : deadClients) {
                             SoeUdpConnection connection = connectionMap.remove(key);
-                            if(!configuration.isDisableInstrumentation()) {
-                                mBeanServer.unregisterMBean(connection.getBeanName());
+                            if (connection == null) {
+                                continue;
                             }
+                            retire(connection);
                             if(configuration.isReportUdpDisconnects()) {
                                 logger.info("Client disconnected: " + connection.getRemoteAddress() + " Connection: " + connection.getId() + " Reason: " + connection.getTerminateReason());
                             }
@@ -14,6 +14,8 @@ import com.ocdsoft.bacta.soe.io.udp.NetworkConfiguration;
 import com.ocdsoft.bacta.soe.io.udp.SoeTransceiver;
 import com.ocdsoft.bacta.soe.router.SoeDevelopMessageRouter;
 import com.ocdsoft.bacta.soe.service.OutgoingConnectionService;
+import com.ocdsoft.bacta.soe.service.SessionKeyService;
+import com.ocdsoft.bacta.soe.service.SessionResumeService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -64,7 +66,9 @@ public class GameServer implements Runnable {
                 configuration.getInt("Bacta/GameServer", "Port"),
                 ServerType.GAME,
                 soeMessageRouter,
-                configuration.getStringCollection("Bacta/GameServer", "TrustedClient"));
+                configuration.getStringCollection("Bacta/GameServer", "TrustedClient"),
+                injector.getInstance(SessionKeyService.class),
+                injector.getInstance(SessionResumeService.class));
 
         ((GameOutgoingConnectionService)outgoingConnectionService).createConnection = transceiver::createOutgoingConnection;
 
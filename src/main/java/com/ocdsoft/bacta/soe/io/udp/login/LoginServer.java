@@ -12,6 +12,8 @@ import com.ocdsoft.bacta.soe.io.udp.NetworkConfiguration;
 import com.ocdsoft.bacta.soe.io.udp.SoeTransceiver;
 import com.ocdsoft.bacta.soe.router.SoeDevelopMessageRouter;
 import com.ocdsoft.bacta.soe.service.OutgoingConnectionService;
+import com.ocdsoft.bacta.soe.service.SessionKeyService;
+import com.ocdsoft.bacta.soe.service.SessionResumeService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -59,7 +61,9 @@ public class LoginServer implements Runnable {
                 configuration.getInt("Bacta/LoginServer", "Port"),
                 ServerType.LOGIN,
                 soeMessageRouter,
-                configuration.getStringCollection("Bacta/LoginServer", "TrustedClient"));
+                configuration.getStringCollection("Bacta/LoginServer", "TrustedClient"),
+                injector.getInstance(SessionKeyService.class),
+                injector.getInstance(SessionResumeService.class));
 
         ((LoginOutgoingConnectionService)outgoingConnectionService).createConnection = transceiver::createOutgoingConnection;
 
@@ -3,7 +3,11 @@ package com.ocdsoft.bacta.soe.message;
 public final class AckAllMessage extends SoeMessage {
 
 	public AckAllMessage(short sequenceNum) {
-		super(UdpPacketType.cUdpPacketAckAll1);
+		this(0, sequenceNum);
+	}
+
+	public AckAllMessage(int channel, short sequenceNum) {
+		super(UdpPacketType.ackAll(channel));
 
 		compressed = false;
 
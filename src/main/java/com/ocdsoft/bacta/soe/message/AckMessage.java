@@ -3,7 +3,11 @@ package com.ocdsoft.bacta.soe.message;
 public final class AckMessage extends SoeMessage {
 
 	public AckMessage(short sequenceNum) {
-		super(UdpPacketType.cUdpPacketAckAll1);
+		this(0, sequenceNum);
+	}
+
+	public AckMessage(int channel, short sequenceNum) {
+		super(UdpPacketType.ack(channel));
 
 		compressed = false;
 
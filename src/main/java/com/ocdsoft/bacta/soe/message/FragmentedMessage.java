@@ -0,0 +1,80 @@
+package com.ocdsoft.bacta.soe.message;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the serialized source of a message too large for a single reliable packet. The source is kept once and
+ * every {@link ReliableFragment} reads its slice from it, both on the first send and on resends. The source is
+ * dropped once every fragment of the message has been acknowledged, so it stays alive until the last fragment has
+ * been built and sent even if the earlier ones are acknowledged first.
+ */
+public final class FragmentedMessage {
+
+    private final UdpPacketType packetType;
+    private final int size;
+    private final int maxPayload;
+    private final AtomicInteger outstanding;
+
+    private volatile ByteBuffer source;
+
+    public FragmentedMessage(final ByteBuffer buffer, final int maxPayload) {
+        this(0, buffer, maxPayload);
+    }
+
+    /**
+     * @param channel Reliable channel, 0-3, the fragments are sent on
+     * @param buffer The serialized message
+     * @param maxPayload Largest payload a fragment may carry, including the total size field of the first fragment
+     */
+    public FragmentedMessage(final int channel, final ByteBuffer buffer, final int maxPayload) {
+        this.packetType = UdpPacketType.fragment(channel);
+        this.source = buffer.slice().asReadOnlyBuffer();
+        this.size = source.remaining();
+        this.maxPayload = maxPayload;
+        this.outstanding = new AtomicInteger(getFragmentCount());
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Number of fragments the message is split into
+     */
+    public int getFragmentCount() {
+        final int rest = size - (maxPayload - 4);
+        return rest > 0 ? 1 + (rest + maxPayload - 1) / maxPayload : 1;
+    }
+
+    UdpPacketType getPacketType() {
+        return packetType;
+    }
+
+    /**
+     * Creates the next fragment view over the source.
+     *
+     * @param sequenceNumber Reliable sequence of the fragment
+     * @param offset Offset of the fragment's payload in the source
+     * @return The fragment
+     */
+    public ReliableFragment fragment(final short sequenceNumber, final int offset) {
+        final boolean first = offset == 0;
+        final int length = Math.min(first ? maxPayload - 4 : maxPayload, size - offset);
+        return new ReliableFragment(this, sequenceNumber, offset, length, first);
+    }
+
+    /**
+     * @return A private view of the source, or null once every fragment has been acknowledged
+     */
+    ByteBuffer getSource() {
+        final ByteBuffer current = source;
+        return current != null ? current.duplicate() : null;
+    }
+
+    void release() {
+        if (outstanding.decrementAndGet() == 0) {
+            source = null;
+        }
+    }
+}
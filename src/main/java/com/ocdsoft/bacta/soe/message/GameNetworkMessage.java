@@ -2,11 +2,19 @@ package com.ocdsoft.bacta.soe.message;
 
 import com.ocdsoft.bacta.engine.buffer.ByteBufferWritable;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /**
  * Created by Kyle on 3/26/14.
  */
 public abstract class GameNetworkMessage implements ByteBufferWritable {
 
+    // Messages are written here first, then copied into an exactly sized buffer. It grows for larger messages.
+    private static final ThreadLocal<ByteBuffer> SCRATCH =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(1500).order(ByteOrder.LITTLE_ENDIAN));
+
     private final short priority;
     private final int messageType;
 
@@ -22,4 +30,33 @@ public abstract class GameNetworkMessage implements ByteBufferWritable {
     public int getMessageType() {
         return messageType;
     }
+
+    /**
+     * Writes the priority, message type and body into an exactly sized buffer, ready to be sent to any number of
+     * connections with {@link com.ocdsoft.bacta.soe.connection.SoeUdpConnection#sendSerialized(short, ByteBuffer)}
+     */
+    public ByteBuffer serialize() {
+
+        ByteBuffer buffer = SCRATCH.get();
+
+        while (true) {
+            buffer.clear();
+            try {
+                buffer.putShort(priority);
+                buffer.putInt(messageType);
+
+                writeToBuffer(buffer);
+                break;
+            } catch (BufferOverflowException e) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+                SCRATCH.set(buffer);
+            }
+        }
+        buffer.flip();
+
+        ByteBuffer serialized = ByteBuffer.allocate(buffer.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+        serialized.put(buffer);
+        serialized.flip();
+        return serialized;
+    }
 }
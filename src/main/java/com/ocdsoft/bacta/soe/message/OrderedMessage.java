@@ -0,0 +1,23 @@
+package com.ocdsoft.bacta.soe.message;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Unreliable packet stamped with a 16 bit order number. The receiver drops it if a newer one has already
+ * arrived and it is never resent.
+ */
+public final class OrderedMessage extends SoeMessage {
+
+    public static final int HEADER_SIZE = 4;
+
+    public OrderedMessage(short orderStamp, ByteBuffer payload) {
+        super(UdpPacketType.cUdpPacketOrdered,
+                ByteBuffer.allocate(HEADER_SIZE + payload.remaining()).order(ByteOrder.BIG_ENDIAN));
+
+        compressed = false;
+
+        buffer.putShort(orderStamp);
+        buffer.put(payload.duplicate());
+    }
+}
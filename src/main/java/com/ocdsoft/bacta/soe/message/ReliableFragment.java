@@ -0,0 +1,80 @@
+package com.ocdsoft.bacta.soe.message;
+
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A single cUdpPacketFragment view into a {@link FragmentedMessage}. No payload is copied until the fragment is
+ * sent, at which point the header and the slice are framed into a buffer of exactly the size needed. The encoder
+ * encrypts in place, so each send gets its own frame and the shared source stays untouched for resends.
+ */
+public final class ReliableFragment implements ReliableMessage {
+
+    private final FragmentedMessage message;
+
+    @Getter
+    private final int sequenceNumber;
+
+    private final int offset;
+    private final int length;
+    private final boolean first;
+
+    @Getter
+    private int sendAttempts;
+
+    @Getter
+    private long lastSendAttempt;
+
+    ReliableFragment(final FragmentedMessage message, final short sequenceNumber, final int offset, final int length, final boolean first) {
+        this.message = message;
+        this.sequenceNumber = sequenceNumber & 0xFFFF;
+        this.offset = offset;
+        this.length = length;
+        this.first = first;
+    }
+
+    /**
+     * @return Number of payload bytes carried by this fragment
+     */
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public void addSendAttempt() {
+        sendAttempts++;
+        lastSendAttempt = System.currentTimeMillis();
+    }
+
+    /**
+     * @return The framed fragment, or null if the message has already been fully acknowledged
+     */
+    @Override
+    public ByteBuffer slice() {
+
+        ByteBuffer payload = message.getSource();
+        if (payload == null) {
+            return null;
+        }
+        payload.position(offset);
+        payload.limit(offset + length);
+
+        ByteBuffer frame = ByteBuffer.allocate(4 + (first ? 4 : 0) + length).order(ByteOrder.BIG_ENDIAN);
+        frame.put((byte) 0);
+        message.getPacketType().writeToBuffer(frame);
+        frame.putShort((short) sequenceNumber);
+        if (first) {
+            frame.putInt(message.size());
+        }
+        frame.put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    @Override
+    public void release() {
+        message.release();
+    }
+}
@@ -0,0 +1,29 @@
+package com.ocdsoft.bacta.soe.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A packet on the reliable stream. Implementations are held by the
+ * {@link com.ocdsoft.bacta.soe.connection.ReliableUdpMessageBuilder} from the time they are given a sequence
+ * number until the remote side acknowledges them.
+ */
+public interface ReliableMessage {
+
+    int getSequenceNumber();
+
+    int getSendAttempts();
+
+    long getLastSendAttempt();
+
+    void addSendAttempt();
+
+    /**
+     * @return The framed packet, ready to be handed to the encoder
+     */
+    ByteBuffer slice();
+
+    /**
+     * Called once the remote side has acknowledged this message
+     */
+    void release();
+}
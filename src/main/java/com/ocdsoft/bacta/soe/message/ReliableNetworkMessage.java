@@ -6,7 +6,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
-public final class ReliableNetworkMessage extends SoeMessage implements Comparable<ReliableNetworkMessage> {
+public final class ReliableNetworkMessage extends SoeMessage implements ReliableMessage, Comparable<ReliableNetworkMessage> {
 
     @Getter
     private final int sequenceNumber;
@@ -28,25 +28,20 @@ public final class ReliableNetworkMessage extends SoeMessage implements Comparab
      * @param inbuffer
      */
     public ReliableNetworkMessage(short sequenceNumber, ByteBuffer inbuffer) {
-        super(UdpPacketType.cUdpPacketReliable1);
-        this.sequenceNumber = sequenceNumber;
-        buffer.putShort(sequenceNumber);
-        list.add(inbuffer);
+        this(0, sequenceNumber, inbuffer);
     }
 
     /**
-     * This constructor is used for reliable fragments
+     * This constructor is used for reliable messages on one of the four reliable channels
      *
+     * @param channel Reliable channel, 0-3
      * @param sequenceNumber
      * @param inbuffer
      */
-    public ReliableNetworkMessage(short sequenceNumber, ByteBuffer inbuffer, boolean first, int size) {
-        super(UdpPacketType.cUdpPacketFragment1);
-        this.sequenceNumber = sequenceNumber;
+    public ReliableNetworkMessage(int channel, short sequenceNumber, ByteBuffer inbuffer) {
+        super(UdpPacketType.reliable(channel));
+        this.sequenceNumber = sequenceNumber & 0xFFFF;
         buffer.putShort(sequenceNumber);
-        if(first) {
-            buffer.putInt(size);
-        }
         list.add(inbuffer);
     }
 
@@ -85,8 +80,8 @@ public final class ReliableNetworkMessage extends SoeMessage implements Comparab
             buffer.put(list.get(0));
         } else {
             buffer.putShort((short) 0x19);
-            for (ByteBuffer buffer : list) {
-                int byteCount = buffer.limit();
+            for (ByteBuffer message : list) {
+                int byteCount = message.limit();
                 if(byteCount > 0xFF) {
                     int sizeCount = (byteCount / 0xFF) - (byteCount % 0xFF == 0 ? 1 : 0);
 
@@ -103,21 +98,45 @@ public final class ReliableNetworkMessage extends SoeMessage implements Comparab
                     buffer.put((byte)byteCount);
                 }
 
-                buffer.put(buffer);
+                buffer.put(message);
             }
         }
 
         finished = true;
     }
 
+    /**
+     * The encoder encrypts in place, so every send gets its own copy of the finished packet. This keeps the
+     * original intact for resends.
+     */
+    @Override
+    public ByteBuffer slice() {
+        ByteBuffer packet = buffer.duplicate();
+        packet.flip();
+
+        ByteBuffer copy = ByteBuffer.allocate(packet.remaining()).order(buffer.order());
+        copy.put(packet);
+        copy.flip();
+        return copy;
+    }
+
+    @Override
     public void addSendAttempt() {
         sendAttempts++;
         lastSendAttempt = System.currentTimeMillis();
     }
 
+    @Override
+    public void release() {
+        list.clear();
+    }
 
+
+    /**
+     * Orders by distance in the 16 bit sequence space so that 0x0000 follows 0xFFFF
+     */
     @Override
     public int compareTo(ReliableNetworkMessage o) {
-        return getSequenceNumber() - o.getSequenceNumber();
+        return (short) (getSequenceNumber() - o.getSequenceNumber());
     }
 }
@@ -3,6 +3,7 @@ package com.ocdsoft.bacta.soe.message;
 import com.ocdsoft.bacta.engine.buffer.ByteBufferWritable;
 
 import java.nio.ByteBuffer;
+import java.util.EnumSet;
 
 /**
  * Created by Kyle on 8/21/2014.
@@ -40,6 +41,14 @@ public enum UdpPacketType implements ByteBufferWritable {
     cUdpPacketUnreachableConnection(0x1D),
     cUdpPacketRequestRemap(0x1E);
 
+    /**
+     * Number of independent reliable channels, each with its own sequence space and acknowledgements
+     */
+    public static final int RELIABLE_CHANNELS = 4;
+
+    private static final EnumSet<UdpPacketType> FRAGMENTS =
+            EnumSet.of(cUdpPacketFragment1, cUdpPacketFragment2, cUdpPacketFragment3, cUdpPacketFragment4);
+
     private byte value;
 
     UdpPacketType(int value) {
@@ -50,6 +59,42 @@ public enum UdpPacketType implements ByteBufferWritable {
         return value;
     }
 
+    /**
+     * @return The reliable channel (0-3) of a Reliable, Fragment, Ack or AckAll packet type, otherwise -1
+     */
+    public int getReliableChannel() {
+        if (value >= cUdpPacketReliable1.value && value <= cUdpPacketFragment4.value) {
+            return (value - cUdpPacketReliable1.value) % RELIABLE_CHANNELS;
+        }
+        if (value >= cUdpPacketAck1.value && value <= cUdpPacketAckAll4.value) {
+            return (value - cUdpPacketAck1.value) % RELIABLE_CHANNELS;
+        }
+        return -1;
+    }
+
+    /**
+     * @return true for the Fragment packet types of every reliable channel
+     */
+    public boolean isFragment() {
+        return FRAGMENTS.contains(this);
+    }
+
+    public static UdpPacketType reliable(int channel) {
+        return values()[cUdpPacketReliable1.ordinal() + channel];
+    }
+
+    public static UdpPacketType fragment(int channel) {
+        return values()[cUdpPacketFragment1.ordinal() + channel];
+    }
+
+    public static UdpPacketType ack(int channel) {
+        return values()[cUdpPacketAck1.ordinal() + channel];
+    }
+
+    public static UdpPacketType ackAll(int channel) {
+        return values()[cUdpPacketAckAll1.ordinal() + channel];
+    }
+
     @Override
     public void writeToBuffer(ByteBuffer buffer) {
         buffer.put(value);
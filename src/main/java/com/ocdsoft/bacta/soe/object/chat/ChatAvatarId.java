@@ -73,14 +73,58 @@ public final class ChatAvatarId implements ByteBufferWritable {
      * @throws InvalidChatAvatarIdException if there are not enough tokens to parse.
      */
     public ChatAvatarId(final String fullpath) throws InvalidChatAvatarIdException {
-        String[] parts = fullpath.split("@")[0].split("\\.");
+        int end = fullpath.indexOf('@');
+        if (end == -1)
+            end = fullpath.length();
 
-        if (parts.length < 3)
+        final int first = fullpath.indexOf('.');
+        final int second = first != -1 ? fullpath.indexOf('.', first + 1) : -1;
+
+        if (first == -1 || second == -1 || second >= end)
             throw new InvalidChatAvatarIdException("The ChatAvatarId '" + fullpath + "' did not have enough tokens.");
 
-        this.gameCode = parts[0];
-        this.cluster = parts[1];
-        this.name = parts[2].split(" ")[0]; //We only want the first token.
+        int nameEnd = end;
+        for (int i = second + 1; i < end; ++i) {
+            final char c = fullpath.charAt(i);
+            if (c == '.' || c == ' ') { //We only want the first token.
+                nameEnd = i;
+                break;
+            }
+        }
+
+        this.gameCode = fullpath.substring(0, first);
+        this.cluster = fullpath.substring(first + 1, second);
+        this.name = fullpath.substring(second + 1, nameEnd);
+    }
+
+    /**
+     * Avatar ids are equal when all three components match, ignoring case.
+     */
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o)
+            return true;
+
+        if (!(o instanceof ChatAvatarId))
+            return false;
+
+        final ChatAvatarId other = (ChatAvatarId) o;
+        return name.equalsIgnoreCase(other.name)
+                && cluster.equalsIgnoreCase(other.cluster)
+                && gameCode.equalsIgnoreCase(other.gameCode);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * lowerHash(gameCode) + lowerHash(cluster)) + lowerHash(name);
+    }
+
+    private static int lowerHash(final String value) {
+        int hash = 0;
+        for (int i = 0; i < value.length(); ++i) {
+            hash = 31 * hash + Character.toLowerCase(value.charAt(i));
+        }
+        return hash;
     }
 
     /**
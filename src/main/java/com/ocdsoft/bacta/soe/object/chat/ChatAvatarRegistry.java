@@ -0,0 +1,366 @@
+package com.ocdsoft.bacta.soe.object.chat;
+
+import com.google.inject.Singleton;
+import com.ocdsoft.bacta.engine.utils.BufferUtil;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Interns chat avatar identities, the (gameCode, cluster, name) tuple, into compact int ids so rooms, friend lists
+ * and routing can work on ints. Names are compared case-insensitively, and the spelling first seen is kept for the
+ * wire.
+ *
+ * Lookups do not lock. {@link #find(ByteBuffer)} and {@link #intern(ByteBuffer)} hash and compare an avatar id
+ * straight from an incoming buffer, so a known avatar is resolved without creating any strings.
+ *
+ * Only avatars of the server itself should be interned. Names sent by clients, such as the target of a ban or an
+ * invite, are looked up with {@link #find(String, String, String)} so they cannot grow the registry. An id given
+ * back with {@link #release(int)} is handed out again to the next new avatar.
+ */
+@Singleton
+public final class ChatAvatarRegistry {
+
+    public static final int NONE = -1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * Three empty strings: game code, cluster and name
+     */
+    private static final byte[] EMPTY_WIRE = new byte[6];
+
+    private volatile Table table = new Table(INITIAL_CAPACITY);
+
+    private final TIntArrayList freeIds = new TIntArrayList();
+    private int count;
+
+    /**
+     * @return The id of the avatar, registering it if it is new
+     */
+    public int intern(final String gameCode, final String cluster, final String name) {
+        final byte[] key = key(gameCode, cluster, name);
+        final int hash = hash(key, 0, key.length);
+
+        final int id = table.find(hash, key);
+        if (id != NONE) {
+            return id;
+        }
+
+        return add(hash, key, new ChatAvatarId(gameCode, cluster, name));
+    }
+
+    public int intern(final com.ocdsoft.bacta.soe.chat.ChatAvatarId avatarId) {
+        return intern(avatarId.getGameCode(), avatarId.getCluster(), avatarId.getName());
+    }
+
+    public int intern(final ChatAvatarId avatarId) {
+        return intern(avatarId.getGameCode(), avatarId.getCluster(), avatarId.getName());
+    }
+
+    /**
+     * Reads an avatar id as written by {@link ChatAvatarId#writeToBuffer(ByteBuffer)}
+     * and returns its id, registering it if it is new. The buffer is advanced past the avatar id.
+     */
+    public int intern(final ByteBuffer buffer) {
+        final int start = buffer.position();
+        final int id = find(buffer);
+        if (id != NONE) {
+            return id;
+        }
+
+        buffer.position(start);
+        return intern(BufferUtil.getAscii(buffer), BufferUtil.getAscii(buffer), BufferUtil.getAscii(buffer));
+    }
+
+    /**
+     * Reads an avatar id from the buffer without creating strings. The buffer is advanced past the avatar id.
+     *
+     * @return The id of the avatar, or {@link #NONE} if it is not registered
+     */
+    public int find(final ByteBuffer buffer) {
+        final ByteBuffer source = buffer.order() == ByteOrder.LITTLE_ENDIAN ? buffer : buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final int start = buffer.position();
+
+        int hash = FNV_OFFSET;
+        int offset = start;
+        for (int part = 0; part < 3; ++part) {
+            final int length = source.getShort(offset) & 0xFFFF;
+            offset += 2;
+            if (part > 0) {
+                hash = (hash ^ SEPARATOR) * FNV_PRIME;
+            }
+            for (int i = 0; i < length; ++i) {
+                hash = (hash ^ lower(source.get(offset + i))) * FNV_PRIME;
+            }
+            offset += length;
+        }
+
+        buffer.position(offset);
+        return table.find(hash, source, start);
+    }
+
+    public int find(final String gameCode, final String cluster, final String name) {
+        final byte[] key = key(gameCode, cluster, name);
+        return table.find(hash(key, 0, key.length), key);
+    }
+
+    /**
+     * @return The avatar id registered under {@code id}, or null if the id is out of range or has been released
+     */
+    public ChatAvatarId get(final int id) {
+        final Entry entry = entry(id);
+        return entry != null ? entry.avatarId : null;
+    }
+
+    /**
+     * Writes the avatar id for the wire, in the same form as
+     * {@link ChatAvatarId#writeToBuffer(ByteBuffer)}. An id that is not registered is written as an empty avatar id.
+     */
+    public void write(final ByteBuffer buffer, final int id) {
+        final Entry entry = entry(id);
+        if (entry != null) {
+            buffer.put(entry.wire);
+        } else {
+            buffer.put(EMPTY_WIRE);
+        }
+    }
+
+    /**
+     * Ids may come from decoded packets, so they are checked against the table rather than trusted
+     */
+    private Entry entry(final int id) {
+        final Entry[] entries = table.entries;
+        return id >= 0 && id < entries.length ? entries[id] : null;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Forgets an avatar so its id can be given to another one. The caller must have dropped every reference to the
+     * id first.
+     * @return false if the id was not registered
+     */
+    public synchronized boolean release(final int id) {
+        final Table current = table;
+        if (id < 0 || id >= current.size || current.entries[id] == null) {
+            return false;
+        }
+
+        current.remove(id);
+        freeIds.add(id);
+        --count;
+        return true;
+    }
+
+    private synchronized int add(final int hash, final byte[] key, final ChatAvatarId avatarId) {
+        Table current = table;
+
+        final int existing = current.find(hash, key);
+        if (existing != NONE) {
+            return existing;
+        }
+
+        final int id = freeIds.isEmpty() ? current.size : freeIds.removeAt(freeIds.size() - 1);
+
+        if ((current.used + 1) * 2 > current.slots.length() || id >= current.entries.length) {
+            current = current.rebuild();
+            table = current;
+        }
+
+        current.add(id, new Entry(hash, key, avatarId));
+        ++count;
+        return id;
+    }
+
+    private static final int FNV_OFFSET = 0x811C9DC5;
+    private static final int FNV_PRIME = 0x01000193;
+    private static final byte SEPARATOR = 0;
+
+    private static int lower(final byte value) {
+        return value >= 'A' && value <= 'Z' ? value + ('a' - 'A') : value & 0xFF;
+    }
+
+    private static byte[] key(final String gameCode, final String cluster, final String name) {
+        final byte[] key = new byte[gameCode.length() + cluster.length() + name.length() + 2];
+        int offset = 0;
+        offset = copyLower(gameCode, key, offset);
+        key[offset++] = SEPARATOR;
+        offset = copyLower(cluster, key, offset);
+        key[offset++] = SEPARATOR;
+        copyLower(name, key, offset);
+        return key;
+    }
+
+    private static int copyLower(final String value, final byte[] target, int offset) {
+        for (int i = 0; i < value.length(); ++i) {
+            target[offset++] = (byte) lower((byte) value.charAt(i));
+        }
+        return offset;
+    }
+
+    private static int hash(final byte[] key, final int from, final int to) {
+        int hash = FNV_OFFSET;
+        for (int i = from; i < to; ++i) {
+            hash = (hash ^ (key[i] & 0xFF)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static final class Entry {
+        private final int hash;
+        private final byte[] key;
+        private final byte[] wire;
+        private final ChatAvatarId avatarId;
+
+        private Entry(final int hash, final byte[] key, final ChatAvatarId avatarId) {
+            this.hash = hash;
+            this.key = key;
+            this.avatarId = avatarId;
+
+            final byte[] gameCode = avatarId.getGameCode().getBytes(StandardCharsets.ISO_8859_1);
+            final byte[] cluster = avatarId.getCluster().getBytes(StandardCharsets.ISO_8859_1);
+            final byte[] name = avatarId.getName().getBytes(StandardCharsets.ISO_8859_1);
+
+            final ByteBuffer buffer = ByteBuffer.allocate(6 + gameCode.length + cluster.length + name.length).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putShort((short) gameCode.length).put(gameCode);
+            buffer.putShort((short) cluster.length).put(cluster);
+            buffer.putShort((short) name.length).put(name);
+            this.wire = buffer.array();
+        }
+
+        /**
+         * Compares the key with an avatar id written in the buffer at {@code offset}
+         */
+        private boolean matches(final ByteBuffer buffer, int offset) {
+            int keyIndex = 0;
+            for (int part = 0; part < 3; ++part) {
+                final int length = buffer.getShort(offset) & 0xFFFF;
+                offset += 2;
+                if (part > 0) {
+                    if (keyIndex >= key.length || key[keyIndex++] != SEPARATOR) {
+                        return false;
+                    }
+                }
+                for (int i = 0; i < length; ++i) {
+                    if (keyIndex >= key.length || (key[keyIndex++] & 0xFF) != lower(buffer.get(offset + i))) {
+                        return false;
+                    }
+                }
+                offset += length;
+            }
+            return keyIndex == key.length;
+        }
+    }
+
+    /**
+     * Open addressed table of ids, slot value is id + 1. Entries are written before the slot that publishes them.
+     * A released id leaves a {@link #REMOVED} slot behind so probes carry on past it; rebuilding drops them.
+     */
+    private static final class Table {
+        private static final int REMOVED = -1;
+
+        private final AtomicIntegerArray slots;
+        private final Entry[] entries;
+        private final int mask;
+        private int size;
+        private int used;
+
+        private Table(final int capacity) {
+            this(capacity, new Entry[capacity / 2], 0);
+        }
+
+        private Table(final int capacity, final Entry[] entries, final int size) {
+            this.slots = new AtomicIntegerArray(capacity);
+            this.entries = entries;
+            this.mask = capacity - 1;
+            this.size = size;
+        }
+
+        private int find(final int hash, final byte[] key) {
+            for (int index = hash & mask; ; index = (index + 1) & mask) {
+                final int slot = slots.get(index);
+                if (slot == 0) {
+                    return NONE;
+                }
+                if (slot == REMOVED) {
+                    continue;
+                }
+                final Entry entry = entries[slot - 1];
+                if (entry != null && entry.hash == hash && Arrays.equals(entry.key, key)) {
+                    return slot - 1;
+                }
+            }
+        }
+
+        private int find(final int hash, final ByteBuffer buffer, final int offset) {
+            for (int index = hash & mask; ; index = (index + 1) & mask) {
+                final int slot = slots.get(index);
+                if (slot == 0) {
+                    return NONE;
+                }
+                if (slot == REMOVED) {
+                    continue;
+                }
+                final Entry entry = entries[slot - 1];
+                if (entry != null && entry.hash == hash && entry.matches(buffer, offset)) {
+                    return slot - 1;
+                }
+            }
+        }
+
+        private void add(final int id, final Entry entry) {
+            entries[id] = entry;
+            size = Math.max(size, id + 1);
+            insert(entry.hash, id);
+        }
+
+        private void insert(final int hash, final int id) {
+            int index = hash & mask;
+            while (slots.get(index) != 0) {
+                index = (index + 1) & mask;
+            }
+            slots.set(index, id + 1);
+            ++used;
+        }
+
+        private void remove(final int id) {
+            final Entry entry = entries[id];
+            for (int index = entry.hash & mask; ; index = (index + 1) & mask) {
+                if (slots.get(index) == id + 1) {
+                    slots.set(index, REMOVED);
+                    break;
+                }
+            }
+            entries[id] = null;
+        }
+
+        /**
+         * Copies the live entries into a new table, twice as large unless most of the slots were only removed ones
+         */
+        private Table rebuild() {
+            int live = 0;
+            for (int id = 0; id < size; ++id) {
+                if (entries[id] != null) {
+                    ++live;
+                }
+            }
+
+            final int capacity = (live + 1) * 4 > slots.length() ? slots.length() * 2 : slots.length();
+            final Entry[] copied = Arrays.copyOf(entries, capacity / 2);
+            final Table table = new Table(capacity, copied, size);
+            for (int id = 0; id < size; ++id) {
+                if (copied[id] != null) {
+                    table.insert(copied[id].hash, id);
+                }
+            }
+            return table;
+        }
+    }
+}
@@ -10,12 +10,17 @@ import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
-import java.util.Collections;
-import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * Registry of the galaxies known to this server.
+ *
+ * Entries are indexed by id and by equality, so entries must implement hashCode consistently with equals.
+ * Readers get an immutable sorted snapshot that is swapped on every change and never lock. Changes are persisted
+ * through the {@link PersistenceWriter}, which coalesces a burst of status updates into one write.
+ * Every change also bumps a version number that caches of data derived from the entries can check.
+ *
  * Created by kburkhardt on 1/18/15.
  */
 @Singleton
@@ -24,14 +29,24 @@ public class ClusterService<T extends ClusterEntryItem> {
     private static Logger logger = LoggerFactory.getLogger(ClusterService.class);
 
     private transient final ConnectionDatabaseConnector dbConnector;
-    private transient final Set<T> clusterEntrySet;
+    private transient final PersistenceWriter persistenceWriter;
     private transient final Constructor<T> clusterEntryConstructor;
 
+    private transient final Map<Integer, T> entriesById;
+    private transient final Map<T, T> entriesByKey;
+    private transient volatile SortedSet<T> snapshot;
+    private transient volatile long version;
+
+    private transient final Object writeLock = new Object();
+
     @Inject
-    public ClusterService(ConnectionDatabaseConnector dbConnector, T clusterEntry) throws Exception {
+    public ClusterService(ConnectionDatabaseConnector dbConnector, PersistenceWriter persistenceWriter, T clusterEntry) throws Exception {
 
-        this.clusterEntrySet = Collections.synchronizedSortedSet(new TreeSet<T>());
+        this.entriesById = new ConcurrentHashMap<>();
+        this.entriesByKey = new ConcurrentHashMap<>();
+        this.snapshot = Collections.unmodifiableSortedSet(new TreeSet<T>());
         this.dbConnector = dbConnector;
+        this.persistenceWriter = persistenceWriter;
         this.clusterEntryConstructor = (Constructor<T>) clusterEntry.getClass().getConstructor(Map.class);
 
         loadData();
@@ -43,10 +58,14 @@ public class ClusterService<T extends ClusterEntryItem> {
             Set<Map<String, Object>> servers = dbConnector.getObject("ClusterSet", Set.class);
 
             if (servers != null) {
-                for (Map<String, Object> clusterInfoMap : servers) {
-                    clusterInfoMap.put("status", ServerStatus.DOWN);
-                    T clusterInfo = clusterEntryConstructor.newInstance(clusterInfoMap);
-                    clusterEntrySet.add(clusterInfo);
+                synchronized (writeLock) {
+                    for (Map<String, Object> clusterInfoMap : servers) {
+                        clusterInfoMap.put("status", ServerStatus.DOWN);
+                        T clusterInfo = clusterEntryConstructor.newInstance(clusterInfoMap);
+                        entriesById.put(clusterInfo.getId(), clusterInfo);
+                        entriesByKey.put(clusterInfo, clusterInfo);
+                    }
+                    publish();
                 }
             }
         } catch(NullPointerException e) {
@@ -56,45 +75,74 @@ public class ClusterService<T extends ClusterEntryItem> {
 
     public T updateClusterInfo(T incomingClusterEntry) {
 
-        for(T clusterEntry : clusterEntrySet) {
-            if(clusterEntry.equals(incomingClusterEntry)) {
-                clusterEntrySet.remove(clusterEntry);
+        synchronized (writeLock) {
+
+            T clusterEntry = entriesByKey.remove(incomingClusterEntry);
+            if (clusterEntry != null) {
                 incomingClusterEntry.setId(clusterEntry.getId());
                 logger.debug("Updating cluster entry: " + incomingClusterEntry);
-                clusterEntrySet.add(incomingClusterEntry);
-                update();
+                entriesByKey.put(incomingClusterEntry, incomingClusterEntry);
+                entriesById.put(incomingClusterEntry.getId(), incomingClusterEntry);
+                changed();
                 return incomingClusterEntry;
             }
-        }
 
-        int incomingClusterId = incomingClusterEntry.getId();
-        for (T clusterEntry : clusterEntrySet) {
-            if (clusterEntry.getId() == incomingClusterId) {
+            clusterEntry = entriesById.get(incomingClusterEntry.getId());
+            if (clusterEntry != null) {
                 logger.error("Server ID already in use: Existing=" + clusterEntry + " Incoming=" + incomingClusterEntry);
                 return null;
             }
-        }
 
+            createNewClusterEntry(incomingClusterEntry);
+        }
 
-        createNewClusterEntry(incomingClusterEntry);
-        
         return incomingClusterEntry;
     }
 
     private void createNewClusterEntry(T incomingClusterEntry) {
         int clusterId = dbConnector.nextClusterId();
         incomingClusterEntry.setId(clusterId);
-        clusterEntrySet.add(incomingClusterEntry);
+        entriesById.put(clusterId, incomingClusterEntry);
+        entriesByKey.put(incomingClusterEntry, incomingClusterEntry);
         logger.debug("Created new cluster entry: " + incomingClusterEntry);
-        update();
+        changed();
     }
 
+    /**
+     * @return Immutable snapshot of the entries, sorted
+     */
     public Set<T> getClusterEntries() {
-        return clusterEntrySet;
+        return snapshot;
+    }
+
+    /**
+     * @return Number that changes whenever the entries do, read it before {@link #getClusterEntries()} to label
+     * anything derived from the snapshot
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public T getClusterEntry(int id) {
+        return entriesById.get(id);
+    }
+
+    private void changed() {
+        publish();
+        if (!persistenceWriter.write("ClusterSet", snapshot)) {
+            // The write-behind queue is full. Cluster changes are rare, so store this one directly rather than lose it.
+            try {
+                dbConnector.updateObject("ClusterSet", snapshot);
+            } catch (Exception e) {
+                logger.error("Unable to persist cluster entries", e);
+            }
+        }
     }
 
-    private void update() {
-        dbConnector.updateObject("ClusterSet", clusterEntrySet);
+    private void publish() {
+        snapshot = Collections.unmodifiableSortedSet(new TreeSet<>(entriesById.values()));
+        // After the snapshot, so a reader never pairs a new version with an old snapshot
+        version++;
     }
 
 }
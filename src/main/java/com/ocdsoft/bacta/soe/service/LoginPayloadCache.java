@@ -0,0 +1,56 @@
+package com.ocdsoft.bacta.soe.service;
+
+import com.google.inject.Singleton;
+import com.ocdsoft.bacta.soe.message.GameNetworkMessage;
+import com.ocdsoft.bacta.soe.object.ClusterEntryItem;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Serialized login payloads, reused until the data behind them changes.
+ *
+ * Cluster payloads are rebuilt when {@link ClusterService#getVersion()} moves. The returned buffers are duplicates
+ * of the cached bytes and can be passed straight to
+ * {@link com.ocdsoft.bacta.soe.connection.SoeUdpConnection#sendSerialized(short, ByteBuffer)}.
+ *
+ * Character lists are not cached: nothing tells the cache when a {@link com.ocdsoft.bacta.soe.object.account.SoeAccount}
+ * or one of its characters changes.
+ */
+@Singleton
+public class LoginPayloadCache {
+
+    private final Map<String, CachedPayload> clusterPayloads = new ConcurrentHashMap<>();
+
+    /**
+     * @param name Identifies the payload, usually the message class name
+     * @param factory Builds the message from the current cluster entries
+     */
+    public <T extends ClusterEntryItem> ByteBuffer getClusterPayload(final ClusterService<T> clusterService,
+                                                                     final String name,
+                                                                     final Function<Set<T>, ? extends GameNetworkMessage> factory) {
+
+        long version = clusterService.getVersion();
+
+        CachedPayload cached = clusterPayloads.get(name);
+        if (cached == null || cached.version != version) {
+            cached = new CachedPayload(version, factory.apply(clusterService.getClusterEntries()).serialize());
+            clusterPayloads.put(name, cached);
+        }
+
+        return cached.payload.duplicate();
+    }
+
+    private static final class CachedPayload {
+        private final long version;
+        private final ByteBuffer payload;
+
+        private CachedPayload(final long version, final ByteBuffer payload) {
+            this.version = version;
+            this.payload = payload;
+        }
+    }
+}
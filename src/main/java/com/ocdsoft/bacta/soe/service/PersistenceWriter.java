@@ -0,0 +1,239 @@
+package com.ocdsoft.bacta.soe.service;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.ocdsoft.bacta.engine.data.ConnectionDatabaseConnector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-behind stage in front of {@link ConnectionDatabaseConnector#updateObject}, so callers on network and
+ * router threads never wait on the database.
+ *
+ * Writes are coalesced by key: a value replaced before it was written is never written. At most
+ * {@link #MAX_PENDING} keys wait at once; a write for a new key beyond that is rejected and counted rather than
+ * blocking. Pending keys are written in batches of {@link #BATCH_SIZE} on a dedicated thread, starting
+ * {@link #FLUSH_DELAY_MS} after the first write so bursts coalesce. A failed write is retried unless a newer value
+ * has arrived. Writers that have not been shut down are flushed by one JVM shutdown hook shared by all instances.
+ */
+@Singleton
+public class PersistenceWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(PersistenceWriter.class);
+
+    public static final int MAX_PENDING = 10000;
+    public static final int BATCH_SIZE = 100;
+    public static final long FLUSH_DELAY_MS = 250;
+    private static final long RETRY_DELAY_MS = 5000;
+
+    private static final Set<PersistenceWriter> running = ConcurrentHashMap.newKeySet();
+    private static final AtomicBoolean shutdownHookAdded = new AtomicBoolean();
+
+    private final ConnectionDatabaseConnector dbConnector;
+
+    private final Map<String, Object> pending = new ConcurrentHashMap<>();
+    private final Queue<String> order = new ConcurrentLinkedQueue<>();
+    /** Keys waiting to be written plus writes still in progress, so a write only stops counting once stored */
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final ScheduledExecutorService executor;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private volatile long lastWriteTime;
+
+    @Inject
+    public PersistenceWriter(final ConnectionDatabaseConnector dbConnector) {
+        this.dbConnector = dbConnector;
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Persistence Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        running.add(this);
+        if (shutdownHookAdded.compareAndSet(false, true)) {
+            Runtime.getRuntime().addShutdownHook(new Thread(PersistenceWriter::shutdownAll, "Persistence Writer Shutdown"));
+        }
+    }
+
+    private static void shutdownAll() {
+        for (PersistenceWriter writer : running) {
+            writer.shutdown();
+        }
+    }
+
+    /**
+     * Queues {@code value} to be stored under {@code key}, replacing any value still waiting for that key
+     * @return false if the queue is full and the write was dropped
+     */
+    public boolean write(final String key, final Object value) {
+
+        submitted.increment();
+
+        if (pending.replace(key, value) != null) {
+            coalesced.increment();
+            return true;
+        }
+
+        if (pendingCount.incrementAndGet() > MAX_PENDING) {
+            pendingCount.decrementAndGet();
+            rejected.increment();
+            logger.error("Persistence queue full, dropped write of {}", key);
+            return false;
+        }
+
+        if (pending.put(key, value) != null) {
+            // Raced with another new write of the same key
+            pendingCount.decrementAndGet();
+            coalesced.increment();
+        } else {
+            order.offer(key);
+        }
+
+        schedule(FLUSH_DELAY_MS);
+        return true;
+    }
+
+    /**
+     * Writes everything pending on the calling thread, stopping at the first failure
+     */
+    public void flush() {
+        long failures = failed.sum();
+        while (drain() > 0 && failed.sum() == failures) {
+            // keep going until empty
+        }
+    }
+
+    /**
+     * Stops the writer thread and writes everything still pending
+     */
+    public void shutdown() {
+        running.remove(this);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        logger.info("Persistence writer stopped: {}", this);
+    }
+
+    /**
+     * @return true when every accepted write has been stored, none are queued or being written
+     */
+    public boolean isDurable() {
+        return pendingCount.get() == 0;
+    }
+
+    /**
+     * @return Writes queued or being written
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getWritten() {
+        return written.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getLastWriteTime() {
+        return lastWriteTime;
+    }
+
+    private void schedule(final long delay) {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.schedule(this::run, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shutting down, the final flush picks it up
+                scheduled.set(false);
+            }
+        }
+    }
+
+    private void run() {
+        scheduled.set(false);
+
+        int count = drain();
+        if (count == BATCH_SIZE) {
+            schedule(0);
+        }
+    }
+
+    /**
+     * Writes up to one batch of pending keys
+     * @return Number of keys taken from the queue
+     */
+    private synchronized int drain() {
+
+        int count = 0;
+        String key;
+        while (count < BATCH_SIZE && (key = order.poll()) != null) {
+            count++;
+
+            Object value = pending.remove(key);
+            if (value == null) {
+                continue;
+            }
+
+            try {
+                dbConnector.updateObject(key, value);
+                written.increment();
+                lastWriteTime = System.currentTimeMillis();
+                pendingCount.decrementAndGet();
+            } catch (Exception e) {
+                failed.increment();
+                logger.error("Unable to persist " + key + ", will retry", e);
+
+                if (pending.putIfAbsent(key, value) == null) {
+                    // Still counted, queued again
+                    order.offer(key);
+                } else {
+                    // A newer value arrived while writing and is counted on its own
+                    pendingCount.decrementAndGet();
+                }
+                scheduled.set(false);
+                schedule(RETRY_DELAY_MS);
+                break;
+            }
+        }
+
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "submitted=" + getSubmitted() + " coalesced=" + getCoalesced() + " rejected=" + getRejected() +
+                " written=" + getWritten() + " failed=" + getFailed() + " pending=" + getPendingCount();
+    }
+}
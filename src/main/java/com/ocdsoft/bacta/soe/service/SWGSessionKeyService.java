@@ -1,17 +1,119 @@
 package com.ocdsoft.bacta.soe.service;
 
 import com.google.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.util.Random;
+import java.security.SecureRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Hands out session keys and connection ids from a pool filled from {@link SecureRandom} on a background thread,
+ * so connect handling never waits on the entropy source.
+ *
+ * The pool is a ring written by the fill thread only; callers claim a slot by advancing the read index with a
+ * single CAS. A slot is read before it is claimed and is never overwritten until the read index has passed it,
+ * so every pooled key is handed out exactly once. When the pool is empty, keys come from
+ * {@link ThreadLocalRandom} and are counted as fallbacks.
+ */
 @Singleton
 public class SWGSessionKeyService implements SessionKeyService {
 
-	private final Random random = new Random();
-	
+	private static final Logger logger = LoggerFactory.getLogger(SWGSessionKeyService.class);
+
+	public static final int POOL_SIZE = 4096;
+	private static final int MASK = POOL_SIZE - 1;
+	private static final int LOW_WATER = POOL_SIZE / 2;
+	private static final long IDLE_PARK_NANOS = 100_000_000L;
+
+	private final AtomicIntegerArray pool = new AtomicIntegerArray(POOL_SIZE);
+	private final AtomicLong readIndex = new AtomicLong();
+	private final AtomicLong writeIndex = new AtomicLong();
+
+	private final LongAdder pooled = new LongAdder();
+	private final LongAdder fallbacks = new LongAdder();
+
+	private final Thread fillThread;
+
+	public SWGSessionKeyService() {
+		this(true);
+	}
+
+	/**
+	 * @param startFilling false to leave the pool empty, so every key is a fallback
+	 */
+	SWGSessionKeyService(final boolean startFilling) {
+		if (startFilling) {
+			fillThread = new Thread(this::fill, "Session Key Pool");
+			fillThread.setDaemon(true);
+			fillThread.start();
+		} else {
+			fillThread = null;
+		}
+	}
+
 	@Override
 	public int getNextKey() {
-		return random.nextInt();
+		long read;
+		int key;
+		do {
+			read = readIndex.get();
+			if (read >= writeIndex.get()) {
+				fallbacks.increment();
+				wakeFillThread();
+				return ThreadLocalRandom.current().nextInt();
+			}
+			key = pool.get((int) (read & MASK));
+		} while (!readIndex.compareAndSet(read, read + 1));
+
+		pooled.increment();
+
+		if (writeIndex.get() - read <= LOW_WATER) {
+			wakeFillThread();
+		}
+		return key;
+	}
+
+	private void wakeFillThread() {
+		if (fillThread != null) {
+			LockSupport.unpark(fillThread);
+		}
+	}
+
+	private void fill() {
+		final SecureRandom secureRandom = new SecureRandom();
+
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				long write = writeIndex.get();
+				while (write - readIndex.get() < POOL_SIZE) {
+					pool.set((int) (write & MASK), secureRandom.nextInt());
+					writeIndex.lazySet(++write);
+				}
+			} catch (Exception e) {
+				logger.error("Unable to fill session key pool", e);
+			}
+			LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+		}
+	}
+
+	/**
+	 * @return Keys currently waiting in the pool
+	 */
+	public int getAvailable() {
+		return (int) Math.max(0, writeIndex.get() - readIndex.get());
+	}
+
+	public long getPooled() {
+		return pooled.sum();
+	}
+
+	public long getFallbacks() {
+		return fallbacks.sum();
 	}
 
 }
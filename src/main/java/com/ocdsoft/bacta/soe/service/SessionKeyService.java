@@ -4,4 +4,11 @@ public interface SessionKeyService {
 
 	int getNextKey();
 
+	/**
+	 * @return Id for a connection this server opens to another peer
+	 */
+	default int getNextConnectionId() {
+		return getNextKey();
+	}
+
 }
@@ -0,0 +1,280 @@
+package com.ocdsoft.bacta.soe.service;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.ocdsoft.bacta.soe.connection.ConnectionRole;
+import com.ocdsoft.bacta.soe.connection.SoeUdpConnection;
+import com.ocdsoft.bacta.soe.io.udp.NetworkConfiguration;
+import com.ocdsoft.bacta.soe.message.TerminateReason;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the account binding, roles and session attachment of connections that were lost rather than closed, so a
+ * client reconnecting within {@link NetworkConfiguration#getSessionResumeGraceMs()} picks up where it left off
+ * instead of logging in again.
+ *
+ * The connection id a client sends in its Connect is chosen by the client and sent in the clear, so it proves
+ * nothing. A session is only kept if the server issued it a resume token with {@link #issueToken}, which the layer
+ * above hands to the client over the encrypted session, and it is only resumed by a client presenting that token from
+ * the host the session was lost on.
+ *
+ * Sessions are indexed by connection id and by account. A session is claimed by removing it from the connection id
+ * index, so it is resumed at most once, and a newer session for the same account replaces an older one.
+ */
+@Singleton
+public class SessionResumeService {
+
+    private static final Logger logger = LoggerFactory.getLogger(SessionResumeService.class);
+
+    private static final Set<TerminateReason> RESUMABLE = EnumSet.of(
+            TerminateReason.NONE,
+            TerminateReason.ICMPERROR,
+            TerminateReason.TIMEOUT,
+            TerminateReason.UNREACHABLE,
+            TerminateReason.UNACKTIMEOUT,
+            TerminateReason.NEWATTEMPT);
+
+    private final long graceMs;
+    private final int maxSessions;
+    private final SecureRandom tokenSource = new SecureRandom();
+
+    private final Map<Integer, ResumableSession> sessionsByConnectionId = new ConcurrentHashMap<>();
+    private final Map<Integer, ResumableSession> sessionsByAccount = new ConcurrentHashMap<>();
+    private volatile long nextPurge;
+
+    private final LongAdder stored = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    @Inject
+    public SessionResumeService(final NetworkConfiguration configuration) {
+        this(configuration.getSessionResumeGraceMs(), configuration.getMaxResumableSessions());
+    }
+
+    /**
+     * @param graceMs How long a lost session can be resumed, 0 disables resuming
+     */
+    public SessionResumeService(final long graceMs, final int maxSessions) {
+        this.graceMs = graceMs;
+        this.maxSessions = maxSessions;
+    }
+
+    public boolean isEnabled() {
+        return graceMs > 0;
+    }
+
+    /**
+     * Gives a connection the secret needed to resume its session. Call once the connection is authenticated and send
+     * the token to the client over the encrypted session.
+     * @return The token, or 0 if resuming is disabled
+     */
+    public long issueToken(final SoeUdpConnection connection) {
+
+        if (!isEnabled()) {
+            return 0;
+        }
+
+        long token;
+        do {
+            token = tokenSource.nextLong();
+        } while (token == 0);
+
+        connection.setResumeToken(token);
+        return token;
+    }
+
+    /**
+     * Keeps the session of a connection that is being removed, if it was issued a resume token, was bound to an
+     * account and did not end by choice
+     * @return true if the session can be resumed
+     */
+    public boolean store(final SoeUdpConnection connection) {
+
+        if (!isEnabled() || connection.getResumeToken() == 0 || !RESUMABLE.contains(connection.getTerminateReason())) {
+            return false;
+        }
+
+        if (connection.getAccountId() == 0 && connection.getSessionAttachment() == null) {
+            return false;
+        }
+
+        final long now = System.currentTimeMillis();
+        purge(now);
+
+        if (sessionsByConnectionId.size() >= maxSessions) {
+            dropped.increment();
+            logger.warn("Session resume cache full, dropped session of connection {}", connection.getId());
+            return false;
+        }
+
+        final ResumableSession session = new ResumableSession(connection, now + graceMs);
+
+        final ResumableSession replaced = sessionsByConnectionId.put(session.getConnectionId(), session);
+        if (replaced != null && replaced.getAccountId() != 0) {
+            sessionsByAccount.remove(replaced.getAccountId(), replaced);
+        }
+
+        if (session.getAccountId() != 0) {
+            final ResumableSession previous = sessionsByAccount.put(session.getAccountId(), session);
+            if (previous != null && previous != replaced) {
+                sessionsByConnectionId.remove(previous.getConnectionId(), previous);
+            }
+        }
+
+        stored.increment();
+        logger.debug("Stored session of connection {} account {} for {}ms", session.getConnectionId(), session.getAccountId(), graceMs);
+        return true;
+    }
+
+    /**
+     * Restores the session a client was using before it reconnected onto its new connection. Called by the layer
+     * above once the client has presented its token; the connection keeps the token for a later loss.
+     * @param connectionId Id of the lost connection
+     * @return false if there is no session for this connection id, token and host
+     */
+    public boolean resume(final SoeUdpConnection connection, final int connectionId, final long token) {
+
+        final ResumableSession session = resume(connectionId, token, connection.getRemoteAddress());
+        if (session == null) {
+            return false;
+        }
+
+        connection.restoreSession(session.getAccountId(), session.getAccountUsername(), session.getRoles(), session.getAttachment());
+        connection.setResumeToken(token);
+        logger.debug("Resumed session of account {} on connection {}", session.getAccountId(), connection.getId());
+        return true;
+    }
+
+    /**
+     * Claims the session a client was using before it reconnected
+     * @return The session, or null if there is none for this connection id, token and host
+     */
+    public ResumableSession resume(final int connectionId, final long token, final InetSocketAddress address) {
+
+        final ResumableSession session = sessionsByConnectionId.get(connectionId);
+        if (session == null || !session.matches(token, address)) {
+            return null;
+        }
+
+        return claim(session);
+    }
+
+    /**
+     * Claims the lost session of an account, for clients that reconnect with a new connection id
+     * @return The session, or null if the account has none for this token and host
+     */
+    public ResumableSession resumeAccount(final int accountId, final long token, final InetSocketAddress address) {
+
+        final ResumableSession session = sessionsByAccount.get(accountId);
+        if (session == null || !session.matches(token, address)) {
+            return null;
+        }
+
+        return claim(session);
+    }
+
+    private ResumableSession claim(final ResumableSession session) {
+
+        if (!sessionsByConnectionId.remove(session.getConnectionId(), session)) {
+            return null;
+        }
+
+        if (session.getAccountId() != 0) {
+            sessionsByAccount.remove(session.getAccountId(), session);
+        }
+
+        if (session.getExpires() < System.currentTimeMillis()) {
+            expired.increment();
+            return null;
+        }
+
+        resumed.increment();
+        return session;
+    }
+
+    private void purge(final long now) {
+
+        if (now < nextPurge && sessionsByConnectionId.size() < maxSessions) {
+            return;
+        }
+        nextPurge = now + graceMs;
+
+        final Iterator<ResumableSession> iterator = sessionsByConnectionId.values().iterator();
+        while (iterator.hasNext()) {
+            final ResumableSession session = iterator.next();
+            if (session.getExpires() < now) {
+                iterator.remove();
+                if (session.getAccountId() != 0) {
+                    sessionsByAccount.remove(session.getAccountId(), session);
+                }
+                expired.increment();
+            }
+        }
+    }
+
+    public int getSessionCount() {
+        return sessionsByConnectionId.size();
+    }
+
+    public long getStored() {
+        return stored.sum();
+    }
+
+    public long getResumed() {
+        return resumed.sum();
+    }
+
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * What is restored onto a new {@link SoeUdpConnection} when a session resumes
+     */
+    public static final class ResumableSession {
+
+        @Getter private final int connectionId;
+        @Getter private final int accountId;
+        @Getter private final String accountUsername;
+        @Getter private final List<ConnectionRole> roles;
+        @Getter private final Object attachment;
+        @Getter private final InetAddress host;
+        @Getter private final long expires;
+        private final long token;
+
+        private ResumableSession(final SoeUdpConnection connection, final long expires) {
+            this.connectionId = connection.getId();
+            this.accountId = connection.getAccountId();
+            this.accountUsername = connection.getAccountUsername();
+            this.roles = Collections.unmodifiableList(new ArrayList<>(connection.getRoles()));
+            this.attachment = connection.getSessionAttachment();
+            this.host = connection.getRemoteAddress().getAddress();
+            this.expires = expires;
+            this.token = connection.getResumeToken();
+        }
+
+        private boolean matches(final long token, final InetSocketAddress address) {
+            return token != 0 && token == this.token && host.equals(address.getAddress());
+        }
+    }
+}
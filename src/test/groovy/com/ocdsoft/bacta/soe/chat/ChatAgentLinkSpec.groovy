@@ -0,0 +1,201 @@
+package com.ocdsoft.bacta.soe.chat
+
+import com.ocdsoft.bacta.engine.conf.ini.IniBactaConfiguration
+import com.ocdsoft.bacta.engine.network.client.ConnectionState
+import com.ocdsoft.bacta.soe.chat.message.ChatAgentRequests
+import com.ocdsoft.bacta.soe.chat.message.ChatAgentResponses
+import com.ocdsoft.bacta.soe.chat.message.ChatOnSendRoomMessage
+import com.ocdsoft.bacta.soe.chat.message.ChatQueryRoom
+import com.ocdsoft.bacta.soe.connection.SoeUdpConnection
+import com.ocdsoft.bacta.soe.io.udp.NetworkConfiguration
+import com.ocdsoft.bacta.soe.message.TerminateReason
+import com.ocdsoft.bacta.soe.object.chat.ChatAvatarId
+import com.ocdsoft.bacta.soe.service.OutgoingConnectionService
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.util.function.LongSupplier
+
+class ChatAgentLinkSpec extends Specification {
+
+    @Shared
+    NetworkConfiguration networkConfig
+
+    def setupSpec() {
+        networkConfig = new NetworkConfiguration(new IniBactaConfiguration())
+    }
+
+    def "RequestsArePipelinedAndReplayedAfterReconnect"() {
+
+        setup:
+        def connections = []
+        def connectionService = { InetSocketAddress address, callback ->
+            def connection = new SoeUdpConnection(networkConfig, address, ConnectionState.LINKDEAD, callback)
+            connection.id = connections.size() + 1
+            connections << connection
+            return connection
+        } as OutgoingConnectionService
+        def agent = new ChatServerAgentService(connectionService, networkConfig, new InetSocketAddress("127.0.0.1", 44499), 0, 4096, 0, 30000, 4096)
+
+        when:
+        def futures = (1..3).collect { agent.request(avatar("avatar" + it), new ChatQueryRoom("SWG.bacta.Planet", it)) }
+        agent.flush()
+        connections[0].confirm()
+        agent.flush()
+
+        then:
+        agent.batches == 1
+        agent.inFlightCount == 3
+
+        when:
+        connections[0].state = ConnectionState.DISCONNECTED
+        agent.flush()
+        connections[1].confirm()
+        agent.flush()
+        agent.onResponses(new ChatAgentResponses([new ChatAgentResponses.Response(2, ChatResult.SUCCESS.value, null)]))
+
+        then:
+        agent.reconnects == 1
+        agent.replayed == 3
+        agent.batches == 2
+        futures[1].isDone()
+        !futures[0].isDone()
+        agent.inFlightCount == 2
+    }
+
+    def "StaleRequestsTimeOutAndExcessRequestsAreRefused"() {
+
+        setup:
+        def connectionService = { InetSocketAddress address, callback -> null } as OutgoingConnectionService
+        def agent = new ChatServerAgentService(connectionService, networkConfig, new InetSocketAddress("127.0.0.1", 44499), 0, 4096, 0, 0, 2)
+
+        when:
+        def futures = (1..3).collect { agent.request(avatar("avatar" + it), new ChatQueryRoom("SWG.bacta.Planet", it)) }
+
+        then:
+        agent.rejected == 1
+        agent.inFlightCount == 2
+        futures[2].get().result == ChatResult.ROOM_UNKNOWN_FAILURE.value
+
+        when:
+        agent.flush()
+        def next = agent.request(avatar("avatar4"), new ChatQueryRoom("SWG.bacta.Planet", 4))
+
+        then:
+        agent.timedOut == 2
+        futures[0..1].every { it.get().result == ChatResult.TIMEOUT.value }
+        !next.isDone()
+        agent.inFlightCount == 1
+    }
+
+    def "SequencesStayWithinTheReplayWindow"() {
+
+        setup:
+        def connectionService = { InetSocketAddress address, callback -> null } as OutgoingConnectionService
+        def window = ChatAgentLinkService.REPLAY_WINDOW
+        def agent = new ChatServerAgentService(connectionService, networkConfig, new InetSocketAddress("127.0.0.1", 44499), 0, 4096, 0, 30000, window)
+        def oldest = agent.request(avatar("oldest"), new ChatQueryRoom("SWG.bacta.Planet", 0))
+        (2..window).each { agent.request(avatar("avatar"), new ChatQueryRoom("SWG.bacta.Planet", it)) }
+        agent.onResponses(new ChatAgentResponses((2..window).collect { new ChatAgentResponses.Response(it, ChatResult.SUCCESS.value, null) }))
+
+        when:
+        def blocked = agent.request(avatar("blocked"), new ChatQueryRoom("SWG.bacta.Planet", 1))
+        agent.onResponses(new ChatAgentResponses([new ChatAgentResponses.Response(1, ChatResult.SUCCESS.value, null)]))
+        def next = agent.request(avatar("next"), new ChatQueryRoom("SWG.bacta.Planet", 2))
+
+        then:
+        oldest.isDone()
+        blocked.get().result == ChatResult.ROOM_UNKNOWN_FAILURE.value
+        !next.isDone()
+        agent.rejected == 1
+        agent.inFlightCount == 1
+    }
+
+    def "UnconfirmedConnectionIsTerminatedOnReconnect"() {
+
+        setup:
+        def connections = []
+        def connectionService = { InetSocketAddress address, callback ->
+            def connection = new SoeUdpConnection(networkConfig, address, ConnectionState.LINKDEAD, callback)
+            connection.id = connections.size() + 1
+            connections << connection
+            return connection
+        } as OutgoingConnectionService
+        def agent = new ChatServerAgentService(connectionService, networkConfig, new InetSocketAddress("127.0.0.1", 44499), 0, 4096, 0, 30000, 4096)
+
+        when:
+        agent.flush()
+        agent.flush()
+
+        then:
+        connections.size() == 2
+        connections[0].state == ConnectionState.DISCONNECTED
+        connections[0].terminateReason == TerminateReason.NEWATTEMPT
+        connections[1].state == ConnectionState.LINKDEAD
+    }
+
+    def "IdleLinksAreDropped"() {
+
+        setup:
+        def now = 0L
+        def link = new ChatAgentLinkService(1000, 2, { now } as LongSupplier)
+
+        when:
+        link.handle(parse(new ChatAgentRequests(1, [request(1)])))
+        now = 500
+        link.handle(parse(new ChatAgentRequests(2, [request(1)])))
+        now = 1200
+        link.handle(parse(new ChatAgentRequests(3, [request(1)])))
+
+        then:
+        link.linksDropped == 1
+        link.linkCount == 2
+
+        when:
+        now = 1300
+        link.handle(parse(new ChatAgentRequests(4, [request(1)])))
+
+        then:
+        link.linksDropped == 2
+        link.linkCount == 2
+    }
+
+    def "ReplayedRequestsAreAnsweredOnce"() {
+
+        setup:
+        def link = new ChatAgentLinkService()
+        def calls = 0
+        link.register(ChatQueryRoom, { avatar, message ->
+            def query = new ChatQueryRoom(message)
+            calls++
+            return new ChatOnSendRoomMessage(0, query.sequence)
+        } as ChatAgentRequestHandler)
+
+        when:
+        def first = link.handle(parse(new ChatAgentRequests(9, [request(1), request(2)])))
+        def second = link.handle(parse(new ChatAgentRequests(9, [request(2), request(3)])))
+
+        then:
+        calls == 3
+        link.handled == 3
+        link.replayed == 1
+        first.responses*.sequence == [1, 2]
+        second.responses*.sequence == [2, 3]
+        second.responses.every { it.result == ChatResult.SUCCESS.value && it.hasMessage() }
+    }
+
+    private static ChatAgentRequests.Request request(int sequence) {
+        return new ChatAgentRequests.Request(sequence, avatar("avatar"), new ChatQueryRoom("SWG.bacta.Planet", sequence).serialize())
+    }
+
+    private static ChatAgentRequests parse(ChatAgentRequests requests) {
+        ByteBuffer buffer = requests.serialize()
+        buffer.position(6)
+        return new ChatAgentRequests(buffer)
+    }
+
+    private static ChatAvatarId avatar(String name) {
+        return new ChatAvatarId("SWG", "bacta", name)
+    }
+}
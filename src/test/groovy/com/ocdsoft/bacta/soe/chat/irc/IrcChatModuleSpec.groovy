@@ -0,0 +1,205 @@
+package com.ocdsoft.bacta.soe.chat.irc
+
+import com.ocdsoft.bacta.soe.chat.ChatAvatarId
+import com.ocdsoft.bacta.soe.chat.ChatResult
+import spock.lang.Specification
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+
+class IrcChatModuleSpec extends Specification {
+
+    def "AvatarsAreMultiplexedOverRelays"() {
+
+        setup:
+        def server = new FakeIrcServer(true)
+        def module = new IrcChatModule(server.address, 2, "relay", 5000, 100, 65536)
+        def received = new CopyOnWriteArrayList()
+        module.roomMessageListener = { room, sender, message -> received << [room, sender, message] } as IrcChatModule.RoomMessageListener
+        def avatars = (1..10).collect { new ChatAvatarId("SWG", "bacta", "avatar" + it) }
+
+        when:
+        def connected = avatars.collect { result(module.connect(it, "")) }
+        def entered = avatars.collect { result(module.enterRoom(it, "SWG.bacta.Planet")) }
+        def sent = result(module.sendToRoom(avatars[0], "SWG.bacta.Planet", "hello"))
+
+        then:
+        connected.every { it == ChatResult.SUCCESS }
+        entered.every { it == ChatResult.SUCCESS }
+        sent == ChatResult.SUCCESS
+        server.await { server.clients.size() == 2 }
+        server.await { server.lines.contains("PRIVMSG #swg.bacta.planet :<avatar1> hello") }
+        server.lines.count { it.startsWith("JOIN ") } <= 2
+
+        when:
+        server.send(":someone!user@host PRIVMSG #swg.bacta.planet :hi there")
+
+        then:
+        server.await { received.size() > 0 }
+        received == [["swg.bacta.planet", "someone", "hi there"]]
+
+        cleanup:
+        module?.close()
+        server?.close()
+    }
+
+    def "RelaysRejoinAfterReconnecting"() {
+
+        setup:
+        def server = new FakeIrcServer(true)
+        def module = new IrcChatModule(server.address, 1, "relay", 5000, 50, 65536)
+        def avatar = new ChatAvatarId("SWG", "bacta", "avatar")
+        def other = new ChatAvatarId("SWG", "bacta", "other")
+
+        when:
+        result(module.connect(avatar, ""))
+        result(module.enterRoom(avatar, "SWG.bacta.Planet"))
+        server.dropClients()
+
+        then:
+        server.await { server.lines.count { it == "JOIN #swg.bacta.planet" } == 2 }
+
+        when:
+        result(module.connect(other, ""))
+        result(module.enterRoom(other, "SWG.bacta.Planet"))
+
+        then:
+        result(module.sendToRoom(avatar, "SWG.bacta.Planet", "back")) == ChatResult.SUCCESS
+        server.await { server.lines.contains("PRIVMSG #swg.bacta.planet :<avatar> back") }
+        module.reconnects == 1
+
+        cleanup:
+        module?.close()
+        server?.close()
+    }
+
+    def "SilentServerTimesOutWithoutBlocking"() {
+
+        setup:
+        def server = new FakeIrcServer(false)
+        def module = new IrcChatModule(server.address, 1, "relay", 200, 1000, 65536)
+
+        when:
+        def start = System.nanoTime()
+        def stage = module.connect(new ChatAvatarId("SWG", "bacta", "avatar"), "")
+        def callMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+
+        then:
+        callMs < 100
+        result(stage) == ChatResult.TIMEOUT
+
+        cleanup:
+        module?.close()
+        server?.close()
+    }
+
+    def "UnknownAvatarsAreRefused"() {
+
+        setup:
+        def server = new FakeIrcServer(true)
+        def module = new IrcChatModule(server.address, 1, "relay", 5000, 100, 65536)
+        def avatar = new ChatAvatarId("SWG", "bacta", "avatar")
+
+        expect:
+        result(module.sendToRoom(avatar, "SWG.bacta.Planet", "hello")) == ChatResult.SRC_AVATAR_DOESNT_EXIST
+        result(module.connect(avatar, "")) == ChatResult.SUCCESS
+        result(module.sendToRoom(avatar, "SWG.bacta.Planet", "hello")) == ChatResult.ROOM_SRC_NOT_IN_ROOM
+        result(module.connect(avatar, "")) == ChatResult.DUPLICATE_LOGIN
+
+        cleanup:
+        module?.close()
+        server?.close()
+    }
+
+    private static ChatResult result(stage) {
+        return stage.toCompletableFuture().get(5, TimeUnit.SECONDS)
+    }
+}
+
+/**
+ * Just enough of an IRC server to register clients and echo their JOINs, or to never answer at all
+ */
+class FakeIrcServer {
+
+    final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())
+    final List<String> lines = new CopyOnWriteArrayList<String>()
+    final List<Socket> clients = new CopyOnWriteArrayList<Socket>()
+    final List<Writer> writers = new CopyOnWriteArrayList<Writer>()
+
+    FakeIrcServer(final boolean answer) {
+        def thread = new Thread({
+            try {
+                while (true) {
+                    def socket = serverSocket.accept()
+                    clients << socket
+                    if (answer) {
+                        def client = new Thread({ serve(socket) } as Runnable)
+                        client.daemon = true
+                        client.start()
+                    }
+                }
+            } catch (IOException ignored) {
+            }
+        } as Runnable)
+        thread.daemon = true
+        thread.start()
+    }
+
+    InetSocketAddress getAddress() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.localPort)
+    }
+
+    void send(final String line) {
+        writers.each { writer ->
+            synchronized (writer) {
+                writer.write(line + "\r\n")
+                writer.flush()
+            }
+        }
+    }
+
+    void dropClients() {
+        def dropped = new ArrayList<Socket>(clients)
+        clients.clear()
+        writers.clear()
+        dropped.each { it.close() }
+    }
+
+    boolean await(final Closure condition) {
+        def deadline = System.currentTimeMillis() + 5000
+        while (!condition() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        return condition()
+    }
+
+    void close() {
+        serverSocket.close()
+        dropClients()
+    }
+
+    private void serve(final Socket socket) {
+        def nick = null
+        try {
+            def reader = new BufferedReader(new InputStreamReader(socket.inputStream, "UTF-8"))
+            def writer = new OutputStreamWriter(socket.outputStream, "UTF-8")
+            writers << writer
+
+            def line
+            while ((line = reader.readLine()) != null) {
+                lines << line
+                synchronized (writer) {
+                    if (line.startsWith("NICK ")) {
+                        nick = line.substring(5)
+                    } else if (line.startsWith("USER ")) {
+                        writer.write(":fake 001 " + nick + " :Welcome\r\n")
+                    } else if (line.startsWith("JOIN ")) {
+                        writer.write(":" + nick + "!relay@bridge JOIN :" + line.substring(5) + "\r\n")
+                    }
+                    writer.flush()
+                }
+            }
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.ocdsoft.bacta.soe.chat.local
+
+import com.ocdsoft.bacta.engine.conf.ini.IniBactaConfiguration
+import com.ocdsoft.bacta.engine.network.client.ConnectionState
+import com.ocdsoft.bacta.soe.connection.SoeUdpConnection
+import com.ocdsoft.bacta.soe.io.udp.NetworkConfiguration
+import com.ocdsoft.bacta.soe.object.chat.ChatAvatarId
+import com.ocdsoft.bacta.soe.object.chat.ChatAvatarRegistry
+import spock.lang.Shared
+import spock.lang.Specification
+
+class ChatPresenceServiceSpec extends Specification {
+
+    @Shared
+    NetworkConfiguration networkConfig
+
+    def setupSpec() {
+        networkConfig = new NetworkConfiguration(new IniBactaConfiguration())
+    }
+
+    def "ConnectNotifiesOnlyOnlineWatchers"() {
+
+        setup:
+        def registry = new ChatAvatarRegistry()
+        def presence = new ChatPresenceService(registry)
+        def target = registry.intern(avatar("target"))
+        def watcher = registry.intern(avatar("watcher"))
+        def offline = registry.intern(avatar("offline"))
+        def stranger = registry.intern(avatar("stranger"))
+        presence.addFriend(watcher, target)
+        presence.addFriend(offline, target)
+        def watcherConnection = connection(1)
+        def strangerConnection = connection(2)
+        presence.connect(watcher, watcherConnection)
+        presence.connect(stranger, strangerConnection)
+
+        when:
+        presence.connect(target, connection(3))
+        def sent = presence.flush()
+
+        then:
+        presence.getWatchers(target).toList().sort() == [watcher, offline].sort()
+        sent == 1
+        watcherConnection.gameNetworkMessagesSent.get() == 1
+        strangerConnection.gameNetworkMessagesSent.get() == 0
+    }
+
+    def "RelogBeforeFlushCancelsOut"() {
+
+        setup:
+        def registry = new ChatAvatarRegistry()
+        def presence = new ChatPresenceService(registry)
+        def target = registry.intern(avatar("target"))
+        def watcher = registry.intern(avatar("watcher"))
+        presence.addFriend(watcher, target)
+        def watcherConnection = connection(1)
+        presence.connect(watcher, watcherConnection)
+        presence.connect(target, connection(2))
+        presence.flush()
+
+        when:
+        presence.disconnect(target)
+        presence.connect(target, connection(3))
+        def sent = presence.flush()
+
+        then:
+        sent == 0
+        presence.cancelled == 1
+        watcherConnection.gameNetworkMessagesSent.get() == 1
+    }
+
+    def "IgnoredWatcherIsNotTold"() {
+
+        setup:
+        def registry = new ChatAvatarRegistry()
+        def presence = new ChatPresenceService(registry)
+        def target = registry.intern(avatar("target"))
+        def watcher = registry.intern(avatar("watcher"))
+        presence.addFriend(watcher, target)
+        presence.addIgnore(target, watcher)
+        def watcherConnection = connection(1)
+        presence.connect(watcher, watcherConnection)
+
+        when:
+        presence.connect(target, connection(2))
+
+        then:
+        presence.flush() == 0
+        watcherConnection.gameNetworkMessagesSent.get() == 0
+    }
+
+    def "ConnectingAvatarReceivesOnlineFriends"() {
+
+        setup:
+        def registry = new ChatAvatarRegistry()
+        def presence = new ChatPresenceService(registry)
+        def avatarId = registry.intern(avatar("avatar"))
+        def friends = (1..3).collect { registry.intern(avatar("friend" + it)) }
+        friends.each { presence.addFriend(avatarId, it) }
+        presence.connect(friends[0], connection(10))
+        presence.connect(friends[2], connection(12))
+        def avatarConnection = connection(1)
+
+        when:
+        presence.connect(avatarId, avatarConnection)
+        presence.flush()
+
+        then:
+        avatarConnection.gameNetworkMessagesSent.get() == 2
+    }
+
+    private SoeUdpConnection connection(int id) {
+        def connection = new SoeUdpConnection(networkConfig, new InetSocketAddress("127.0.0.1", 44000 + id), ConnectionState.ONLINE, null)
+        connection.id = id
+        return connection
+    }
+
+    private static ChatAvatarId avatar(String name) {
+        return new ChatAvatarId("SWG", "bacta", name)
+    }
+}
@@ -0,0 +1,75 @@
+package com.ocdsoft.bacta.soe.chat.local
+
+import spock.lang.Specification
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class ChatShardExecutorSpec extends Specification {
+
+    def "TasksForOneKeyRunInOrderOnOneThread"() {
+
+        setup:
+        def shards = new ChatShardExecutor(4, 1024)
+        def order = new CopyOnWriteArrayList()
+        def threads = new CopyOnWriteArrayList()
+        def done = new CountDownLatch(1)
+
+        when:
+        (0..<500).each { n ->
+            shards.execute(7, {
+                order << n
+                threads << Thread.currentThread()
+                if (n == 499) {
+                    done.countDown()
+                }
+            })
+        }
+
+        then:
+        done.await(5, TimeUnit.SECONDS)
+        order == (0..<500).toList()
+        threads.unique().size() == 1
+        threads[0] != Thread.currentThread()
+
+        cleanup:
+        shards.close()
+    }
+
+    def "FullMailboxRejectsInsteadOfBlocking"() {
+
+        setup:
+        def shards = new ChatShardExecutor(1, 2)
+        def release = new CountDownLatch(1)
+
+        when:
+        def accepted = [
+                shards.executeOn(0, { release.await() }),
+                shards.executeOn(0, {}),
+                shards.executeOn(0, {})
+        ]
+
+        then:
+        accepted == [true, true, false]
+        shards.rejected == 1
+
+        cleanup:
+        release.countDown()
+        shards.close()
+    }
+
+    def "NoShardsRunsInline"() {
+
+        setup:
+        def shards = new ChatShardExecutor(0, 0)
+        def thread = null
+
+        when:
+        shards.execute(3, { thread = Thread.currentThread() })
+
+        then:
+        thread == Thread.currentThread()
+        shards.isOnShard(shards.shardOf(3))
+    }
+}
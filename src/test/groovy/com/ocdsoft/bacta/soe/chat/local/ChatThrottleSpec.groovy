@@ -0,0 +1,103 @@
+package com.ocdsoft.bacta.soe.chat.local
+
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+import java.util.function.LongSupplier
+
+import static com.ocdsoft.bacta.soe.chat.local.ChatThrottle.Admission.*
+import static com.ocdsoft.bacta.soe.chat.local.ChatThrottleConfiguration.Policy.DROP
+import static com.ocdsoft.bacta.soe.chat.local.ChatThrottleConfiguration.Policy.QUEUE
+
+class ChatThrottleSpec extends Specification {
+
+    long now = TimeUnit.SECONDS.toNanos(100)
+
+    def "AvatarBurstIsDroppedUntilRefill"() {
+
+        setup:
+        def throttle = throttle(new ChatThrottleConfiguration(3, 1, 100, 0, DROP, 0, 0))
+        def sends = 0
+
+        when:
+        def first = (1..4).collect { throttle.admit(7, 1, { sends++ }) }
+        now += TimeUnit.SECONDS.toNanos(1)
+        def refilled = throttle.admit(7, 1, { sends++ })
+
+        then:
+        first == [SENT, SENT, SENT, DROPPED]
+        refilled == SENT
+        sends == 4
+        throttle.dropped == 1
+    }
+
+    def "RoomBucketIsSharedByItsSenders"() {
+
+        setup:
+        def throttle = throttle(new ChatThrottleConfiguration(10, 1, 2, 1, DROP, 0, 0))
+
+        expect:
+        throttle.admit(1, 5, {}) == SENT
+        throttle.admit(2, 5, {}) == SENT
+        throttle.admit(3, 5, {}) == DROPPED
+        throttle.admit(3, 6, {}) == SENT
+    }
+
+    def "QueuedMessagesAreSentInOrderAsTokensRefill"() {
+
+        setup:
+        def throttle = throttle(new ChatThrottleConfiguration(1, 1, 100, 0, QUEUE, 2, 0))
+        def sent = []
+
+        when:
+        def admissions = (1..4).collect { n -> throttle.admit(7, 1, { sent << n }) }
+        now += TimeUnit.SECONDS.toNanos(1)
+        def firstDrain = throttle.drain()
+        now += TimeUnit.SECONDS.toNanos(1)
+        def secondDrain = throttle.drain()
+
+        then:
+        admissions == [SENT, QUEUED, QUEUED, DROPPED]
+        firstDrain == 1
+        secondDrain == 1
+        sent == [1, 2, 3]
+        throttle.queuedCount == 0
+    }
+
+    def "ForgetDropsQueuedMessages"() {
+
+        setup:
+        def throttle = throttle(new ChatThrottleConfiguration(1, 1, 100, 0, QUEUE, 5, 0))
+        throttle.admit(7, 1, {})
+        throttle.admit(7, 1, {})
+        throttle.admit(7, 1, {})
+
+        when:
+        throttle.forget(7)
+
+        then:
+        throttle.queuedCount == 0
+        throttle.dropped == 2
+    }
+
+    def "ReleaseRefillsTheBucketForTheNextAvatar"() {
+
+        setup:
+        def throttle = throttle(new ChatThrottleConfiguration(1, 1, 100, 0, DROP, 0, 0))
+        throttle.admit(7, 1, {})
+
+        when:
+        throttle.forget(7)
+        def forgotten = throttle.admit(7, 1, {})
+        throttle.release(7)
+        def released = throttle.admit(7, 1, {})
+
+        then:
+        forgotten == DROPPED
+        released == SENT
+    }
+
+    private ChatThrottle throttle(ChatThrottleConfiguration configuration) {
+        return new ChatThrottle(configuration, { now } as LongSupplier)
+    }
+}
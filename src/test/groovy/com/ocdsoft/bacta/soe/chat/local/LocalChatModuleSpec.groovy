@@ -0,0 +1,217 @@
+package com.ocdsoft.bacta.soe.chat.local
+
+import com.ocdsoft.bacta.engine.conf.ini.IniBactaConfiguration
+import com.ocdsoft.bacta.engine.network.client.ConnectionState
+import com.ocdsoft.bacta.soe.chat.ChatResult
+import com.ocdsoft.bacta.soe.chat.message.ChatRoomList
+import com.ocdsoft.bacta.soe.chat.message.ChatSendToRoom
+import com.ocdsoft.bacta.soe.connection.SoeUdpConnection
+import com.ocdsoft.bacta.soe.io.udp.NetworkConfiguration
+import com.ocdsoft.bacta.soe.object.chat.ChatAvatarId
+import com.ocdsoft.bacta.soe.object.chat.ChatAvatarRegistry
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class LocalChatModuleSpec extends Specification {
+
+    @Shared
+    NetworkConfiguration networkConfig
+
+    def module = new LocalChatModule()
+
+    def setupSpec() {
+        networkConfig = new NetworkConfiguration(new IniBactaConfiguration())
+    }
+
+    def cleanup() {
+        module.close()
+    }
+
+    def "SendToRoomReachesEveryMember"() {
+
+        setup:
+        def connections = (1..5).collect { connection(it) }
+        connections.eachWithIndex { connection, i -> module.connectAvatar(connection, avatar("member" + i)) }
+        def room = module.createRoom(avatar("member0"), "SWG.bacta.Planet", "Planet", false, false, true)
+        connections.each { module.enterRoom(it.id, room.id) }
+        def sentBefore = connections.collect { it.gameNetworkMessagesSent.get() }
+
+        when:
+        def result = module.sendToRoom(connections[1], new ChatSendToRoom("hello", "", room.id, 7))
+
+        then:
+        result == ChatResult.SUCCESS
+        room.memberCount == 5
+        // every member gets the room message, and the sender also gets ChatOnSendRoomMessage
+        (0..4).collect { connections[it].gameNetworkMessagesSent.get() - sentBefore[it] } == [1, 2, 1, 1, 1]
+    }
+
+    def "FullRecipientShardFailsTheSend"() {
+
+        setup:
+        def shards = new ChatShardExecutor(2, 2)
+        def sharded = new LocalChatModule(new ChatAvatarRegistry(), ChatThrottleConfiguration.defaults(), shards)
+        def release = new CountDownLatch(1)
+        def connections = (1..4).collect { connection(it) }
+        def members = connections.withIndex().collect { connection, i -> sharded.connectAvatar(connection, avatar("member" + i)) }
+        def room = sharded.createRoom(avatar("member0"), "SWG.bacta.Planet", "Planet", false, false, true)
+        connections.each { sharded.enterRoom(it.id, room.id) }
+        def roomShard = shards.shardOf(room.id)
+        def otherShard = 1 - roomShard
+        def blocked = members.count { shards.shardOf(it.avatarId) == otherShard }
+        shards.executeOn(otherShard, { release.await() })
+        shards.executeOn(otherShard, {})
+
+        when:
+        def result = sharded.sendToRoom(avatar("member0"), "SWG.bacta.Planet", "hello").toCompletableFuture().get(5, TimeUnit.SECONDS)
+
+        then:
+        blocked == 1
+        result == ChatResult.ROOM_UNKNOWN_FAILURE
+        sharded.droppedDeliveries == 1
+
+        cleanup:
+        release.countDown()
+        sharded?.close()
+        shards?.close()
+    }
+
+    def "BannedAvatarIsRemovedAndKeptOut"() {
+
+        setup:
+        def owner = connection(1)
+        def guest = connection(2)
+        module.connectAvatar(owner, avatar("owner"))
+        module.connectAvatar(guest, avatar("guest"))
+        def room = module.createRoom(avatar("owner"), "SWG.bacta.Guild", "Guild", false, false, true)
+        module.enterRoom(guest.id, room.id)
+
+        when:
+        def notModerator = module.ban(guest.id, room.id, avatar("owner"))
+        def banned = module.ban(owner.id, room.id, avatar("guest"))
+
+        then:
+        notModerator == ChatResult.ROOM_NO_PRIVILEGES
+        banned == ChatResult.SUCCESS
+        !room.isMember(guest.id)
+        module.enterRoom(guest.id, room.id) == ChatResult.ROOM_BANNED_AVATAR
+    }
+
+    def "MembersOnlyRoomNeedsInvite"() {
+
+        setup:
+        def owner = connection(1)
+        def guest = connection(2)
+        module.connectAvatar(owner, avatar("owner"))
+        module.connectAvatar(guest, avatar("guest"))
+        def room = module.createRoom(avatar("owner"), "SWG.bacta.Private", "Private", false, true, false)
+
+        expect:
+        module.createRoom(avatar("owner"), "swg.bacta.private", "Again", false, false, false) == null
+        module.getRoom("SWG.BACTA.PRIVATE") == room
+        module.enterRoom(guest.id, room.id) == ChatResult.ROOM_PRIVATE_ROOM
+        module.invite(owner.id, room.id, avatar("guest")) == ChatResult.SUCCESS
+        module.enterRoom(guest.id, room.id) == ChatResult.SUCCESS
+        module.enterRoom(guest.id, room.id) == ChatResult.SUCCESS
+        room.memberCount == 1
+    }
+
+    def "UnknownTargetsAreNotRegistered"() {
+
+        setup:
+        def owner = connection(1)
+        def guest = connection(2)
+        module.connectAvatar(owner, avatar("owner"))
+        module.connectAvatar(guest, avatar("guest"))
+        def room = module.createRoom(avatar("owner"), "SWG.bacta.Guild", "Guild", false, false, true)
+        def registered = module.avatarRegistry.size()
+
+        expect:
+        module.invite(owner.id, room.id, avatar("nobody")) == ChatResult.DEST_AVATAR_DOESNT_EXIST
+        module.ban(owner.id, room.id, avatar("nobody")) == ChatResult.DEST_AVATAR_DOESNT_EXIST
+        module.addFriend(owner.id, avatar("nobody")) == ChatResult.DEST_AVATAR_DOESNT_EXIST
+        module.avatarRegistry.size() == registered
+    }
+
+    def "DestroyedAvatarIsForgottenAndReleased"() {
+
+        setup:
+        def owner = connection(1)
+        def guest = connection(2)
+        module.connectAvatar(owner, avatar("owner"))
+        module.connectAvatar(guest, avatar("guest"))
+        def room = module.createRoom(avatar("owner"), "SWG.bacta.Guild", "Guild", false, false, true)
+        def guestId = module.getMember(guest.id).avatarId
+        module.enterRoom(guest.id, room.id)
+        module.ban(owner.id, room.id, avatar("guest"))
+        module.addFriend(owner.id, avatar("guest"))
+
+        when:
+        def result = module.destroyAvatar(avatar("guest"))
+
+        then:
+        result == ChatResult.SUCCESS
+        module.getMember(guest.id) == null
+        !room.isBanned(guestId)
+        module.presence.getFriends(module.getMember(owner.id).avatarId).length == 0
+        module.avatarRegistry.get(guestId) == null
+        module.destroyAvatar(avatar("guest")) == ChatResult.DEST_AVATAR_DOESNT_EXIST
+    }
+
+    def "DisconnectLeavesAllRooms"() {
+
+        setup:
+        def guest = connection(2)
+        module.connectAvatar(guest, avatar("guest"))
+        def first = module.createRoom(avatar("owner"), "SWG.bacta.One", "One", false, false, false)
+        def second = module.createRoom(avatar("owner"), "SWG.bacta.Two", "Two", false, false, false)
+        module.enterRoom(guest.id, first.id)
+        module.enterRoom(guest.id, second.id)
+
+        when:
+        module.disconnectAvatar(guest.id)
+
+        then:
+        first.memberCount == 0
+        second.memberCount == 0
+        module.getMember(guest.id) == null
+    }
+
+    def "RoomListIsRebuiltOnlyAfterChange"() {
+
+        setup:
+        def client = connection(1)
+        def first = module.createRoom(avatar("owner"), "SWG.bacta.One", "One", false, false, false)
+        module.createRoom(avatar("owner"), "SWG.bacta.Two", "Two", false, false, false)
+
+        when:
+        module.requestRoomList(client)
+        module.requestRoomList(client)
+        module.updateRoom(first.id, { it.title = "First" })
+        module.requestRoomList(client)
+
+        def buffer = module.getRoomList().buffer.duplicate().order(java.nio.ByteOrder.LITTLE_ENDIAN)
+        buffer.position(6)
+        def list = new ChatRoomList(buffer)
+
+        then:
+        module.roomListBuilds == 2
+        module.roomListHits == 1
+        client.gameNetworkMessagesSent.get() == 3
+        list.roomData*.title.sort() == ["First", "Two"]
+        !buffer.hasRemaining()
+    }
+
+    private SoeUdpConnection connection(int id) {
+        def connection = new SoeUdpConnection(networkConfig, new InetSocketAddress("127.0.0.1", 44000 + id), ConnectionState.ONLINE, null)
+        connection.id = id
+        return connection
+    }
+
+    private static ChatAvatarId avatar(String name) {
+        return new ChatAvatarId("SWG", "bacta", name)
+    }
+}
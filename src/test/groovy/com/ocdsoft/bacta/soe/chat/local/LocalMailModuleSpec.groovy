@@ -0,0 +1,117 @@
+package com.ocdsoft.bacta.soe.chat.local
+
+import com.ocdsoft.bacta.soe.chat.ChatAvatarId
+import com.ocdsoft.bacta.soe.chat.ChatPersistentMessageToClientData
+import com.ocdsoft.bacta.soe.chat.ChatResult
+import spock.lang.Specification
+
+import java.nio.file.Files
+
+class LocalMailModuleSpec extends Specification {
+
+    static final int SEGMENT_SIZE = 128 * 1024
+
+    def directory = Files.createTempDirectory("mail")
+
+    def from = new ChatAvatarId("swg", "bacta", "crush")
+    def to = new ChatAvatarId("swg", "bacta", "kyle")
+
+    def cleanup() {
+        directory.toFile().deleteDir()
+    }
+
+    def "HeadersLeaveOutBodies"() {
+
+        setup:
+        def mail = new LocalMailModule(directory, SEGMENT_SIZE)
+
+        when:
+        def id = mail.sendPersistentMessage(from, to, "Subject", "Body", "").messageId
+        def headers = mail.getMessageHeaders(to)
+        def message = mail.getMessage(to, id)
+
+        then:
+        headers.size() == 1
+        headers[0].header
+        headers[0].subject == "Subject"
+        headers[0].message == null
+        headers[0].status == ChatPersistentMessageToClientData.STATUS_NEW
+        message.message == "Body"
+        message.from.name == "crush"
+        mail.getMessageHeaders(to)[0].status == ChatPersistentMessageToClientData.STATUS_READ
+        mail.getMessage(from, id) == null
+
+        cleanup:
+        mail.close()
+    }
+
+    def "MailSurvivesRestart"() {
+
+        setup:
+        def mail = new LocalMailModule(directory, SEGMENT_SIZE)
+        def kept = mail.sendPersistentMessage(from, to, "Kept", "Body", "").messageId
+        def deleted = mail.sendPersistentMessage(from, to, "Deleted", "Body", "").messageId
+        mail.getMessage(to, kept)
+        mail.deleteMessage(to, deleted)
+        mail.close()
+
+        when:
+        def reopened = new LocalMailModule(directory, SEGMENT_SIZE)
+        def headers = reopened.getMessageHeaders(to)
+        def next = reopened.sendPersistentMessage(from, to, "Next", "Body", "").messageId
+
+        then:
+        headers*.id == [kept]
+        headers[0].status == ChatPersistentMessageToClientData.STATUS_READ
+        next > deleted
+
+        cleanup:
+        reopened.close()
+    }
+
+    def "DeletedMessagesAreCompactedAway"() {
+
+        setup:
+        def mail = new LocalMailModule(directory, SEGMENT_SIZE)
+        def body = "x" * 1000
+        def kept = mail.sendPersistentMessage(from, from, "Kept", "Body", "").messageId
+        def last = (1..200).collect { mail.sendPersistentMessage(from, to, "Bulk " + it, body, "").messageId }.max()
+
+        when:
+        def deleted = mail.deleteAllMessages(to)
+        mail.close()
+        def reopened = new LocalMailModule(directory, SEGMENT_SIZE)
+
+        then:
+        deleted == 200
+        reopened.segmentCount == 1
+        reopened.messageCount == 1
+        reopened.getMessage(from, kept).message == "Body"
+        reopened.getMessageHeaders(to).isEmpty()
+        reopened.sendPersistentMessage(from, to, "Next", "Body", "").messageId > last
+
+        cleanup:
+        reopened.close()
+    }
+
+    def "OversizedMailIsRefused"() {
+
+        setup:
+        def mail = new LocalMailModule(directory, SEGMENT_SIZE)
+        def body = "x" * LocalMailModule.MAX_RECORD_SIZE
+
+        when:
+        def refused = mail.sendPersistentMessage(from, to, "Huge", body, "")
+        def next = mail.sendPersistentMessage(from, to, "Small", "Body", "")
+
+        then:
+        refused.result == ChatResult.ROOM_UNKNOWN_FAILURE
+        refused.messageId == 0
+        next.result == ChatResult.SUCCESS
+        next.messageId == 1
+        mail.messageCount == 1
+
+        cleanup:
+        mail.close()
+    }
+}
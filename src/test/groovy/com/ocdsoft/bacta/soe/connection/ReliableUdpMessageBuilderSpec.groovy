@@ -0,0 +1,172 @@
+package com.ocdsoft.bacta.soe.connection
+
+import com.ocdsoft.bacta.engine.conf.ini.IniBactaConfiguration
+import com.ocdsoft.bacta.soe.io.udp.NetworkConfiguration
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+
+class ReliableUdpMessageBuilderSpec extends Specification {
+
+    @Shared
+    NetworkConfiguration networkConfig
+
+    def setupSpec() {
+        networkConfig = new NetworkConfiguration(new IniBactaConfiguration())
+    }
+
+    def "SequenceWrapsAfter0xFFFF"() {
+
+        setup:
+        def builder = new ReliableUdpMessageBuilder(null, networkConfig)
+        def sequences = []
+
+        when:
+        for (int i = 0; i < 0x10002; ++i) {
+            builder.add(ByteBuffer.wrap([0x01, 0x00, 0x00, 0x00] as byte[]))
+            ByteBuffer packet = builder.buildNext()
+            short sequence = packet.getShort(2)
+            builder.acknowledge(sequence)
+            if (i >= 0xFFFE) {
+                sequences << (sequence & 0xFFFF)
+            }
+        }
+
+        then:
+        sequences == [0xFFFE, 0xFFFF, 0x0000, 0x0001]
+        builder.outstandingCount == 0
+    }
+
+    def "AckAllReleasesRangeAndIgnoresStaleSequences"() {
+
+        setup:
+        def builder = new ReliableUdpMessageBuilder(null, networkConfig)
+        def packets = []
+
+        when:
+        5.times {
+            builder.add(ByteBuffer.wrap([0x01, 0x00, 0x00, 0x00] as byte[]))
+            packets << builder.buildNext()
+        }
+        builder.acknowledge(packets[2].getShort(2))
+
+        then:
+        builder.outstandingCount == 2
+
+        when:
+        builder.acknowledge(packets[0].getShort(2))
+
+        then:
+        builder.outstandingCount == 2
+    }
+
+    def "WindowStopsAtMaxOutstandingPackets"() {
+
+        setup:
+        def builder = new ReliableUdpMessageBuilder(null, networkConfig)
+        int sent = 0
+
+        when:
+        for (int i = 0; i < networkConfig.maxOutstandingPackets + 10; ++i) {
+            builder.add(ByteBuffer.wrap([0x01, 0x00, 0x00, 0x00] as byte[]))
+            if (builder.buildNext() != null) {
+                sent++
+            }
+        }
+
+        then:
+        sent == networkConfig.maxOutstandingPackets
+        !builder.add(ByteBuffer.wrap([0x01, 0x00] as byte[]))
+    }
+
+    def "SelectiveAckFastRetransmitsGap"() {
+
+        setup:
+        def builder = new ReliableUdpMessageBuilder(null, networkConfig)
+        def packets = []
+
+        when:
+        4.times {
+            builder.add(ByteBuffer.wrap([0x01, 0x00, 0x00, 0x00] as byte[]))
+            packets << builder.buildNext()
+        }
+        builder.acknowledge(packets[0].getShort(2))
+        builder.acknowledgeSingle(packets[3].getShort(2))
+        def resent = [builder.buildNext(), builder.buildNext()]
+
+        then:
+        builder.outstandingCount == 3
+        builder.fastRetransmitCount == 2
+        resent*.getShort(2) == [packets[1].getShort(2), packets[2].getShort(2)]
+        builder.buildNext() == null
+
+        when:
+        builder.acknowledge(packets[2].getShort(2))
+
+        then:
+        builder.outstandingCount == 0
+    }
+
+    def "FragmentsBuiltAfterEarlierOnesAreAckedStillCarryPayload"() {
+
+        setup:
+        def builder = new ReliableUdpMessageBuilder(null, networkConfig)
+        def payload = networkConfig.maxReliablePayload
+        def message = ByteBuffer.allocate(payload * (networkConfig.maxOutstandingPackets + 2))
+        def packets = []
+
+        when:
+        builder.add(message)
+        ByteBuffer packet
+        while ((packet = builder.buildNext()) != null) {
+            packets << packet
+        }
+        builder.acknowledge(packets[-1].getShort(2))
+        while ((packet = builder.buildNext()) != null) {
+            packets << packet
+        }
+
+        then:
+        packets.size() == networkConfig.maxOutstandingPackets + 3
+        packets.every { it.remaining() > 4 }
+        builder.outstandingCount == 3
+
+        when:
+        builder.acknowledge(packets[-1].getShort(2))
+
+        then:
+        builder.outstandingCount == 0
+        builder.buildNext() == null
+    }
+
+    def "OverduePacketsAreQueuedForResendOnce"() {
+
+        setup:
+        def builder = new ReliableUdpMessageBuilder(null, networkConfig)
+        def packets = []
+
+        when:
+        3.times {
+            builder.add(ByteBuffer.wrap([0x01, 0x00, 0x00, 0x00] as byte[]))
+            packets << builder.buildNext()
+        }
+        builder.acknowledgeSingle(packets[2].getShort(2))
+        def later = System.currentTimeMillis() + 60000
+        builder.expireResends(later)
+        builder.expireResends(later)
+        def resent = [builder.buildNext(), builder.buildNext()]
+
+        then:
+        builder.fastRetransmitCount == 2
+        builder.timeoutResendCount == 0
+        resent*.getShort(2) == [packets[0].getShort(2), packets[1].getShort(2)]
+        builder.buildNext() == null
+
+        when:
+        builder.expireResends(later)
+
+        then:
+        builder.timeoutResendCount == 2
+    }
+}
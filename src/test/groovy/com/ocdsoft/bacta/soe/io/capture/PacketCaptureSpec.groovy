@@ -0,0 +1,47 @@
+package com.ocdsoft.bacta.soe.io.capture
+
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.nio.file.Files
+
+class PacketCaptureSpec extends Specification {
+
+    def "RecordsRoundTripThroughCapture"() {
+
+        setup:
+        def file = Files.createTempFile("soe", ".cap")
+        def client = new InetSocketAddress("127.0.0.1", 44453)
+        def other = new InetSocketAddress("127.0.0.1", 44454)
+        def packet = ByteBuffer.wrap([0, 9, 0, 1, 2, 3] as byte[])
+
+        when:
+        def writer = new PacketCaptureWriter(file)
+        writer.incoming(client, packet)
+        writer.outgoing(client, ByteBuffer.wrap([0, 21, 0, 1] as byte[]))
+        writer.incoming(other, ByteBuffer.wrap([0, 6] as byte[]))
+        writer.close()
+
+        def reader = new PacketCaptureReader(file)
+        def record = reader.newRecord()
+        def records = []
+        while (reader.next(record)) {
+            def data = new byte[record.data.remaining()]
+            record.data.get(data)
+            records << [record.type, record.session, data as List]
+        }
+        reader.close()
+
+        then:
+        packet.position() == 0
+        records.size() == 5
+        records[0][0] == PacketCaptureWriter.RECORD_SESSION
+        records[1] == [PacketCaptureWriter.RECORD_INCOMING, 0, [0, 9, 0, 1, 2, 3]]
+        records[2] == [PacketCaptureWriter.RECORD_OUTGOING, 0, [0, 21, 0, 1]]
+        records[3][0] == PacketCaptureWriter.RECORD_SESSION
+        records[4] == [PacketCaptureWriter.RECORD_INCOMING, 1, [0, 6]]
+
+        cleanup:
+        Files.deleteIfExists(file)
+    }
+}
@@ -0,0 +1,50 @@
+package com.ocdsoft.bacta.soe.io.impairment
+
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+
+class NetworkImpairmentSpec extends Specification {
+
+    def "ParsesProfile"() {
+
+        when:
+        def profile = ImpairmentProfile.parse("loss=0.02, duplicate=0.01,latency=50,jitter=20,bandwidth=64000")
+
+        then:
+        profile.loss == 0.02d
+        profile.duplicate == 0.01d
+        profile.latency == 50
+        profile.jitter == 20
+        profile.bandwidth == 64000
+        profile.enabled
+        !ImpairmentProfile.parse("").enabled
+    }
+
+    def "SameSeedImpairsTheSameWay"() {
+
+        setup:
+        def profile = ImpairmentProfile.parse("loss=0.3,duplicate=0.2,reorder=0.2,reorderDelay=10")
+        def address = new InetSocketAddress("127.0.0.1", 44453)
+        def first = new NetworkImpairment("test", 42, profile, null, ImpairmentProfile.NONE, null)
+        def second = new NetworkImpairment("test", 42, profile, null, ImpairmentProfile.NONE, null)
+
+        when:
+        100.times {
+            first.submit(NetworkImpairment.Direction.INCOMING, address, ByteBuffer.allocate(16))
+            second.submit(NetworkImpairment.Direction.INCOMING, address, ByteBuffer.allocate(16))
+        }
+        def a = first.getStage(NetworkImpairment.Direction.INCOMING)
+        def b = second.getStage(NetworkImpairment.Direction.INCOMING)
+
+        then:
+        a.submitted == 100
+        a.dropped > 0
+        a.duplicated > 0
+        a.dropped == b.dropped
+        a.duplicated == b.duplicated
+        a.reordered == b.reordered
+        first.isImpaired(NetworkImpairment.Direction.INCOMING)
+        !first.isImpaired(NetworkImpairment.Direction.OUTGOING)
+    }
+}
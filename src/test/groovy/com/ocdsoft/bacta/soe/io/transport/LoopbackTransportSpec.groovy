@@ -0,0 +1,53 @@
+package com.ocdsoft.bacta.soe.io.transport
+
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class LoopbackTransportSpec extends Specification {
+
+    def "DeliversCopiesBetweenEndpoints"() {
+
+        setup:
+        def network = new LoopbackNetwork()
+        def server = network.bind(new InetSocketAddress("127.0.0.1", 44453))
+        def client = network.bind()
+        def packet = ByteBuffer.wrap([0, 1, 2, 3] as byte[])
+        def received = []
+
+        when:
+        client.send(server.address, packet)
+        packet.put(0, (byte) 9)
+        client.send(new InetSocketAddress("127.0.0.1", 1), packet)
+        server.poll({ sender, buffer -> received << [sender, buffer.get(0)] } as SoeTransport.Receiver, 10)
+
+        then:
+        received == [[client.address, (byte) 0]]
+        network.delivered == 1
+        network.undeliverable == 1
+    }
+
+    def "RunDeliversOnReceiveThreadUntilStopped"() {
+
+        setup:
+        def network = new LoopbackNetwork()
+        def server = network.bind(new InetSocketAddress("127.0.0.1", 44453))
+        def client = network.bind()
+        def latch = new CountDownLatch(2)
+        def thread = new Thread({ server.run({ sender, buffer -> latch.countDown() } as SoeTransport.Receiver) })
+
+        when:
+        thread.start()
+        client.send(server.address, ByteBuffer.allocate(8))
+        client.send(server.address, ByteBuffer.allocate(8))
+        def delivered = latch.await(5, TimeUnit.SECONDS)
+        server.stop()
+        thread.join(5000)
+
+        then:
+        delivered
+        !thread.alive
+    }
+}
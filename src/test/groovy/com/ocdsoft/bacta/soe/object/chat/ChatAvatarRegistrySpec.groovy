@@ -0,0 +1,157 @@
+package com.ocdsoft.bacta.soe.object.chat
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+class ChatAvatarRegistrySpec extends Specification {
+
+    def "InternsIgnoringCase"() {
+
+        setup:
+        def registry = new ChatAvatarRegistry()
+
+        when:
+        def first = registry.intern("SWG", "Bacta", "Crush")
+        def second = registry.intern(new ChatAvatarId("swg", "bacta", "crush"))
+        def other = registry.intern("SWG", "Bacta", "Kyle")
+
+        then:
+        first == second
+        first != other
+        registry.get(first).name == "Crush"
+        registry.size() == 2
+    }
+
+    def "FindsFromBufferWithoutRegistering"() {
+
+        setup:
+        def registry = new ChatAvatarRegistry()
+        def id = registry.intern("SWG", "Bacta", "Crush")
+        def buffer = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN)
+        new ChatAvatarId("swg", "BACTA", "crush").writeToBuffer(buffer)
+        new ChatAvatarId("swg", "bacta", "nobody").writeToBuffer(buffer)
+        buffer.putInt(0x12345678)
+        buffer.flip()
+
+        when:
+        def found = registry.find(buffer)
+        def missing = registry.find(buffer)
+
+        then:
+        found == id
+        missing == ChatAvatarRegistry.NONE
+        buffer.getInt() == 0x12345678
+        registry.size() == 1
+    }
+
+    def "WritesTheSameBytesAsChatAvatarId"() {
+
+        setup:
+        def registry = new ChatAvatarRegistry()
+        def avatarId = new ChatAvatarId("SWG", "Bacta", "Crush")
+        def expected = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN)
+        def actual = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN)
+
+        when:
+        avatarId.writeToBuffer(expected)
+        registry.write(actual, registry.intern(avatarId))
+        expected.flip()
+        actual.flip()
+
+        then:
+        actual == expected
+        registry.intern(actual) == registry.intern(avatarId)
+    }
+
+    def "KeepsIdsAcrossGrowth"() {
+
+        setup:
+        def registry = new ChatAvatarRegistry()
+
+        when:
+        def ids = (0..<5000).collect { registry.intern("swg", "bacta", "avatar" + it) }
+
+        then:
+        ids == (0..<5000).toList()
+        (0..<5000).every { registry.find("SWG", "BACTA", "AVATAR" + it) == it }
+    }
+
+    def "ReleasedIdsAreGivenToNewAvatars"() {
+
+        setup:
+        def registry = new ChatAvatarRegistry()
+        def ids = (0..<3000).collect { registry.intern("swg", "bacta", "avatar" + it) }
+
+        when:
+        def released = (0..<3000).findAll { it % 2 == 0 }.every { registry.release(it) }
+        def again = registry.release(0)
+        def reused = registry.intern("swg", "bacta", "newcomer")
+
+        then:
+        released
+        !again
+        registry.size() == 1501
+        reused % 2 == 0
+        registry.get(reused).name == "newcomer"
+        registry.find("swg", "bacta", "avatar0") == ChatAvatarRegistry.NONE
+        (0..<3000).findAll { it % 2 == 1 }.every { registry.find("swg", "bacta", "avatar" + it) == it }
+    }
+
+    def "UnknownIdsAreNotRegistered"() {
+
+        setup:
+        def registry = new ChatAvatarRegistry()
+        def released = registry.intern("swg", "bacta", "crush")
+        registry.release(released)
+        def buffer = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN)
+
+        when:
+        [released, -1, 1 << 20].each { registry.write(buffer, it) }
+        buffer.flip()
+
+        then:
+        registry.get(released) == null
+        registry.get(-1) == null
+        registry.get(1 << 20) == null
+        buffer.remaining() == 18
+        (0..<9).every { buffer.getShort() == 0 }
+    }
+
+    def "EqualIgnoringCase"() {
+
+        expect:
+        new ChatAvatarId("SWG", "Bacta", "Crush") == new ChatAvatarId("swg", "bacta", "crush")
+        new ChatAvatarId("SWG", "Bacta", "Crush").hashCode() == new ChatAvatarId("swg", "bacta", "crush").hashCode()
+        new ChatAvatarId("SWG", "Bacta", "Crush") != new ChatAvatarId("SWG", "Bacta", "Kyle")
+    }
+
+    @Unroll
+    def "ParsesFullPath"() {
+
+        when:
+        def avatarId = new ChatAvatarId(fullpath)
+
+        then:
+        avatarId.gameCode == gameCode
+        avatarId.cluster == cluster
+        avatarId.name == name
+
+        where:
+        fullpath                       | gameCode | cluster    | name
+        "SWG.Chilastra.cRush"          | "SWG"    | "Chilastra"| "cRush"
+        "SWG.Eclipse.kyle@localhost"   | "SWG"    | "Eclipse"  | "kyle"
+        "SWG.Ahazi.Playdoh Playa"      | "SWG"    | "Ahazi"    | "Playdoh"
+    }
+
+    def "RejectsShortPath"() {
+
+        when:
+        new ChatAvatarId("SWG.crush@host.name")
+
+        then:
+        thrown(InvalidChatAvatarIdException)
+    }
+}
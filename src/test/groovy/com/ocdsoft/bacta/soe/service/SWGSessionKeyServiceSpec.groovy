@@ -0,0 +1,61 @@
+package com.ocdsoft.bacta.soe.service
+
+import spock.lang.Specification
+
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class SWGSessionKeyServiceSpec extends Specification {
+
+    def "KeysAreClaimedFromTheFilledPool"() {
+
+        setup:
+        def service = new SWGSessionKeyService()
+
+        when:
+        def deadline = System.currentTimeMillis() + 5000
+        while (service.available < SWGSessionKeyService.POOL_SIZE && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        SWGSessionKeyService.POOL_SIZE.times { service.nextKey }
+
+        then:
+        service.pooled == SWGSessionKeyService.POOL_SIZE
+        service.fallbacks == 0
+    }
+
+    def "EmptyPoolFallsBack"() {
+
+        setup:
+        def service = new SWGSessionKeyService(false)
+
+        when:
+        10.times { service.nextKey }
+
+        then:
+        service.pooled == 0
+        service.fallbacks == 10
+        service.available == 0
+    }
+
+    def "ConcurrentClaimsAreEachCountedOnce"() {
+
+        setup:
+        def service = new SWGSessionKeyService()
+        def executor = Executors.newFixedThreadPool(8)
+
+        when:
+        def futures = (1..8).collect {
+            executor.submit({ 2000.times { service.nextKey } } as Callable)
+        }
+        futures*.get(10, TimeUnit.SECONDS)
+
+        then:
+        service.pooled + service.fallbacks == 16000
+        service.available <= SWGSessionKeyService.POOL_SIZE
+
+        cleanup:
+        executor.shutdown()
+    }
+}
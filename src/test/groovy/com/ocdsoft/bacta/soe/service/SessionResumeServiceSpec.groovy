@@ -0,0 +1,133 @@
+package com.ocdsoft.bacta.soe.service
+
+import com.ocdsoft.bacta.engine.conf.ini.IniBactaConfiguration
+import com.ocdsoft.bacta.engine.network.client.ConnectionState
+import com.ocdsoft.bacta.soe.connection.ConnectionRole
+import com.ocdsoft.bacta.soe.connection.SoeUdpConnection
+import com.ocdsoft.bacta.soe.io.udp.NetworkConfiguration
+import com.ocdsoft.bacta.soe.message.TerminateReason
+import spock.lang.Shared
+import spock.lang.Specification
+
+class SessionResumeServiceSpec extends Specification {
+
+    @Shared
+    NetworkConfiguration networkConfig
+
+    def setupSpec() {
+        networkConfig = new NetworkConfiguration(new IniBactaConfiguration())
+    }
+
+    def "DisabledByDefault"() {
+
+        setup:
+        def service = new SessionResumeService(networkConfig)
+        def lost = connection(new InetSocketAddress("127.0.0.1", 44452), 1, 1)
+
+        expect:
+        !service.enabled
+        service.issueToken(lost) == 0
+        !service.store(lost)
+    }
+
+    def "ResumesLostSessionOnce"() {
+
+        setup:
+        def service = new SessionResumeService(30000, 100)
+        def address = new InetSocketAddress("127.0.0.1", 44453)
+        def lost = connection(address, 1234, 77)
+        def token = service.issueToken(lost)
+        lost.sessionAttachment = "zoned"
+
+        when:
+        def stored = service.store(lost)
+        def session = service.resume(1234, token, new InetSocketAddress("127.0.0.1", 50000))
+        def again = service.resume(1234, token, address)
+
+        then:
+        stored
+        token != 0
+        session.accountId == 77
+        session.attachment == "zoned"
+        session.roles.contains(ConnectionRole.AUTHENTICATED)
+        again == null
+        service.sessionCount == 0
+    }
+
+    def "RestoresSessionOntoNewConnection"() {
+
+        setup:
+        def service = new SessionResumeService(30000, 100)
+        def address = new InetSocketAddress("127.0.0.1", 44458)
+        def lost = connection(address, 20, 9)
+        def token = service.issueToken(lost)
+        service.store(lost)
+        def reconnected = new SoeUdpConnection(networkConfig, address, ConnectionState.ONLINE, null)
+        reconnected.id = 21
+
+        when:
+        def resumed = service.resume(reconnected, 20, token)
+
+        then:
+        resumed
+        reconnected.resumed
+        reconnected.accountId == 9
+        reconnected.resumeToken == token
+        reconnected.roles.contains(ConnectionRole.AUTHENTICATED)
+    }
+
+    def "RefusesWrongTokensOtherHostsAndClosedSessions"() {
+
+        setup:
+        def service = new SessionResumeService(30000, 100)
+        def closed = connection(new InetSocketAddress("127.0.0.1", 44454), 1, 1)
+        service.issueToken(closed)
+        closed.terminate(TerminateReason.OTHERSIDETERMINATED)
+        def anonymous = connection(new InetSocketAddress("127.0.0.1", 44455), 2, 0)
+        service.issueToken(anonymous)
+        def untokened = connection(new InetSocketAddress("127.0.0.1", 44459), 4, 4)
+        def lost = connection(new InetSocketAddress("127.0.0.1", 44456), 3, 3)
+        def token = service.issueToken(lost)
+
+        when:
+        service.store(lost)
+
+        then:
+        !service.store(closed)
+        !service.store(anonymous)
+        !service.store(untokened)
+        service.resume(3, 0, new InetSocketAddress("127.0.0.1", 44456)) == null
+        service.resume(3, token + 1, new InetSocketAddress("127.0.0.1", 44456)) == null
+        service.resume(3, token, new InetSocketAddress("10.0.0.1", 44456)) == null
+        service.resume(3, token, new InetSocketAddress("127.0.0.1", 44456)) != null
+    }
+
+    def "NewerSessionReplacesOlderForAccount"() {
+
+        setup:
+        def service = new SessionResumeService(30000, 100)
+        def address = new InetSocketAddress("127.0.0.1", 44457)
+        def older = connection(address, 10, 5)
+        def olderToken = service.issueToken(older)
+        def newer = connection(address, 11, 5)
+        def newerToken = service.issueToken(newer)
+
+        when:
+        service.store(older)
+        service.store(newer)
+
+        then:
+        service.sessionCount == 1
+        service.resume(10, olderToken, address) == null
+        service.resumeAccount(5, olderToken, address) == null
+        service.resumeAccount(5, newerToken, address).connectionId == 11
+    }
+
+    private SoeUdpConnection connection(InetSocketAddress address, int id, int accountId) {
+        def connection = new SoeUdpConnection(networkConfig, address, ConnectionState.ONLINE, null)
+        connection.id = id
+        connection.accountId = accountId
+        connection.addRole(ConnectionRole.AUTHENTICATED)
+        return connection
+    }
+}
@@ -0,0 +1,170 @@
+package com.ocdsoft.bacta.soe.io.capture;
+
+import com.ocdsoft.bacta.engine.conf.ini.IniBactaConfiguration;
+import com.ocdsoft.bacta.engine.network.client.ConnectionState;
+import com.ocdsoft.bacta.soe.connection.SoeUdpConnection;
+import com.ocdsoft.bacta.soe.io.udp.NetworkConfiguration;
+import com.ocdsoft.bacta.soe.message.UdpPacketType;
+import com.ocdsoft.bacta.soe.protocol.SoeProtocol;
+import com.ocdsoft.bacta.soe.router.SwgMessageRouter;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Feeds the incoming packets of a capture through decode and the SOE controllers as fast as possible, and reports
+ * messages per second and bytes allocated per message. Each connection's pending output is drained after every
+ * packet, the way the send thread would, and thrown away.
+ *
+ * The first pass is warmup and is not included in the totals.
+ *
+ * Usage: CaptureReplay capture-file [passes]
+ */
+public class CaptureReplay {
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 1) {
+            System.err.println("Usage: CaptureReplay capture-file [passes]");
+            System.exit(1);
+        }
+
+        int passes = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        try (PacketCaptureReader reader = new PacketCaptureReader(Paths.get(args[0]))) {
+            new CaptureReplay(reader, new NetworkConfiguration(new IniBactaConfiguration())).run(passes);
+        }
+    }
+
+    private final PacketCaptureReader reader;
+    private final NetworkConfiguration networkConfiguration;
+    private final SoeProtocol protocol;
+    private final ReplayMessageRouter router;
+    private final ByteBuffer scratch;
+
+    private long gameMessages;
+
+    public CaptureReplay(final PacketCaptureReader reader, final NetworkConfiguration networkConfiguration) {
+        this.reader = reader;
+        this.networkConfiguration = networkConfiguration;
+        this.protocol = new SoeProtocol();
+        this.protocol.setCompression(networkConfiguration.isCompression());
+        this.scratch = ByteBuffer.allocate(0x10000);
+
+        SwgMessageRouter swgMessageRouter = new SwgMessageRouter() {
+            @Override
+            public void routeMessage(byte priority, int opcode, SoeUdpConnection client, ByteBuffer buffer) {
+                gameMessages++;
+            }
+        };
+        this.router = new ReplayMessageRouter(swgMessageRouter);
+    }
+
+    public void run(final int passes) {
+
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        long totalPackets = 0;
+        long totalMessages = 0;
+        long totalNanos = 0;
+        long totalAllocated = 0;
+
+        for (int pass = 0; pass < passes; ++pass) {
+
+            long messagesBefore = gameMessages;
+            long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+
+            long packets = replay();
+
+            long nanos = System.nanoTime() - start;
+            long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+            long messages = gameMessages - messagesBefore;
+
+            System.out.printf("Pass %d%s: %d packets, %d game messages in %.1fms | %.0f packets/s %.0f msg/s | %.0f bytes/packet %.0f bytes/msg%n",
+                    pass + 1, pass == 0 ? " (warmup)" : "",
+                    packets, messages, nanos / 1e6,
+                    packets / (nanos / 1e9), messages / (nanos / 1e9),
+                    allocated / (double) Math.max(packets, 1), allocated / (double) Math.max(messages, 1));
+
+            if (pass > 0) {
+                totalPackets += packets;
+                totalMessages += messages;
+                totalNanos += nanos;
+                totalAllocated += allocated;
+            }
+        }
+
+        if (totalNanos > 0) {
+            System.out.printf("Total: %.0f packets/s %.0f msg/s | %.0f bytes/packet %.0f bytes/msg | %d unhandled %d failed packets%n",
+                    totalPackets / (totalNanos / 1e9), totalMessages / (totalNanos / 1e9),
+                    totalAllocated / (double) Math.max(totalPackets, 1), totalAllocated / (double) Math.max(totalMessages, 1),
+                    router.getUnhandled(), router.getFailed());
+        }
+    }
+
+    /**
+     * One pass over the capture with fresh connections
+     * @return Incoming packets routed
+     */
+    private long replay() {
+
+        Map<Integer, SoeUdpConnection> connections = new HashMap<>();
+        PacketCaptureReader.Record record = reader.newRecord();
+        long packets = 0;
+
+        reader.rewind();
+        while (reader.next(record)) {
+
+            if (record.isSession()) {
+                String address = record.getAddress();
+                int separator = address.lastIndexOf(':');
+                InetSocketAddress remoteAddress = InetSocketAddress.createUnresolved(
+                        address.substring(0, separator), Integer.parseInt(address.substring(separator + 1)));
+                connections.put(record.getSession(), new SoeUdpConnection(networkConfiguration, remoteAddress, ConnectionState.ONLINE, null));
+                continue;
+            }
+
+            SoeUdpConnection connection = connections.get(record.getSession());
+            ByteBuffer data = record.getData();
+            if (connection == null || data.remaining() < 2) {
+                continue;
+            }
+
+            byte type = data.get(data.position() + 1);
+
+            if (type == UdpPacketType.cUdpPacketConfirm.getValue()) {
+                ByteBuffer confirm = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+                confirm.position(confirm.position() + 6);
+                connection.getConfiguration().setEncryptCode(confirm.getInt());
+                connection.getConfiguration().setCrcBytes(confirm.get());
+                continue;
+            }
+
+            if (!record.isIncoming() || type == UdpPacketType.cUdpPacketConnect.getValue()) {
+                continue;
+            }
+
+            // Decoding works in place, so each packet gets a copy
+            scratch.clear();
+            scratch.put(data);
+            scratch.flip();
+
+            ByteBuffer decoded = protocol.decode(connection.getConfiguration().getEncryptCode(), scratch.order(ByteOrder.LITTLE_ENDIAN));
+            if (decoded != null) {
+                router.routeMessage(connection, decoded);
+                connection.getPendingMessages();
+                packets++;
+            }
+        }
+
+        return packets;
+    }
+}
@@ -0,0 +1,99 @@
+package com.ocdsoft.bacta.soe.io.capture;
+
+import com.ocdsoft.bacta.soe.connection.SoeUdpConnection;
+import com.ocdsoft.bacta.soe.controller.*;
+import com.ocdsoft.bacta.soe.message.UdpPacketType;
+import com.ocdsoft.bacta.soe.router.SoeMessageRouter;
+import com.ocdsoft.bacta.soe.router.SwgMessageRouter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Routes replayed packets through the stock SOE controllers without Guice or classpath scanning. Packets that
+ * need server services, such as Connect and Terminate, are skipped.
+ */
+public class ReplayMessageRouter implements SoeMessageRouter {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReplayMessageRouter.class);
+
+    private final Map<UdpPacketType, SoeMessageController> controllers = new EnumMap<>(UdpPacketType.class);
+
+    private long unhandled;
+    private long failed;
+
+    public ReplayMessageRouter(final SwgMessageRouter swgMessageRouter) {
+
+        add(new MultiController(), swgMessageRouter, UdpPacketType.cUdpPacketMulti);
+        add(new GroupMessageController(), swgMessageRouter, UdpPacketType.cUdpPacketGroup);
+        add(new ZeroEscapeController(), swgMessageRouter, UdpPacketType.cUdpPacketZeroEscape);
+        add(new OrderedMessageController(), swgMessageRouter, UdpPacketType.cUdpPacketOrdered, UdpPacketType.cUdpPacketOrdered2);
+        add(new ClockSyncController(), swgMessageRouter, UdpPacketType.cUdpPacketClockSync);
+        add(new KeepAliveController(), swgMessageRouter, UdpPacketType.cUdpPacketKeepAlive);
+
+        add(new ReliableMessageController(), swgMessageRouter,
+                UdpPacketType.cUdpPacketReliable1, UdpPacketType.cUdpPacketReliable2,
+                UdpPacketType.cUdpPacketReliable3, UdpPacketType.cUdpPacketReliable4,
+                UdpPacketType.cUdpPacketFragment1, UdpPacketType.cUdpPacketFragment2,
+                UdpPacketType.cUdpPacketFragment3, UdpPacketType.cUdpPacketFragment4);
+
+        add(new AckController(), swgMessageRouter,
+                UdpPacketType.cUdpPacketAck1, UdpPacketType.cUdpPacketAck2,
+                UdpPacketType.cUdpPacketAck3, UdpPacketType.cUdpPacketAck4);
+
+        add(new AckAllController(), swgMessageRouter,
+                UdpPacketType.cUdpPacketAckAll1, UdpPacketType.cUdpPacketAckAll2,
+                UdpPacketType.cUdpPacketAckAll3, UdpPacketType.cUdpPacketAckAll4);
+    }
+
+    private void add(final SoeMessageController controller, final SwgMessageRouter swgMessageRouter, final UdpPacketType... types) {
+        controller.setSoeMessageRouter(this);
+        controller.setSwgMessageRouter(swgMessageRouter);
+        for (UdpPacketType type : types) {
+            controllers.put(type, controller);
+        }
+    }
+
+    public long getUnhandled() {
+        return unhandled;
+    }
+
+    /**
+     * @return Packets whose controller threw while handling them
+     */
+    public long getFailed() {
+        return failed;
+    }
+
+    @Override
+    public void routeMessage(final SoeUdpConnection client, final ByteBuffer buffer) {
+
+        byte zeroByte = buffer.get();
+        byte type = buffer.get();
+        if (type < 0 || type >= UdpPacketType.values().length) {
+            unhandled++;
+            return;
+        }
+
+        UdpPacketType packetType = UdpPacketType.values()[type];
+        SoeMessageController controller = controllers.get(packetType);
+        if (controller == null) {
+            unhandled++;
+            return;
+        }
+
+        try {
+            controller.handleIncoming(zeroByte, packetType, client, buffer);
+        } catch (Exception e) {
+            failed++;
+            logger.error("Replay routing", e);
+        }
+    }
+
+    @Override
+    public void load() {
+    }
+}
@@ -0,0 +1,214 @@
+package com.ocdsoft.bacta.soe.load;
+
+import com.ocdsoft.bacta.soe.protocol.SoeProtocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens a number of simulated SOE sessions against a running transceiver and reports latency and throughput.
+ *
+ * Every session has its own UDP socket, so the server sees a distinct remote address per client. All sessions
+ * are driven from a single thread through one selector. For thousands of clients raise the open file limit
+ * (ulimit -n) first.
+ *
+ * Usage: LoadDriver [--host=127.0.0.1] [--port=44453] [--clients=100] [--duration=60] [--rate=10]
+ *                   [--mix=70:64,25:256,5:440] [--loss=0.0] [--window=100] [--rampup=500] [--resend=500]
+ *                   [--seed=n] [--protocolVersion=2] [--udpSize=496]
+ */
+public class LoadDriver {
+
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    public static void main(String[] args) throws IOException {
+        Settings settings = new Settings(args);
+        new LoadDriver(settings).run();
+    }
+
+    /**
+     * Run options, read from --name=value arguments
+     */
+    static final class Settings {
+
+        final InetSocketAddress server;
+        final int clients;
+        final long durationNanos;
+        final double rate;
+        final MessageMix mix;
+        final double loss;
+        final int window;
+        final int rampup;
+        final long resendNanos;
+        final long seed;
+        final int protocolVersion;
+        final int udpSize;
+
+        Settings(final String[] args) {
+
+            String host = "127.0.0.1";
+            int port = 44453;
+            int clients = 100;
+            int duration = 60;
+            double rate = 10;
+            String mix = "70:64,25:256,5:440";
+            double loss = 0;
+            int window = 100;
+            int rampup = 500;
+            int resend = 500;
+            long seed = System.nanoTime();
+            int protocolVersion = 2;
+            int udpSize = 496;
+
+            for (String arg : args) {
+                String[] pair = arg.replaceFirst("^--", "").split("=", 2);
+                if (pair.length != 2) {
+                    throw new IllegalArgumentException("Expected --name=value but found '" + arg + "'");
+                }
+
+                switch (pair[0]) {
+                    case "host": host = pair[1]; break;
+                    case "port": port = Integer.parseInt(pair[1]); break;
+                    case "clients": clients = Integer.parseInt(pair[1]); break;
+                    case "duration": duration = Integer.parseInt(pair[1]); break;
+                    case "rate": rate = Double.parseDouble(pair[1]); break;
+                    case "mix": mix = pair[1]; break;
+                    case "loss": loss = Double.parseDouble(pair[1]); break;
+                    case "window": window = Integer.parseInt(pair[1]); break;
+                    case "rampup": rampup = Integer.parseInt(pair[1]); break;
+                    case "resend": resend = Integer.parseInt(pair[1]); break;
+                    case "seed": seed = Long.parseLong(pair[1]); break;
+                    case "protocolVersion": protocolVersion = Integer.parseInt(pair[1]); break;
+                    case "udpSize": udpSize = Integer.parseInt(pair[1]); break;
+                    default: throw new IllegalArgumentException("Unknown option '" + pair[0] + "'");
+                }
+            }
+
+            this.server = new InetSocketAddress(host, port);
+            this.clients = clients;
+            this.durationNanos = TimeUnit.SECONDS.toNanos(duration);
+            this.rate = rate;
+            // Leave room for the reliable header, compression flag, CRC and compressor overhead
+            this.mix = new MessageMix(mix, udpSize - 32);
+            this.loss = loss;
+            this.window = window;
+            this.rampup = rampup;
+            this.resendNanos = TimeUnit.MILLISECONDS.toNanos(resend);
+            this.seed = seed;
+            this.protocolVersion = protocolVersion;
+            this.udpSize = udpSize;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("server=%s clients=%d duration=%ds rate=%.1f/s mix=%s loss=%.3f window=%d rampup=%d/s resend=%dms seed=%d",
+                    server, clients, TimeUnit.NANOSECONDS.toSeconds(durationNanos), rate, mix, loss, window, rampup,
+                    TimeUnit.NANOSECONDS.toMillis(resendNanos), seed);
+        }
+    }
+
+    private final Settings settings;
+    private final SoeProtocol protocol;
+    private final LoadReport report;
+    private final Random random;
+    private final List<SimulatedClient> clients;
+
+    public LoadDriver(final Settings settings) {
+        this.settings = settings;
+        this.protocol = new SoeProtocol();
+        this.report = new LoadReport();
+        this.random = new Random(settings.seed);
+        this.clients = new ArrayList<>(settings.clients);
+    }
+
+    public LoadReport run() throws IOException {
+
+        System.out.println("SOE load: " + settings);
+
+        ByteBuffer receiveBuffer = ByteBuffer.allocate(settings.udpSize * 2);
+
+        try (Selector selector = Selector.open()) {
+
+            long start = System.nanoTime();
+            long end = start + settings.durationNanos;
+            long nextReport = start + REPORT_INTERVAL_NANOS;
+            long lastTick = 0;
+
+            long now;
+            while ((now = System.nanoTime()) < end) {
+
+                openClients(selector, start, now);
+
+                selector.select(1);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    SimulatedClient client = (SimulatedClient) key.attachment();
+                    SocketAddress sender;
+                    while (true) {
+                        receiveBuffer.clear();
+                        sender = client.getChannel().receive(receiveBuffer);
+                        if (sender == null) {
+                            break;
+                        }
+                        receiveBuffer.flip();
+                        client.receive(receiveBuffer, System.nanoTime());
+                    }
+                }
+
+                now = System.nanoTime();
+                if (now - lastTick >= TICK_NANOS) {
+                    lastTick = now;
+                    for (SimulatedClient client : clients) {
+                        client.tick(now);
+                    }
+                }
+
+                if (now >= nextReport) {
+                    report.printInterval(System.out);
+                    nextReport += REPORT_INTERVAL_NANOS;
+                }
+            }
+
+            for (SimulatedClient client : clients) {
+                client.terminate();
+                client.getChannel().close();
+            }
+        }
+
+        report.printSummary(System.out);
+        return report;
+    }
+
+    /**
+     * Opens sessions at the ramp up rate until all are running
+     */
+    private void openClients(final Selector selector, final long start, final long now) throws IOException {
+
+        long due = settings.rampup <= 0
+                ? settings.clients
+                : Math.min(settings.clients, (now - start) * settings.rampup / TimeUnit.SECONDS.toNanos(1) + 1);
+
+        while (clients.size() < due) {
+            DatagramChannel channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.bind(new InetSocketAddress(0));
+
+            SimulatedClient client = new SimulatedClient(settings, protocol, report, new Random(random.nextLong()), channel);
+            channel.register(selector, SelectionKey.OP_READ, client);
+            clients.add(client);
+        }
+    }
+}
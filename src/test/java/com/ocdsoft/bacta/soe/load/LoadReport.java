@@ -0,0 +1,132 @@
+package com.ocdsoft.bacta.soe.load;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counters and latency histograms for a load run. Only the driver thread updates it.
+ */
+public class LoadReport {
+
+    final Histogram handshakeLatency = new Histogram();
+    final Histogram reliableLatency = new Histogram();
+    final Histogram clockSyncLatency = new Histogram();
+
+    long sessionsConnected;
+    long sessionsFailed;
+    long sessionsTerminated;
+
+    long messagesSent;
+    long messagesAcked;
+    long resends;
+    long serverReliableReceived;
+    long serverDuplicatesReceived;
+    long packetsSent;
+    long packetsReceived;
+    long bytesSent;
+    long bytesReceived;
+    long droppedOutgoing;
+    long droppedIncoming;
+    long decodeFailures;
+
+    private final long startNanos = System.nanoTime();
+
+    private long lastNanos = startNanos;
+    private long lastMessagesAcked;
+    private long lastPacketsSent;
+    private long lastPacketsReceived;
+
+    /**
+     * Prints the rates since the previous call
+     */
+    public void printInterval(final PrintStream out) {
+
+        long now = System.nanoTime();
+        double seconds = (now - lastNanos) / 1e9;
+
+        out.printf("[%6.1fs] sessions %d up %d failed | acked %.0f msg/s | packets out %.0f/s in %.0f/s | resends %d | rtt p50 %.2fms p99 %.2fms%n",
+                (now - startNanos) / 1e9,
+                sessionsConnected - sessionsTerminated,
+                sessionsFailed,
+                (messagesAcked - lastMessagesAcked) / seconds,
+                (packetsSent - lastPacketsSent) / seconds,
+                (packetsReceived - lastPacketsReceived) / seconds,
+                resends,
+                reliableLatency.percentileMillis(50),
+                reliableLatency.percentileMillis(99));
+
+        lastNanos = now;
+        lastMessagesAcked = messagesAcked;
+        lastPacketsSent = packetsSent;
+        lastPacketsReceived = packetsReceived;
+    }
+
+    public void printSummary(final PrintStream out) {
+
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+        out.println();
+        out.println("==== SOE load report ====");
+        out.printf("Duration:            %.1fs%n", seconds);
+        out.printf("Sessions:            %d connected, %d failed, %d terminated%n", sessionsConnected, sessionsFailed, sessionsTerminated);
+        out.printf("Reliable messages:   %d sent, %d acked, %d resends (%.2f%%)%n",
+                messagesSent, messagesAcked, resends, messagesSent == 0 ? 0.0 : resends * 100.0 / messagesSent);
+        out.printf("Throughput:          %.0f msg/s acked, %.0f packets/s out, %.0f packets/s in%n",
+                messagesAcked / seconds, packetsSent / seconds, packetsReceived / seconds);
+        out.printf("Bandwidth:           %.1f KB/s out, %.1f KB/s in%n", bytesSent / 1024.0 / seconds, bytesReceived / 1024.0 / seconds);
+        out.printf("Server reliable:     %d received, %d duplicates%n", serverReliableReceived, serverDuplicatesReceived);
+        out.printf("Loss injected:       %d outgoing, %d incoming dropped%n", droppedOutgoing, droppedIncoming);
+        out.printf("Decode failures:     %d%n", decodeFailures);
+        handshakeLatency.print(out, "Handshake latency");
+        reliableLatency.print(out, "Reliable ack RTT");
+        clockSyncLatency.print(out, "ClockSync RTT");
+    }
+
+    /**
+     * Fixed 100 microsecond buckets up to 10 seconds, anything slower lands in the last bucket.
+     */
+    static final class Histogram {
+
+        private static final long BUCKET_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+        private final long[] buckets = new long[100000];
+
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+
+        void record(final long nanos) {
+            int bucket = (int) Math.min(nanos / BUCKET_NANOS, buckets.length - 1);
+            buckets[bucket]++;
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        double percentileMillis(final double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+
+            long target = (long) Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; ++i) {
+                seen += buckets[i];
+                if (seen >= target) {
+                    return (i + 1) * BUCKET_NANOS / 1e6;
+                }
+            }
+            return maxNanos / 1e6;
+        }
+
+        void print(final PrintStream out, final String name) {
+            out.printf("%-20s n=%d mean %.2fms p50 %.2fms p95 %.2fms p99 %.2fms max %.2fms%n",
+                    name + ":",
+                    count,
+                    count == 0 ? 0.0 : totalNanos / (double) count / 1e6,
+                    percentileMillis(50),
+                    percentileMillis(95),
+                    percentileMillis(99),
+                    maxNanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.ocdsoft.bacta.soe.load;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Weighted set of game message shapes a simulated client picks from.
+ *
+ * Parsed from a comma separated list of weight:size[:opcode] entries, e.g. "70:64,25:256:0C5FEB8F,5:440".
+ * Size is the full game message including the priority and opcode, opcode is hex.
+ */
+public class MessageMix {
+
+    private static final short PRIORITY = 2;
+    private static final int HEADER_SIZE = 6;
+
+    private final List<Entry> entries = new ArrayList<>();
+    private int totalWeight;
+
+    public MessageMix(final String spec, final int maxSize) {
+
+        for (String part : spec.split(",")) {
+            String[] fields = part.trim().split(":");
+            if (fields.length < 2) {
+                throw new IllegalArgumentException("Expected weight:size[:opcode] but found '" + part + "'");
+            }
+
+            int weight = Integer.parseInt(fields[0]);
+            int size = Math.max(HEADER_SIZE, Math.min(Integer.parseInt(fields[1]), maxSize));
+            int opcode = fields.length > 2 ? (int) Long.parseLong(fields[2], 16) : 0;
+
+            totalWeight += weight;
+            entries.add(new Entry(totalWeight, size, opcode));
+        }
+
+        if (totalWeight <= 0) {
+            throw new IllegalArgumentException("Message mix has no weight: " + spec);
+        }
+    }
+
+    /**
+     * @return A new game message, laid out as the server expects inside a reliable packet
+     */
+    public ByteBuffer next(final Random random) {
+
+        int pick = random.nextInt(totalWeight);
+        Entry entry = entries.get(0);
+        for (Entry candidate : entries) {
+            if (pick < candidate.cumulativeWeight) {
+                entry = candidate;
+                break;
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(entry.size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putShort(PRIORITY);
+        buffer.putInt(entry.opcode);
+
+        // Half repeated, half random, so the compressor has roughly game-like work to do
+        while (buffer.remaining() > 0) {
+            buffer.put(buffer.position() % 2 == 0 ? (byte) buffer.position() : (byte) random.nextInt());
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        int previous = 0;
+        for (Entry entry : entries) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(entry.cumulativeWeight - previous).append(':').append(entry.size)
+                    .append(':').append(Integer.toHexString(entry.opcode).toUpperCase());
+            previous = entry.cumulativeWeight;
+        }
+        return builder.toString();
+    }
+
+    private static final class Entry {
+        private final int cumulativeWeight;
+        private final int size;
+        private final int opcode;
+
+        private Entry(int cumulativeWeight, int size, int opcode) {
+            this.cumulativeWeight = cumulativeWeight;
+            this.size = size;
+            this.opcode = opcode;
+        }
+    }
+}
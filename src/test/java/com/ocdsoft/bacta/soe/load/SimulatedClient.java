@@ -0,0 +1,444 @@
+package com.ocdsoft.bacta.soe.load;
+
+import com.ocdsoft.bacta.soe.message.TerminateReason;
+import com.ocdsoft.bacta.soe.message.UdpPacketType;
+import com.ocdsoft.bacta.soe.protocol.SoeProtocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One simulated SOE session, speaking the client side of the protocol over its own socket.
+ *
+ * Connects, then sends game messages on Reliable1 at the configured rate, resending anything not acknowledged in
+ * time, acknowledges every reliable packet from the server, and sends ClockSync and KeepAlive periodically.
+ * Not thread safe; driven entirely by {@link LoadDriver}.
+ */
+public class SimulatedClient {
+
+    enum State {
+        CONNECTING, ONLINE, CLOSED, FAILED
+    }
+
+    private static final int CONNECT_ATTEMPTS = 10;
+    private static final long CONNECT_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long CLOCK_SYNC_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final long KEEP_ALIVE_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final LoadDriver.Settings settings;
+    private final SoeProtocol protocol;
+    private final LoadReport report;
+    private final Random random;
+    private final InetSocketAddress server;
+    private final DatagramChannel channel;
+    private final int connectionId;
+
+    private State state = State.CONNECTING;
+
+    private int encryptCode;
+    private byte crcBytes;
+    private boolean compression;
+
+    private int connectAttempts;
+    private long firstConnectNanos;
+    private long lastConnectNanos;
+    private long lastClockSyncNanos;
+    private long clockSyncSentNanos;
+    private short clockSyncStamp;
+    private long lastKeepAliveNanos;
+    private long lastTickNanos;
+    private double sendCredit;
+
+    private short nextSequence;
+    private final ArrayDeque<Outstanding> outstanding = new ArrayDeque<>();
+    private final int[] expectedServerSequence = new int[UdpPacketType.RELIABLE_CHANNELS];
+
+    public SimulatedClient(final LoadDriver.Settings settings,
+                           final SoeProtocol protocol,
+                           final LoadReport report,
+                           final Random random,
+                           final DatagramChannel channel) {
+        this.settings = settings;
+        this.protocol = protocol;
+        this.report = report;
+        this.random = random;
+        this.channel = channel;
+        this.server = settings.server;
+        this.connectionId = random.nextInt();
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public DatagramChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Advances timers and sends whatever is due
+     */
+    public void tick(final long now) throws IOException {
+
+        switch (state) {
+            case CONNECTING:
+                if (connectAttempts == 0 || now - lastConnectNanos >= CONNECT_RETRY_NANOS) {
+                    if (connectAttempts == CONNECT_ATTEMPTS) {
+                        state = State.FAILED;
+                        report.sessionsFailed++;
+                        return;
+                    }
+                    sendConnect(now);
+                }
+                break;
+
+            case ONLINE:
+                resendExpired(now);
+                sendMessages(now);
+
+                if (now - lastClockSyncNanos >= CLOCK_SYNC_NANOS) {
+                    sendClockSync(now);
+                }
+                if (now - lastKeepAliveNanos >= KEEP_ALIVE_NANOS) {
+                    sendKeepAlive(now);
+                }
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    public void terminate() throws IOException {
+        if (state == State.ONLINE) {
+            ByteBuffer frame = frame(UdpPacketType.cUdpPacketTerminate);
+            frame.putInt(connectionId);
+            TerminateReason.APPLICATION.writeToBuffer(frame);
+            sendEncoded(frame);
+            report.sessionsTerminated++;
+        }
+        state = State.CLOSED;
+    }
+
+    /**
+     * Handles one datagram from the server
+     */
+    public void receive(final ByteBuffer datagram, final long now) {
+
+        report.packetsReceived++;
+        report.bytesReceived += datagram.remaining();
+
+        if (settings.loss > 0 && random.nextDouble() < settings.loss) {
+            report.droppedIncoming++;
+            return;
+        }
+
+        if (datagram.get(1) == UdpPacketType.cUdpPacketConfirm.getValue()) {
+            handleConfirm(datagram, now);
+            return;
+        }
+
+        if (state != State.ONLINE) {
+            return;
+        }
+
+        ByteBuffer decoded = protocol.decode(encryptCode, datagram.order(ByteOrder.LITTLE_ENDIAN));
+        if (decoded == null) {
+            report.decodeFailures++;
+            return;
+        }
+
+        // A decompressed packet comes back without the compression flag and CRC footer
+        if (decoded == datagram) {
+            decoded.limit(decoded.limit() - 1 - crcBytes);
+        }
+
+        handleFrame(decoded.order(ByteOrder.BIG_ENDIAN), now);
+    }
+
+    private void handleConfirm(final ByteBuffer buffer, final long now) {
+
+        if (state != State.CONNECTING) {
+            return;
+        }
+
+        buffer.order(ByteOrder.BIG_ENDIAN).position(2);
+        if (buffer.getInt() != connectionId) {
+            return;
+        }
+
+        encryptCode = buffer.getInt();
+        crcBytes = buffer.get();
+        compression = buffer.get() != 0;
+
+        state = State.ONLINE;
+        report.sessionsConnected++;
+        report.handshakeLatency.record(now - firstConnectNanos);
+
+        lastTickNanos = now;
+        lastKeepAliveNanos = now;
+    }
+
+    private void handleFrame(final ByteBuffer buffer, final long now) {
+
+        buffer.get();
+        byte type = buffer.get();
+        if (type < 0 || type >= UdpPacketType.values().length) {
+            return;
+        }
+
+        UdpPacketType packetType = UdpPacketType.values()[type];
+        int channel = packetType.getReliableChannel();
+
+        switch (packetType) {
+            case cUdpPacketMulti:
+                handleMulti(buffer, now);
+                break;
+
+            case cUdpPacketReliable1:
+            case cUdpPacketReliable2:
+            case cUdpPacketReliable3:
+            case cUdpPacketReliable4:
+            case cUdpPacketFragment1:
+            case cUdpPacketFragment2:
+            case cUdpPacketFragment3:
+            case cUdpPacketFragment4:
+                handleReliable(channel, buffer.getShort() & 0xFFFF);
+                break;
+
+            case cUdpPacketAck1:
+            case cUdpPacketAckAll1:
+                acknowledge(buffer.getShort() & 0xFFFF, now);
+                break;
+
+            case cUdpPacketClockReflect:
+                if (buffer.getShort() == clockSyncStamp && clockSyncSentNanos != 0) {
+                    report.clockSyncLatency.record(now - clockSyncSentNanos);
+                    clockSyncSentNanos = 0;
+                }
+                break;
+
+            case cUdpPacketTerminate:
+                state = State.CLOSED;
+                report.sessionsTerminated++;
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    private void handleMulti(final ByteBuffer buffer, final long now) {
+
+        while (buffer.remaining() > 0) {
+
+            int length = buffer.get() & 0xFF;
+            if (length == 0xFF) {
+                length = buffer.getShort() & 0xFFFF;
+            }
+
+            if (length == 0 || length > buffer.remaining()) {
+                return;
+            }
+
+            ByteBuffer frame = buffer.slice();
+            frame.limit(length);
+            handleFrame(frame, now);
+
+            buffer.position(buffer.position() + length);
+        }
+    }
+
+    /**
+     * Acknowledges a reliable packet from the server. In order packets move the cumulative ack forward, anything
+     * ahead of it is acked selectively and anything behind it is a resend of something already seen.
+     */
+    private void handleReliable(final int channel, final int sequence) {
+
+        int expected = expectedServerSequence[channel];
+        short offset = (short) (sequence - expected);
+
+        try {
+            if (offset == 0) {
+                report.serverReliableReceived++;
+                expectedServerSequence[channel] = (expected + 1) & 0xFFFF;
+                sendAck(UdpPacketType.ackAll(channel), sequence);
+            } else if (offset > 0) {
+                report.serverReliableReceived++;
+                sendAck(UdpPacketType.ack(channel), sequence);
+            } else {
+                report.serverDuplicatesReceived++;
+                sendAck(UdpPacketType.ackAll(channel), (expected - 1) & 0xFFFF);
+            }
+        } catch (IOException e) {
+            state = State.FAILED;
+        }
+    }
+
+    /**
+     * The server acks every reliable packet it sees with an AckAll for that sequence
+     */
+    private void acknowledge(final int sequence, final long now) {
+
+        Iterator<Outstanding> iterator = outstanding.iterator();
+        while (iterator.hasNext()) {
+            Outstanding message = iterator.next();
+            if ((short) (message.sequence - sequence) > 0) {
+                break;
+            }
+
+            report.messagesAcked++;
+            report.reliableLatency.record(now - message.firstSentNanos);
+            iterator.remove();
+        }
+    }
+
+    private void sendMessages(final long now) throws IOException {
+
+        sendCredit = Math.min(sendCredit + settings.rate * (now - lastTickNanos) / 1e9, Math.max(settings.rate, 1));
+        lastTickNanos = now;
+
+        while (sendCredit >= 1 && outstanding.size() < settings.window) {
+
+            ByteBuffer payload = settings.mix.next(random);
+
+            ByteBuffer frame = frame(UdpPacketType.cUdpPacketReliable1);
+            int sequence = nextSequence++ & 0xFFFF;
+            frame.putShort((short) sequence);
+            frame.put(payload);
+
+            byte[] packet = new byte[frame.position()];
+            System.arraycopy(frame.array(), 0, packet, 0, packet.length);
+
+            outstanding.add(new Outstanding(sequence, packet, now));
+            sendEncoded(frame);
+
+            report.messagesSent++;
+            sendCredit -= 1;
+        }
+    }
+
+    private void resendExpired(final long now) throws IOException {
+
+        for (Outstanding message : outstanding) {
+            if (now - message.lastSentNanos < settings.resendNanos) {
+                continue;
+            }
+
+            ByteBuffer frame = ByteBuffer.allocate(settings.udpSize);
+            frame.put(message.packet);
+            sendEncoded(frame);
+
+            message.lastSentNanos = now;
+            report.resends++;
+        }
+    }
+
+    private void sendConnect(final long now) throws IOException {
+
+        ByteBuffer frame = frame(UdpPacketType.cUdpPacketConnect);
+        frame.putInt(settings.protocolVersion);
+        frame.putInt(connectionId);
+        frame.putInt(settings.udpSize);
+        frame.flip();
+
+        if (connectAttempts++ == 0) {
+            firstConnectNanos = now;
+        }
+        lastConnectNanos = now;
+
+        send(frame);
+    }
+
+    private void sendClockSync(final long now) throws IOException {
+
+        clockSyncStamp = (short) TimeUnit.NANOSECONDS.toMillis(now);
+        clockSyncSentNanos = now;
+        lastClockSyncNanos = now;
+
+        ByteBuffer frame = frame(UdpPacketType.cUdpPacketClockSync);
+        frame.putShort(clockSyncStamp);
+        // master, average, low, high and last ping time
+        int pingMillis = (int) report.clockSyncLatency.percentileMillis(50);
+        for (int i = 0; i < 5; ++i) {
+            frame.putInt(pingMillis);
+        }
+        frame.putLong(report.packetsSent);
+        frame.putLong(report.packetsReceived);
+
+        sendEncoded(frame);
+    }
+
+    private void sendKeepAlive(final long now) throws IOException {
+        lastKeepAliveNanos = now;
+        sendEncoded(frame(UdpPacketType.cUdpPacketKeepAlive));
+    }
+
+    private void sendAck(final UdpPacketType type, final int sequence) throws IOException {
+        ByteBuffer frame = frame(type);
+        frame.putShort((short) sequence);
+        sendEncoded(frame);
+    }
+
+    private ByteBuffer frame(final UdpPacketType type) {
+        ByteBuffer frame = ByteBuffer.allocate(settings.udpSize);
+        frame.put((byte) 0);
+        frame.put(type.getValue());
+        return frame;
+    }
+
+    /**
+     * Encodes a frame written up to its position the same way SoeTransceiver does, then sends it
+     */
+    private void sendEncoded(ByteBuffer frame) throws IOException {
+
+        frame.flip();
+
+        if (compression) {
+            frame = protocol.encode(encryptCode, frame, true);
+        } else {
+            frame.limit(frame.limit() + 1);
+            frame.put(frame.limit() - 1, (byte) 0);
+            protocol.encrypt(encryptCode, frame, 2);
+        }
+
+        protocol.appendCRC(encryptCode, frame, crcBytes);
+        frame.rewind();
+
+        send(frame);
+    }
+
+    private void send(final ByteBuffer packet) throws IOException {
+
+        report.packetsSent++;
+        report.bytesSent += packet.remaining();
+
+        if (settings.loss > 0 && random.nextDouble() < settings.loss) {
+            report.droppedOutgoing++;
+            return;
+        }
+
+        channel.send(packet, server);
+    }
+
+    private static final class Outstanding {
+        private final int sequence;
+        private final byte[] packet;
+        private final long firstSentNanos;
+        private long lastSentNanos;
+
+        private Outstanding(int sequence, byte[] packet, long now) {
+            this.sequence = sequence;
+            this.packet = packet;
+            this.firstSentNanos = now;
+            this.lastSentNanos = now;
+        }
+    }
+}